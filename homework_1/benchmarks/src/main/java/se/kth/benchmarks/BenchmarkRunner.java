@@ -0,0 +1,55 @@
+package se.kth.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import java.io.File;
+
+/**
+ *  Runs the benchmarks with the usual JMH command line options, always with the gc profiler,
+ *  so the allocation rate of every benchmark is reported next to its timing.
+ *  The word file is looked up in assets of the working directory, when the benchmarks are run
+ *  from the benchmarks directory the forks are pointed at the homework directory instead.
+ */
+public class BenchmarkRunner {
+    private static final String WORDS_PATH = "assets/words.txt";
+
+    /**
+     *  Runs the benchmarks.
+     * @param args JMH command line options, e.g. a regex selecting benchmarks or -f 1
+     * @throws RunnerException When a benchmark fails
+     */
+    public static void main(String[] args) throws RunnerException {
+        CommandLineOptions commandLineOptions;
+        try {
+            commandLineOptions = new CommandLineOptions(args);
+        } catch (CommandLineOptionException exception) {
+            System.err.println("Invalid options: " + exception.getMessage());
+            System.exit(1);
+            return;
+        }
+        ChainedOptionsBuilder options = new OptionsBuilder()
+                .parent(commandLineOptions)
+                .addProfiler(GCProfiler.class);
+        File homeworkDirectory = findHomeworkDirectory();
+        if (homeworkDirectory != null) {
+            options.jvmArgsAppend("-Duser.dir=" + homeworkDirectory.getAbsolutePath());
+        }
+        new Runner(options.build()).run();
+    }
+
+    /**
+     * @return The directory with the word file, null if it is the working directory or can't be found.
+     */
+    private static File findHomeworkDirectory() {
+        if (new File(WORDS_PATH).isFile()) return null;
+        File parent = new File("..").getAbsoluteFile();
+        if (new File(parent, WORDS_PATH).isFile()) return parent;
+        System.err.println("Word file not found, run the benchmarks from the homework directory.");
+        return null;
+    }
+}
@@ -0,0 +1,82 @@
+package se.kth.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import se.kth.common.BufferPool;
+import se.kth.common.InboundMessage;
+import se.kth.common.Message;
+import se.kth.common.MessageCodec;
+import se.kth.common.MessageType;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *  Decoding of the messages a client sends most, from the read buffer as the server does it.
+ *  The in place benchmarks decode into a reused InboundMessage, the gc profiler should report
+ *  no allocation for them, the others build a Message for every frame.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DecodeBenchmark {
+    private final MessageCodec messageCodec = new MessageCodec(new BufferPool(MessageCodec.FRAME_BUFFER_SIZE, 1024 * 1024));
+    private final InboundMessage inboundMessage = new InboundMessage();
+    private final MessageCodec.FrameHandler frameHandler = inboundMessage::decode;
+    private ByteBuffer startFrame;
+    private ByteBuffer guessFrame;
+    private ByteBuffer wordGuessFrame;
+
+    @Setup
+    public void setUp() {
+        startFrame = directFrame(new Message(MessageType.START, ""));
+        guessFrame = directFrame(new Message(MessageType.GUESS, "e"));
+        wordGuessFrame = directFrame(new Message(MessageType.GUESS, "benchmark"));
+    }
+
+    @Benchmark
+    public List<Message> decodeGuess() throws ProtocolException {
+        return messageCodec.decode(guessFrame.position(0));
+    }
+
+    @Benchmark
+    public MessageType decodeStartInPlace() throws ProtocolException {
+        messageCodec.decode(startFrame.position(0), frameHandler);
+        return inboundMessage.getMessageType();
+    }
+
+    @Benchmark
+    public char decodeGuessInPlace() throws ProtocolException {
+        messageCodec.decode(guessFrame.position(0), frameHandler);
+        return inboundMessage.getBody().charAt(0);
+    }
+
+    @Benchmark
+    public int decodeWordGuessInPlace() throws ProtocolException {
+        messageCodec.decode(wordGuessFrame.position(0), frameHandler);
+        return inboundMessage.getBody().length();
+    }
+
+    /**
+     * @param message A message
+     * @return The frame of the message in a direct buffer, like the read buffer of an event loop.
+     */
+    private static ByteBuffer directFrame(Message message) {
+        ByteBuffer frame = MessageCodec.encode(message);
+        ByteBuffer directFrame = ByteBuffer.allocateDirect(frame.remaining());
+        directFrame.put(frame).flip();
+        return directFrame;
+    }
+}
@@ -0,0 +1,64 @@
+package se.kth.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import se.kth.common.GameState;
+import se.kth.common.NotValidGuessException;
+import se.kth.server.model.GameHandler;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *  Guesses against a game in the middle of a word.
+ *  A guess changes the game state, so every invocation guesses on a fresh copy of the same state.
+ *  The copy is measured on its own by copyGameState, subtract it to get the cost of the guess.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GameHandlerBenchmark {
+    private static final String WORD = "benchmark";
+    private GameHandler gameHandler;
+    private GameState gameState;
+
+    @Setup
+    public void setUp() {
+        gameHandler = new GameHandler();
+        gameState = new GameState(3, WORD.length(), "b_n_h_a_k".toCharArray(), WORD);
+    }
+
+    @Benchmark
+    public GameState copyGameState() {
+        return gameState.copy();
+    }
+
+    @Benchmark
+    public GameState guessCharacterHit() throws NotValidGuessException {
+        return gameHandler.guess("e", gameState.copy());
+    }
+
+    @Benchmark
+    public GameState guessCharacterMiss() throws NotValidGuessException {
+        return gameHandler.guess("z", gameState.copy());
+    }
+
+    @Benchmark
+    public GameState guessWordHit() throws NotValidGuessException {
+        return gameHandler.guess(WORD, gameState.copy());
+    }
+
+    @Benchmark
+    public GameState guessWordMiss() throws NotValidGuessException {
+        return gameHandler.guess("benchmarx", gameState.copy());
+    }
+}
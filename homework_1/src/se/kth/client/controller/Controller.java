@@ -1,29 +1,44 @@
 package se.kth.client.controller;
 
+import se.kth.client.net.DatagramConnection;
+import se.kth.client.net.GameConnection;
 import se.kth.client.net.OutputHandler;
 import se.kth.client.net.ServerConnection;
+import se.kth.common.Message;
 
 import java.io.IOException;
 import java.io.UncheckedIOException;
+import java.util.List;
 import java.util.concurrent.CompletableFuture;
 
 /**
  *  This controller connects the view with the controller.
  *  All the methods are asynchronous. And will print the result through a observer.
+ *  The requests return the future of their answer at once, so several can be made without waiting.
  *  connect(OutputHandler)  -   Connects to the server and register the output handler
  *  submitGuess(String)     -   Submits the guessed character or word.
- *  startNewGame()          -   Starts a new instance of the game, score is remained if started before.
+ *  submitGuesses(List)     -   Submits several guesses in one request.
+ *  startNewGame(String)    -   Starts a new instance of the game, score is remained if started before.
+ *  requestStats()          -   Asks the server for its metrics.
  *  disconnect()            -   Disconnects from the server.
  */
 public class Controller {
-    private final ServerConnection serverConnection;
+    private final GameConnection serverConnection;
     private boolean connected = false;
 
     /**
      *  Creates instance of controller class
      */
     public Controller(){
-        serverConnection = new ServerConnection();
+        this(false);
+    }
+
+    /**
+     *  Creates instance of controller class
+     * @param datagram True to talk to the server over datagrams instead of TCP
+     */
+    public Controller(boolean datagram){
+        serverConnection = datagram ? new DatagramConnection() : new ServerConnection();
     }
 
     /**
@@ -57,20 +72,48 @@ public class Controller {
 
     /**
      *  Starts a new hangman game.
+     * @param wordRequest A difficulty like hard, a word length, or empty for any word.
+     * @return The future of the answer, failed when not connected
      */
-    public void startNewGame(){
+    public CompletableFuture<Message> startNewGame(String wordRequest){
         if (connected){
-            CompletableFuture.runAsync(() -> serverConnection.startNewGame());
+            return serverConnection.startNewGame(wordRequest);
         }
+        return CompletableFuture.failedFuture(new IOException("Not connected to any server"));
     }
 
     /**
      *  Submits a game to the running game.
      * @param guess A character or word.
+     * @return The future of the answer, failed when not connected
+     */
+    public CompletableFuture<Message> submitGuess(String guess){
+        if (connected) {
+            return serverConnection.submitGuess(guess);
+        }
+        return CompletableFuture.failedFuture(new IOException("Not connected to any server"));
+    }
+
+    /**
+     *  Submits several guesses to the running game in one request.
+     * @param guesses Characters and words, made in order until one ends the game.
+     * @return The future of the answer, failed when not connected
+     */
+    public CompletableFuture<Message> submitGuesses(List<String> guesses){
+        if (connected) {
+            return serverConnection.submitGuesses(guesses);
+        }
+        return CompletableFuture.failedFuture(new IOException("Not connected to any server"));
+    }
+
+    /**
+     *  Asks the server for its metrics.
+     * @return The future of the answer, failed when not connected
      */
-    public void submitGuess(String guess){
+    public CompletableFuture<Message> requestStats(){
         if (connected) {
-            CompletableFuture.runAsync(() -> serverConnection.submitGuess(guess));
+            return serverConnection.requestStats();
         }
+        return CompletableFuture.failedFuture(new IOException("Not connected to any server"));
     }
 }
@@ -0,0 +1,192 @@
+package se.kth.client.load;
+
+import se.kth.common.BufferPool;
+import se.kth.common.Message;
+import se.kth.common.MessageCodec;
+import se.kth.common.MessageType;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ *  One simulated client of a load test, driven by the load worker that owns it.
+ *  It works like the ServerConnection of the client, without a view: every message gets a correlation id
+ *  and up to the pipeline depth of them are in flight, a new one is written for every response that arrives.
+ *  PINGs from the server are answered, the session token sent before the response to the first START is ignored.
+ *  connected()     -   Called when the connection is established, writes the first message.
+ *  read()          -   Reads and handles the responses available on the channel.
+ *  write()         -   Writes what the channel didn't accept before.
+ */
+class LoadConnection {
+    private final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<>();
+    private final LinkedHashMap<Integer, Outstanding> outstanding = new LinkedHashMap<>();
+    private final SocketChannel socketChannel;
+    private final MessageCodec messageCodec;
+    private final BufferPool bufferPool;
+    private final LoadResults loadResults;
+    private final Player player;
+    private final boolean binary;
+    private final int pipelineDepth;
+    private SelectionKey selectionKey;
+    private int nextCorrelationId;
+
+    /**
+     *  Creates a simulated client on a channel that is connecting.
+     * @param socketChannel (SocketChannel) The connection to the server
+     * @param bufferPool (BufferPool) The pool read buffers are borrowed from
+     * @param loadResults (LoadResults) Where latencies are recorded
+     * @param player (Player) Decides what is sent
+     * @param binary (boolean) True to ask the server for binary game states and deltas
+     * @param pipelineDepth (int) How many messages may wait for their responses at once
+     */
+    LoadConnection(SocketChannel socketChannel, BufferPool bufferPool, LoadResults loadResults, Player player,
+                   boolean binary, int pipelineDepth) {
+        this.socketChannel = socketChannel;
+        this.bufferPool = bufferPool;
+        this.loadResults = loadResults;
+        this.player = player;
+        this.binary = binary;
+        this.pipelineDepth = pipelineDepth;
+        messageCodec = new MessageCodec(bufferPool);
+    }
+
+    void setSelectionKey(SelectionKey selectionKey) {
+        this.selectionKey = selectionKey;
+    }
+
+    /**
+     *  Finishes connecting and queues the first messages, after a HELLO when binary encoding is asked for.
+     * @throws IOException When the connection can't be established
+     */
+    void connected() throws IOException {
+        socketChannel.finishConnect();
+        loadResults.clientConnected();
+        if (binary) {
+            send(new Message(MessageType.HELLO, MessageCodec.BINARY_FEATURE + "," + MessageCodec.DELTA_FEATURE));
+        }
+        fillPipeline();
+    }
+
+    /**
+     *  Reads the bytes available on the channel and handles every complete response.
+     *  A response with the id of an outstanding message is recorded, responses to messages
+     *  that have timed out are ignored.
+     * @throws IOException When the server has closed the connection or a frame is malformed
+     */
+    void read() throws IOException {
+        List<Message> messages;
+        ByteBuffer readBuffer = bufferPool.acquire();
+        try {
+            if (socketChannel.read(readBuffer) == -1) throw new IOException("Server has closed connection!");
+            readBuffer.flip();
+            messages = messageCodec.decode(readBuffer);
+        } finally {
+            bufferPool.release(readBuffer);
+        }
+        long now = System.nanoTime();
+        for (Message message : messages) {
+            if (message.getMessageType() == MessageType.PING) {
+                queue(new Message(MessageType.PONG, message.getBody()));
+            } else if (message.getMessageType() == MessageType.RESPONSE_SESSION) {
+                continue;
+            } else {
+                Outstanding answered = outstanding.remove(message.getCorrelationId());
+                if (answered != null) loadResults.recordResponse(answered.messageType, now - answered.sentAt);
+            }
+        }
+        fillPipeline();
+        write();
+    }
+
+    /**
+     *  Writes the queued frames until the channel doesn't accept more.
+     * @throws IOException When something is wrong on the channel while writing
+     */
+    void write() throws IOException {
+        while (!outbound.isEmpty()) {
+            ByteBuffer frame = outbound.peekFirst();
+            socketChannel.write(frame);
+            if (frame.hasRemaining()) break;
+            outbound.pollFirst();
+        }
+        selectionKey.interestOps(outbound.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    }
+
+    /**
+     *  Gives up on the responses that haven't arrived in time and moves on to the next messages.
+     *  The messages are kept in the order they were sent, so only the oldest ones are looked at.
+     * @param now (long) The current time from System.nanoTime()
+     * @param timeoutNanos (long) How long a response may take
+     * @throws IOException When the next messages can't be written
+     */
+    void checkTimeout(long now, long timeoutNanos) throws IOException {
+        boolean timedOut = false;
+        Iterator<Outstanding> oldest = outstanding.values().iterator();
+        while (oldest.hasNext() && now - oldest.next().sentAt > timeoutNanos) {
+            loadResults.responseTimedOut();
+            oldest.remove();
+            timedOut = true;
+        }
+        if (timedOut) {
+            fillPipeline();
+            write();
+        }
+    }
+
+    /**
+     *  Closes the connection, no more responses are waited for.
+     */
+    void close() {
+        outstanding.clear();
+        try {
+            socketChannel.close();
+        } catch (IOException exception) {
+            System.err.println("Unable to close connection: " + exception.getMessage());
+        }
+        messageCodec.release();
+    }
+
+    /**
+     *  Queues the next messages of the player until the pipeline is full, they are written on the next write.
+     */
+    private void fillPipeline() {
+        while (outstanding.size() < pipelineDepth) {
+            send(player.nextMessage());
+        }
+    }
+
+    /**
+     *  Queues a message that expects a response with the next correlation id and starts its clock.
+     * @param message (Message) The message
+     */
+    private void send(Message message) {
+        if (++nextCorrelationId == 0) nextCorrelationId++;
+        outstanding.put(nextCorrelationId, new Outstanding(message.getMessageType(), System.nanoTime()));
+        queue(message.withCorrelationId(nextCorrelationId));
+    }
+
+    /**
+     * @param message (Message) A message to queue for writing
+     */
+    private void queue(Message message) {
+        outbound.addLast(MessageCodec.encode(message));
+    }
+
+    /**
+     *  A message that waits for its response.
+     */
+    private static class Outstanding {
+        private final MessageType messageType;
+        private final long sentAt;
+
+        Outstanding(MessageType messageType, long sentAt) {
+            this.messageType = messageType;
+            this.sentAt = sentAt;
+        }
+    }
+}
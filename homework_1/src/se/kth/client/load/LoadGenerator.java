@@ -0,0 +1,175 @@
+package se.kth.client.load;
+
+import se.kth.common.BufferPool;
+import se.kth.common.Message;
+import se.kth.common.MessageCodec;
+import se.kth.common.MessageType;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *  Headless load generator for the hangman server.
+ *  It opens many non-blocking connections from a few threads, every connection plays hangman
+ *  as fast as the server answers, and reports throughput and latency per type of message.
+ *  Options:
+ *  --host=HOST         -   The server, defaults to localhost.
+ *  --port=PORT         -   The port of the server, defaults to 4444.
+ *  --connections=N     -   Number of simulated clients, defaults to 1000.
+ *  --threads=N         -   Number of threads driving the clients, defaults to 4.
+ *  --duration=S        -   Seconds latencies are recorded for, defaults to 30.
+ *  --warmup=S          -   Seconds the clients play before recording starts, defaults to 5.
+ *  --script=A,B,...    -   Messages every client repeats, start or a guess, e.g. start,e,a,s.
+ *                          Guesses joined with + are sent as one batch, e.g. start,e+a+s.
+ *                          Without a script the clients play random games.
+ *  --binary            -   Ask the server for binary game states and deltas.
+ *  --pipeline=N        -   Messages every client has in flight, defaults to 1 which waits for every response.
+ *  --timeout-ms=MS     -   How long a response may take before the client moves on, defaults to 5000.
+ */
+public class LoadGenerator {
+    private static final String HOST_OPTION = "--host=";
+    private static final String PORT_OPTION = "--port=";
+    private static final String CONNECTIONS_OPTION = "--connections=";
+    private static final String THREADS_OPTION = "--threads=";
+    private static final String DURATION_OPTION = "--duration=";
+    private static final String WARMUP_OPTION = "--warmup=";
+    private static final String SCRIPT_OPTION = "--script=";
+    private static final String BINARY_OPTION = "--binary";
+    private static final String PIPELINE_OPTION = "--pipeline=";
+    private static final String TIMEOUT_OPTION = "--timeout-ms=";
+    private static final String START_COMMAND = "start";
+    private static final String BATCH_SEPARATOR = "+";
+    private final LoadResults loadResults = new LoadResults();
+    private String host = "localhost";
+    private int port = 4444;
+    private int connectionCount = 1000;
+    private int threadCount = 4;
+    private int durationSeconds = 30;
+    private int warmupSeconds = 5;
+    private List<Message> script;
+    private boolean binary;
+    private int pipelineDepth = 1;
+    private long timeoutMillis = 5000;
+
+    /**
+     *  Runs a load test with the given options and prints the results.
+     * @param args The options
+     */
+    public static void main(String[] args) {
+        LoadGenerator loadGenerator = new LoadGenerator();
+        for (String arg : args) {
+            loadGenerator.parseOption(arg);
+        }
+        try {
+            loadGenerator.run();
+        } catch (IOException exception) {
+            System.err.println("Unable to run load test: " + exception.getMessage());
+            System.exit(1);
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     *  Starts the workers, waits for the warm up and the measured duration and prints the results.
+     * @throws IOException When a selector can't be opened
+     * @throws InterruptedException When interrupted while waiting
+     */
+    private void run() throws IOException, InterruptedException {
+        InetSocketAddress serverAddress = new InetSocketAddress(host, port);
+        BufferPool bufferPool = new BufferPool(MessageCodec.FRAME_BUFFER_SIZE, 16L * 1024 * 1024);
+        List<LoadWorker> workers = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < threadCount; i++) {
+            int share = connectionCount / threadCount + (i < connectionCount % threadCount ? 1 : 0);
+            LoadWorker worker = new LoadWorker(serverAddress, share, script, binary, pipelineDepth,
+                    TimeUnit.MILLISECONDS.toNanos(timeoutMillis), bufferPool, loadResults, i);
+            Thread thread = new Thread(worker, "load-worker-" + i);
+            workers.add(worker);
+            threads.add(thread);
+            thread.start();
+        }
+        System.out.println("Running " + connectionCount + " clients on " + threadCount + " threads against "
+                + serverAddress + ", warming up for " + warmupSeconds + " s...");
+        TimeUnit.SECONDS.sleep(warmupSeconds);
+        loadResults.startRecording();
+        long recordingStart = System.nanoTime();
+        TimeUnit.SECONDS.sleep(durationSeconds);
+        double measuredSeconds = (System.nanoTime() - recordingStart) / (double) TimeUnit.SECONDS.toNanos(1);
+        for (LoadWorker worker : workers) {
+            worker.shutdown();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        System.out.print(loadResults.report(measuredSeconds));
+    }
+
+    /**
+     *  Applies one option, unknown options are reported and ignored.
+     * @param arg (String) The option
+     */
+    private void parseOption(String arg) {
+        if (arg.startsWith(HOST_OPTION)) {
+            host = arg.substring(HOST_OPTION.length());
+        } else if (arg.startsWith(PORT_OPTION)) {
+            port = parseCount(arg.substring(PORT_OPTION.length()), port);
+        } else if (arg.startsWith(CONNECTIONS_OPTION)) {
+            connectionCount = parseCount(arg.substring(CONNECTIONS_OPTION.length()), connectionCount);
+        } else if (arg.startsWith(THREADS_OPTION)) {
+            threadCount = Math.max(1, parseCount(arg.substring(THREADS_OPTION.length()), threadCount));
+        } else if (arg.startsWith(DURATION_OPTION)) {
+            durationSeconds = parseCount(arg.substring(DURATION_OPTION.length()), durationSeconds);
+        } else if (arg.startsWith(WARMUP_OPTION)) {
+            warmupSeconds = parseCount(arg.substring(WARMUP_OPTION.length()), warmupSeconds);
+        } else if (arg.startsWith(TIMEOUT_OPTION)) {
+            timeoutMillis = parseCount(arg.substring(TIMEOUT_OPTION.length()), (int) timeoutMillis);
+        } else if (arg.startsWith(PIPELINE_OPTION)) {
+            pipelineDepth = Math.max(1, parseCount(arg.substring(PIPELINE_OPTION.length()), pipelineDepth));
+        } else if (arg.startsWith(SCRIPT_OPTION)) {
+            script = parseScript(arg.substring(SCRIPT_OPTION.length()));
+        } else if (arg.equals(BINARY_OPTION)) {
+            binary = true;
+        } else {
+            System.err.println("Unknown option: " + arg);
+        }
+    }
+
+    /**
+     *  Parses a script, start starts a game and everything else is a guess, or a batch of guesses.
+     * @param commands (String) Comma separated commands
+     * @return (List) The messages of the script
+     */
+    private static List<Message> parseScript(String commands) {
+        List<Message> messages = new ArrayList<>();
+        for (String command : commands.split(",")) {
+            if (command.isEmpty()) continue;
+            if (command.equalsIgnoreCase(START_COMMAND)) {
+                messages.add(new Message(MessageType.START, ""));
+            } else if (command.contains(BATCH_SEPARATOR)) {
+                String guesses = command.toLowerCase().replace(BATCH_SEPARATOR, String.valueOf(MessageCodec.GUESS_SEPARATOR));
+                messages.add(new Message(MessageType.GUESS_BATCH, guesses));
+            } else {
+                messages.add(new Message(MessageType.GUESS, command.toLowerCase()));
+            }
+        }
+        return messages.isEmpty() ? null : messages;
+    }
+
+    /**
+     * Parses a count given as an option.
+     * @param count The count as a string
+     * @param defaultCount The count used if it isn't a number
+     * @return The count
+     */
+    private static int parseCount(String count, int defaultCount) {
+        try {
+            return Integer.parseInt(count);
+        } catch (NumberFormatException exception) {
+            System.err.println("Not a valid count: " + count);
+            return defaultCount;
+        }
+    }
+}
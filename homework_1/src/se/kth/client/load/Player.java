@@ -0,0 +1,47 @@
+package se.kth.client.load;
+
+import se.kth.common.Message;
+import se.kth.common.MessageType;
+import java.util.List;
+import java.util.Random;
+
+/**
+ *  Decides what a simulated client sends next.
+ *  A scripted player repeats the same messages over and over. A random player starts a game,
+ *  guesses a random number of random letters and starts the next game.
+ */
+class Player {
+    private static final String LETTERS = "abcdefghijklmnopqrstuvwxyz";
+    private static final int MAX_GUESSES_PER_GAME = 12;
+    private final List<Message> script;
+    private final Random random;
+    private int nextInScript;
+    private int guessesLeft;
+
+    /**
+     *  Creates a player.
+     * @param script (List) The messages to repeat, or null for random games
+     * @param random (Random) The source of random guesses
+     */
+    Player(List<Message> script, Random random) {
+        this.script = script;
+        this.random = random;
+    }
+
+    /**
+     * @return (Message) The message to send next.
+     */
+    Message nextMessage() {
+        if (script != null) {
+            Message message = script.get(nextInScript);
+            nextInScript = (nextInScript + 1) % script.size();
+            return message;
+        }
+        if (guessesLeft == 0) {
+            guessesLeft = 1 + random.nextInt(MAX_GUESSES_PER_GAME);
+            return new Message(MessageType.START, "");
+        }
+        guessesLeft--;
+        return new Message(MessageType.GUESS, String.valueOf(LETTERS.charAt(random.nextInt(LETTERS.length()))));
+    }
+}
@@ -0,0 +1,110 @@
+package se.kth.client.net;
+
+import se.kth.common.Message;
+import se.kth.common.MessageType;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ *  The requests of a connection that have been sent and wait for their answers, by correlation id.
+ *  A request may get several responses, e.g. the session token before the game, its future is completed
+ *  with the one that answers it: the game for START and RESUME, the game or the delta for GUESS, the game for GUESS_BATCH,
+ *  the metrics for STATS, the features for HELLO and PONG for PING. A RESUME that fails is answered
+ *  by the empty session token alone.
+ *  Requests are added by the threads of the caller and answered on the thread of the connection.
+ *  nextCorrelationId()     -   Gives a request its correlation id.
+ *  add(int, MessageType)   -   Adds a request before it is sent, returns the future of its answer.
+ *  complete(Message)       -   Completes the request a response answers.
+ *  failAll(IOException)    -   Fails the requests that will never be answered.
+ */
+class PendingRequests {
+    private final ConcurrentHashMap<Integer, PendingRequest> pendingRequests = new ConcurrentHashMap<>();
+    private final AtomicInteger lastCorrelationId = new AtomicInteger();
+
+    /**
+     * @return A correlation id for the next request, never 0.
+     */
+    int nextCorrelationId(){
+        int correlationId = lastCorrelationId.incrementAndGet();
+        return correlationId != 0 ? correlationId : lastCorrelationId.incrementAndGet();
+    }
+
+    /**
+     *  Adds a request that is about to be sent.
+     * @param correlationId The correlation id the request is sent with
+     * @param requestType The type of the request
+     * @return The future completed with the answer to the request.
+     */
+    CompletableFuture<Message> add(int correlationId, MessageType requestType){
+        PendingRequest pendingRequest = new PendingRequest(requestType);
+        pendingRequests.put(correlationId, pendingRequest);
+        return pendingRequest.response;
+    }
+
+    /**
+     *  Completes the request the response answers, other responses to it are ignored.
+     * @param response A response from the server
+     */
+    void complete(Message response){
+        PendingRequest pendingRequest = pendingRequests.get(response.getCorrelationId());
+        if (pendingRequest != null && pendingRequest.isAnsweredBy(response)){
+            pendingRequests.remove(response.getCorrelationId());
+            pendingRequest.response.complete(response);
+        }
+    }
+
+    /**
+     *  Fails every pending request, called when the connection is closed or lost.
+     * @param cause Why the requests won't be answered
+     */
+    void failAll(IOException cause){
+        Iterator<PendingRequest> iterator = pendingRequests.values().iterator();
+        while (iterator.hasNext()){
+            PendingRequest pendingRequest = iterator.next();
+            iterator.remove();
+            pendingRequest.response.completeExceptionally(cause);
+        }
+    }
+
+    /**
+     *  A request that has been sent and waits for its answer.
+     */
+    private static class PendingRequest {
+        private final CompletableFuture<Message> response = new CompletableFuture<>();
+        private final MessageType requestType;
+
+        PendingRequest(MessageType requestType){
+            this.requestType = requestType;
+        }
+
+        /**
+         * @param message A response to the request
+         * @return True if the response is the answer to the request.
+         */
+        boolean isAnsweredBy(Message message){
+            MessageType responseType = message.getMessageType();
+            switch (requestType){
+                case START:
+                    return responseType == MessageType.RESPONSE_START;
+                case GUESS:
+                    return responseType == MessageType.RESPONSE_GUESS || responseType == MessageType.RESPONSE_GUESS_DELTA;
+                case GUESS_BATCH:
+                    return responseType == MessageType.RESPONSE_GUESS;
+                case RESUME:
+                    return responseType == MessageType.RESPONSE_START
+                            || (responseType == MessageType.RESPONSE_SESSION && "".equals(message.getBody()));
+                case STATS:
+                    return responseType == MessageType.RESPONSE_STATS;
+                case HELLO:
+                    return responseType == MessageType.RESPONSE_HELLO;
+                case PING:
+                    return responseType == MessageType.PONG;
+                default:
+                    return false;
+            }
+        }
+    }
+}
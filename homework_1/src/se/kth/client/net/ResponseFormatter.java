@@ -0,0 +1,87 @@
+package se.kth.client.net;
+
+import se.kth.common.GameState;
+import se.kth.common.GameStateDelta;
+import se.kth.common.Message;
+import se.kth.common.MessageType;
+
+/**
+ *  Formats the responses of the server for the view, for both kinds of connection.
+ *  Game states that arrive in binary form are formatted here instead of on the server.
+ *  The last full game state is kept so that deltas can be applied to it,
+ *  and the token of the game session is kept so the game can be resumed.
+ *  A delta that doesn't fit the kept state is dropped and the connection asks for the full state,
+ *  by resuming the session it already has.
+ */
+class ResponseFormatter {
+    private GameState currentGameState;
+    private String sessionToken;
+    private boolean snapshotNeeded;
+    private boolean awaitingSnapshot;
+
+    /**
+     * @return The token of the game session, null if there is none.
+     */
+    String getSessionToken(){
+        return sessionToken;
+    }
+
+    /**
+     *  Forgets the session token, called when the client quits.
+     */
+    void forgetSession(){
+        sessionToken = null;
+    }
+
+    /**
+     *  Takes the request for a full game state, after a delta that couldn't be applied.
+     * @return The RESUME message to send, null if no full state is needed.
+     */
+    Message takeSnapshotRequest(){
+        if (!snapshotNeeded) return null;
+        snapshotNeeded = false;
+        awaitingSnapshot = true;
+        return new Message(MessageType.RESUME, sessionToken);
+    }
+
+    /**
+     *  Will parse the message and format it for the view.
+     * @param message The message to be parsed.
+     * @return the message as a string, empty if there is nothing to show.
+     */
+    String format(Message message){
+        String returnMessage = "";
+        switch (message.getMessageType()){
+            case RESPONSE_GUESS:
+            case RESPONSE_START:
+                if (message.getBody() instanceof GameState){
+                    currentGameState = (GameState) message.getBody();
+                }
+                returnMessage = String.valueOf(message.getBody());
+                break;
+            case RESPONSE_SESSION:
+                String token = (String) message.getBody();
+                if (token.isEmpty() && sessionToken != null){
+                    returnMessage = "The last game couldn't be resumed, start a new game.";
+                } else if (token.equals(sessionToken) && !awaitingSnapshot){
+                    returnMessage = "Resumed the last game.";
+                }
+                awaitingSnapshot = false;
+                sessionToken = token.isEmpty() ? null : token;
+                break;
+            case RESPONSE_STATS:
+                returnMessage = "Server metrics:\n" + message.getBody();
+                break;
+            case RESPONSE_GUESS_DELTA:
+                GameStateDelta delta = (GameStateDelta) message.getBody();
+                if (currentGameState != null && delta.appliesTo(currentGameState)){
+                    currentGameState = delta.applyTo(currentGameState);
+                    returnMessage = currentGameState.toString();
+                } else if (sessionToken != null && !awaitingSnapshot){
+                    snapshotNeeded = true;
+                }
+                break;
+        }
+        return returnMessage;
+    }
+}
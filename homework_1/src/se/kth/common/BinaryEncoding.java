@@ -0,0 +1,211 @@
+package se.kth.common;
+
+import java.net.ProtocolException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ *  Compact binary form of the game state responses, used when the client asks for it at connect.
+ *  A binary body starts with a zero byte, which never starts a text body, followed by the
+ *  opcode of the message type and the game state: score, remaining attempts, word length and the hidden word.
+ *  A message type with its highest bit set is followed by the correlation id of the message.
+ *  A game state delta is the change of score and attempts, the revealed character and its positions.
+ *  Numbers are written as unsigned variable length integers, 7 bits per byte,
+ *  changes are zigzag encoded first so small negative numbers stay small.
+ */
+class BinaryEncoding {
+    static final byte MARKER = 0;
+    static final int CORRELATION_ID_FLAG = 0x80;
+
+    /**
+     * @param body (byte[]) The body of a frame
+     * @return (boolean) True if the body is in binary form
+     */
+    static boolean isBinary(byte[] body) {
+        return body.length > 0 && body[0] == MARKER;
+    }
+
+    /**
+     * @param message (Message) A message to be sent
+     * @return (boolean) True if the message has a binary form
+     */
+    static boolean canEncode(Message message) {
+        return message.getBody() instanceof GameState || message.getBody() instanceof GameStateDelta;
+    }
+
+    /**
+     *  Encodes a message that carries a game state or a game state delta.
+     * @param message (Message) The message, its body must be a game state or a game state delta
+     * @return (byte[]) The binary body
+     */
+    static byte[] encode(Message message) {
+        if (message.getBody() instanceof GameStateDelta) return encodeDelta(message);
+        GameState gameState = (GameState) message.getBody();
+        char[] secretWordState = gameState.getSecretWordState();
+        int size = 1 + typeSize(message) + varIntSize(gameState.getScore()) + varIntSize(gameState.getRemainingAttempts())
+                + varIntSize(secretWordState.length) + secretWordState.length;
+        ByteBuffer body = ByteBuffer.allocate(size);
+        body.put(MARKER);
+        putType(body, message);
+        putVarInt(body, gameState.getScore());
+        putVarInt(body, gameState.getRemainingAttempts());
+        putVarInt(body, secretWordState.length);
+        for (char character : secretWordState) {
+            body.put((byte) character);
+        }
+        return body.array();
+    }
+
+    /**
+     *  Encodes a message that carries a game state delta.
+     * @param message (Message) The message, its body must be a game state delta
+     * @return (byte[]) The binary body
+     */
+    private static byte[] encodeDelta(Message message) {
+        GameStateDelta delta = (GameStateDelta) message.getBody();
+        int scoreDelta = zigZag(delta.getScoreDelta());
+        int remainingAttemptsDelta = zigZag(delta.getRemainingAttemptsDelta());
+        int[] revealedPositions = delta.getRevealedPositions();
+        int size = 2 + typeSize(message) + varIntSize(scoreDelta) + varIntSize(remainingAttemptsDelta)
+                + varIntSize(revealedPositions.length);
+        for (int position : revealedPositions) {
+            size += varIntSize(position);
+        }
+        ByteBuffer body = ByteBuffer.allocate(size);
+        body.put(MARKER);
+        putType(body, message);
+        putVarInt(body, scoreDelta);
+        putVarInt(body, remainingAttemptsDelta);
+        body.put((byte) delta.getRevealedCharacter());
+        putVarInt(body, revealedPositions.length);
+        for (int position : revealedPositions) {
+            putVarInt(body, position);
+        }
+        return body.array();
+    }
+
+    /**
+     *  Decodes a binary body. The game state of the message has no word, only its hidden form.
+     * @param body (byte[]) The binary body
+     * @return (Message) The decoded message
+     * @throws ProtocolException If the body is not valid
+     */
+    static Message decode(byte[] body) throws ProtocolException {
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(body, 1, body.length - 1);
+            int type = buffer.get() & 0xFF;
+            int correlationId = (type & CORRELATION_ID_FLAG) != 0 ? getVarInt(buffer) : 0;
+            MessageType messageType = MessageType.fromOpcode(type & ~CORRELATION_ID_FLAG);
+            if (messageType == null) throw new ProtocolException("Unknown message type");
+            if (messageType == MessageType.RESPONSE_GUESS_DELTA) return decodeDelta(buffer, correlationId);
+            int score = getVarInt(buffer);
+            int remainingAttempts = getVarInt(buffer);
+            char[] secretWordState = new char[getVarInt(buffer)];
+            for (int i = 0; i < secretWordState.length; i++) {
+                secretWordState[i] = (char) (buffer.get() & 0xFF);
+            }
+            return new Message(messageType, new GameState(score, remainingAttempts, secretWordState, null), correlationId);
+        } catch (BufferUnderflowException | NegativeArraySizeException exception) {
+            throw new ProtocolException("Truncated binary message");
+        }
+    }
+
+    /**
+     *  Decodes the rest of a binary body that carries a game state delta.
+     * @param buffer (ByteBuffer) The body after the message type
+     * @param correlationId (int) The correlation id of the message
+     * @return (Message) The decoded message
+     * @throws ProtocolException If a number is malformed
+     */
+    private static Message decodeDelta(ByteBuffer buffer, int correlationId) throws ProtocolException {
+        int scoreDelta = unZigZag(getVarInt(buffer));
+        int remainingAttemptsDelta = unZigZag(getVarInt(buffer));
+        char revealedCharacter = (char) (buffer.get() & 0xFF);
+        int[] revealedPositions = new int[getVarInt(buffer)];
+        for (int i = 0; i < revealedPositions.length; i++) {
+            revealedPositions[i] = getVarInt(buffer);
+        }
+        GameStateDelta delta = new GameStateDelta(scoreDelta, remainingAttemptsDelta, revealedCharacter, revealedPositions);
+        return new Message(MessageType.RESPONSE_GUESS_DELTA, delta, correlationId);
+    }
+
+    /**
+     * @param message (Message) A message to be encoded
+     * @return (int) Number of bytes the message type and the correlation id take
+     */
+    private static int typeSize(Message message) {
+        return message.getCorrelationId() == 0 ? 1 : 1 + varIntSize(message.getCorrelationId());
+    }
+
+    /**
+     *  Writes the message type, followed by the correlation id if the message has one.
+     * @param buffer (ByteBuffer) Where the type is written
+     * @param message (Message) The message
+     */
+    private static void putType(ByteBuffer buffer, Message message) {
+        int type = message.getMessageType().getOpcode();
+        if (message.getCorrelationId() == 0) {
+            buffer.put((byte) type);
+        } else {
+            buffer.put((byte) (type | CORRELATION_ID_FLAG));
+            putVarInt(buffer, message.getCorrelationId());
+        }
+    }
+
+    /**
+     * @param value (int) A number
+     * @return (int) The number with the sign moved to the lowest bit
+     */
+    private static int zigZag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    /**
+     * @param value (int) A zigzag encoded number
+     * @return (int) The original number
+     */
+    private static int unZigZag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * @param value (int) A non negative number
+     * @return (int) Number of bytes the number takes as a variable length integer
+     */
+    private static int varIntSize(int value) {
+        int size = 1;
+        while ((value >>>= 7) != 0) {
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     *  Writes a variable length integer, the lowest 7 bits first.
+     * @param buffer (ByteBuffer) Where the number is written
+     * @param value (int) A non negative number
+     */
+    private static void putVarInt(ByteBuffer buffer, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    /**
+     *  Reads a variable length integer.
+     * @param buffer (ByteBuffer) Where the number is read from
+     * @return (int) The number
+     * @throws ProtocolException If the number is longer than an int
+     */
+    private static int getVarInt(ByteBuffer buffer) throws ProtocolException {
+        int value = 0;
+        for (int shift = 0; shift < Integer.SIZE; shift += 7) {
+            byte part = buffer.get();
+            value |= (part & 0x7F) << shift;
+            if ((part & 0x80) == 0) return value;
+        }
+        throw new ProtocolException("Malformed number");
+    }
+}
@@ -0,0 +1,125 @@
+package se.kth.common;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.nio.ByteBuffer;
+
+/**
+ *  A pool of equally sized direct buffers that connections borrow while a read or write is in flight.
+ *  Buffers are cut from slabs, large direct allocations that are made when the pool runs dry,
+ *  until the pool reaches its cap. Past the cap buffers are allocated on the heap and dropped when released.
+ *  Buffers can be acquired and released from any thread.
+ *  acquire()       -   Borrows a cleared buffer.
+ *  release(buffer) -   Gives a borrowed buffer back.
+ */
+public class BufferPool {
+    private static final int BUFFERS_PER_SLAB = 32;
+    private final ConcurrentLinkedQueue<ByteBuffer> freeBuffers = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger slabCount = new AtomicInteger();
+    private final AtomicInteger buffersInUse = new AtomicInteger();
+    private final AtomicInteger peakBuffersInUse = new AtomicInteger();
+    private final AtomicLong overflowAllocations = new AtomicLong();
+    private final int bufferSize;
+    private final int maxSlabs;
+
+    /**
+     *  Creates an empty pool, slabs are allocated the first time they are needed.
+     * @param bufferSize (int) Size in bytes of every buffer in the pool
+     * @param maxPooledBytes (long) The cap on direct memory held by the pool, at least one slab is allowed
+     */
+    public BufferPool(int bufferSize, long maxPooledBytes) {
+        this.bufferSize = bufferSize;
+        long slabSize = (long) bufferSize * BUFFERS_PER_SLAB;
+        maxSlabs = (int) Math.max(1, Math.min(Integer.MAX_VALUE, maxPooledBytes / slabSize));
+    }
+
+    /**
+     * @return (int) Size in bytes of every buffer in the pool.
+     */
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * @return (long) Direct memory in bytes allocated by the pool.
+     */
+    public long getPooledBytes() {
+        return (long) slabCount.get() * BUFFERS_PER_SLAB * bufferSize;
+    }
+
+    /**
+     * @return (int) Number of buffers borrowed right now.
+     */
+    public int getBuffersInUse() {
+        return buffersInUse.get();
+    }
+
+    /**
+     * @return (int) The largest number of buffers that have been borrowed at the same time.
+     */
+    public int getPeakBuffersInUse() {
+        return peakBuffersInUse.get();
+    }
+
+    /**
+     * @return (long) Number of heap buffers handed out because the pool was at its cap.
+     */
+    public long getOverflowAllocations() {
+        return overflowAllocations.get();
+    }
+
+    /**
+     *  Borrows a buffer from the pool. A new slab is allocated if the pool is empty and below its cap.
+     * @return (ByteBuffer) A cleared buffer
+     */
+    public ByteBuffer acquire() {
+        int inUse = buffersInUse.incrementAndGet();
+        if (inUse > peakBuffersInUse.get()) peakBuffersInUse.accumulateAndGet(inUse, Math::max);
+        ByteBuffer buffer = freeBuffers.poll();
+        while (buffer == null) {
+            int slabs = slabCount.get();
+            if (slabs >= maxSlabs) {
+                overflowAllocations.incrementAndGet();
+                return ByteBuffer.allocate(bufferSize);
+            }
+            if (slabCount.compareAndSet(slabs, slabs + 1)) {
+                buffer = allocateSlab();
+            } else {
+                buffer = freeBuffers.poll();
+            }
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     *  Gives a buffer back to the pool. The buffer must not be used after it is released.
+     * @param buffer (ByteBuffer) A buffer borrowed from this pool
+     */
+    public void release(ByteBuffer buffer) {
+        buffersInUse.decrementAndGet();
+        if (buffer.isDirect()) freeBuffers.add(buffer);
+    }
+
+    /**
+     *  Cuts a new slab into buffers and puts all but one of them in the pool.
+     * @return (ByteBuffer) The buffer that was kept out of the pool
+     */
+    private ByteBuffer allocateSlab() {
+        ByteBuffer slab = ByteBuffer.allocateDirect(bufferSize * BUFFERS_PER_SLAB);
+        for (int i = 1; i < BUFFERS_PER_SLAB; i++) {
+            slab.limit((i + 1) * bufferSize).position(i * bufferSize);
+            freeBuffers.add(slab.slice());
+        }
+        slab.limit(bufferSize).position(0);
+        return slab.slice();
+    }
+
+    @Override
+    public String toString() {
+        return "BufferPool{" + "bufferSize=" + bufferSize + ", pooledBytes=" + getPooledBytes()
+                + ", inUse=" + getBuffersInUse() + ", peakInUse=" + getPeakBuffersInUse()
+                + ", overflowAllocations=" + getOverflowAllocations() + '}';
+    }
+}
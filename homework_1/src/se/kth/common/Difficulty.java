@@ -0,0 +1,51 @@
+package se.kth.common;
+
+/**
+ *  The difficulty tiers a client can ask for when it starts a game, e.g. START##hard.
+ *  The difficulty of a word is the number of wrong guesses made by a player who guesses the letters
+ *  from the most to the least common, until every letter of the word is found.
+ */
+public enum Difficulty {
+    /**
+     *  Words found with at most 6 wrong guesses.
+     */
+    EASY(6),
+
+    /**
+     *  Words found with 7 to 12 wrong guesses.
+     */
+    MEDIUM(12),
+
+    /**
+     *  Words that take 13 or more wrong guesses.
+     */
+    HARD(Integer.MAX_VALUE);
+
+    private final int maxScore;
+
+    Difficulty(int maxScore) {
+        this.maxScore = maxScore;
+    }
+
+    /**
+     * @param score (int) The difficulty score of a word, its number of wrong guesses
+     * @return (Difficulty) The tier of the score.
+     */
+    public static Difficulty of(int score) {
+        for (Difficulty difficulty : values()) {
+            if (score <= difficulty.maxScore) return difficulty;
+        }
+        return HARD;
+    }
+
+    /**
+     * @param name (String) The name of a tier in any case
+     * @return (Difficulty) The tier, or null if there is none with the name.
+     */
+    public static Difficulty parse(String name) {
+        for (Difficulty difficulty : values()) {
+            if (difficulty.name().equalsIgnoreCase(name.trim())) return difficulty;
+        }
+        return null;
+    }
+}
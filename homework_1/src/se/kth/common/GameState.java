@@ -16,7 +16,7 @@ public class GameState implements Serializable {
      * @param score (Int) - The score for the state
      * @param remainingAttempts (Int) - The remaining attempts for the state
      * @param secretWordState (Char[]) - The secret version of the word
-     * @param word (String) - The word
+     * @param word (String) - The word, null on the client which only knows the secret version
      */
     public GameState(int score, int remainingAttempts, char[] secretWordState, String word) {
         this.score = score;
@@ -79,6 +79,14 @@ public class GameState implements Serializable {
         this.secretWordState = secretWordState;
     }
 
+    /**
+     *  Makes a copy that doesn't change when this game state changes.
+     * @return (GameState) - The copy
+     */
+    public GameState copy() {
+        return new GameState(score, remainingAttempts, secretWordState.clone(), word);
+    }
+
     /**
      *  Formats the game state in to a printable object.
      * @return (String) - The game state as a formatted string.
@@ -86,7 +94,7 @@ public class GameState implements Serializable {
     @Override
     public String toString() {
         StringBuilder stringBuilder = new StringBuilder();
-        if (!word.equals("")){
+        if (secretWordState.length != 0){
             stringBuilder.append("Word: " + new String(secretWordState));
             stringBuilder.append(" \t Remaining nr attempts: " + remainingAttempts);
         }else {
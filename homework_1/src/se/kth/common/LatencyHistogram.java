@@ -0,0 +1,124 @@
+package se.kth.common;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ *  A histogram of latencies in the style of HDR histograms, with log-linear buckets.
+ *  Every power of two is split into equally wide buckets, so a recorded value is off by
+ *  at most 1/32 of itself, from a nanosecond to hundreds of years.
+ *  Values are recorded without locks from any number of threads, reading gives a view that
+ *  may miss values recorded at the same time.
+ *  record(value)               -   Records one value.
+ *  getValueAtPercentile(p)     -   The value below which p percent of the values are.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int SUB_BUCKET_HALF = SUB_BUCKET_COUNT / 2;
+    private static final int BUCKET_COUNT = SUB_BUCKET_COUNT + (Long.SIZE - 1 - SUB_BUCKET_BITS) * SUB_BUCKET_HALF;
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong max = new AtomicLong();
+    private final LongAdder totalCount = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+
+    /**
+     *  Records one value, negative values are recorded as zero.
+     * @param value (long) The value, usually in nanoseconds
+     */
+    public void record(long value) {
+        value = Math.max(0, value);
+        counts.incrementAndGet(bucketIndex(value));
+        totalCount.increment();
+        sum.add(value);
+        if (value > max.get()) max.accumulateAndGet(value, Math::max);
+    }
+
+    /**
+     *  Adds every value recorded in another histogram to this one.
+     * @param other (LatencyHistogram) The histogram to add
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            long count = other.counts.get(i);
+            if (count != 0) counts.addAndGet(i, count);
+        }
+        totalCount.add(other.getCount());
+        sum.add(other.sum.sum());
+        max.accumulateAndGet(other.getMax(), Math::max);
+    }
+
+    /**
+     * @return (long) Number of recorded values.
+     */
+    public long getCount() {
+        return totalCount.sum();
+    }
+
+    /**
+     * @return (long) The largest recorded value, 0 if nothing has been recorded.
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * @return (double) The mean of the recorded values, 0 if nothing has been recorded.
+     */
+    public double getMean() {
+        long count = getCount();
+        return count == 0 ? 0 : (double) sum.sum() / count;
+    }
+
+    /**
+     *  Finds the value below which the given share of the recorded values are.
+     *  The value is the highest one that falls in the same bucket, so it is never below the exact percentile.
+     * @param percentile (double) The share in percent, between 0 and 100
+     * @return (long) The value, 0 if nothing has been recorded
+     */
+    public long getValueAtPercentile(double percentile) {
+        long count = getCount();
+        if (count == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(Math.min(100, percentile) / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) return Math.min(highestValueInBucket(i), getMax());
+        }
+        return getMax();
+    }
+
+    /**
+     *  Finds the bucket of a value. Values below the number of sub buckets get a bucket each,
+     *  larger values share a bucket with the values that have the same highest bits.
+     * @param value (long) A value that is not negative
+     * @return (int) The index of the bucket
+     */
+    private static int bucketIndex(long value) {
+        if (value < SUB_BUCKET_COUNT) return (int) value;
+        int highestBit = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+        int shift = highestBit - SUB_BUCKET_BITS + 1;
+        int subBucket = (int) (value >>> shift) - SUB_BUCKET_HALF;
+        return SUB_BUCKET_COUNT + (highestBit - SUB_BUCKET_BITS) * SUB_BUCKET_HALF + subBucket;
+    }
+
+    /**
+     * @param index (int) The index of a bucket
+     * @return (long) The highest value that falls in the bucket.
+     */
+    private static long highestValueInBucket(int index) {
+        if (index < SUB_BUCKET_COUNT) return index;
+        int offset = index - SUB_BUCKET_COUNT;
+        int shift = offset / SUB_BUCKET_HALF + 1;
+        long subBucket = offset % SUB_BUCKET_HALF + SUB_BUCKET_HALF;
+        return ((subBucket + 1) << shift) - 1;
+    }
+
+    @Override
+    public String toString() {
+        return "LatencyHistogram{" + "count=" + getCount() + ", mean=" + (long) getMean()
+                + ", p50=" + getValueAtPercentile(50) + ", p99=" + getValueAtPercentile(99)
+                + ", p99.9=" + getValueAtPercentile(99.9) + ", max=" + getMax() + '}';
+    }
+}
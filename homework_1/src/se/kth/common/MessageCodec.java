@@ -0,0 +1,343 @@
+package se.kth.common;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ *  Length-prefixed framing of messages on a stream.
+ *  Every frame is a 4 byte big-endian length followed by that many bytes of serialized message.
+ *  A body is either the text form of the message or, for game states sent to a client that asked
+ *  for it with the binary feature, the compact binary form.
+ *  One codec instance belongs to one connection. Frames are decoded straight from the read buffer,
+ *  only the bytes of a frame that is not complete are copied to a buffer borrowed from the pool,
+ *  which is given back as soon as the frame is complete.
+ *  encode(Message)             -   Frames a message for writing.
+ *  decode(ByteBuffer)          -   Decodes zero, one or many messages from the bytes read.
+ *  decode(ByteBuffer, FrameHandler) -   Hands the frames in the bytes read to a handler, without copying them.
+ *  readFrame(DataInputStream)  -   Reads exactly one message from a blocking stream.
+ *  release()                   -   Gives a borrowed buffer back when the connection is closed.
+ *  Datagrams carry the same frames after a header with the conversation id and the sequence number.
+ *  encodeDatagram(...)         -   Puts the header and the frames of some messages in one datagram.
+ *  decodeFrames(ByteBuffer)    -   Decodes the frames of a datagram, which are always complete.
+ */
+public class MessageCodec {
+    /**
+     *  Number of bytes used for the length prefix.
+     */
+    public static final int LENGTH_FIELD_SIZE = 4;
+
+    /**
+     *  Size of the buffers a connection reads into, a whole frame always fits in one.
+     */
+    public static final int FRAME_BUFFER_SIZE = 8192;
+
+    /**
+     *  Largest accepted frame body, bigger frames are treated as a broken connection.
+     */
+    public static final int MAX_FRAME_SIZE = FRAME_BUFFER_SIZE - LENGTH_FIELD_SIZE;
+
+    /**
+     *  Feature asked for in the HELLO message to receive game states in binary form.
+     */
+    public static final String BINARY_FEATURE = "binary";
+
+    /**
+     *  Feature asked for in the HELLO message to receive guess responses as deltas, needs the binary feature.
+     */
+    public static final String DELTA_FEATURE = "delta";
+
+    /**
+     *  Feature asked for in the HELLO message as session=ID, to have the next new session use ID as its token.
+     *  It lets a cluster router choose the token, so the node of a session can be found from its token.
+     */
+    public static final String SESSION_FEATURE = "session=";
+
+    /**
+     *  Feature sent in the HELLO message as secret=SECRET by a cluster router, a node only takes the session
+     *  id asked for from a connection that knows the secret of the cluster.
+     */
+    public static final String SECRET_FEATURE = "secret=";
+
+    /**
+     *  Separates the guesses in the body of a GUESS_BATCH message.
+     */
+    public static final char GUESS_SEPARATOR = ',';
+
+    /**
+     *  Size of the datagram header, an 8 byte conversation id followed by a 4 byte sequence number.
+     */
+    public static final int DATAGRAM_HEADER_SIZE = 12;
+
+    /**
+     *  Largest datagram that is sent, the largest UDP payload over IPv4.
+     */
+    public static final int MAX_DATAGRAM_SIZE = 65507;
+
+    private final BufferPool bufferPool;
+    private ByteBuffer partialFrame;
+
+    /**
+     *  Creates a codec for one connection.
+     * @param bufferPool (BufferPool) Pool with buffers of at least FRAME_BUFFER_SIZE bytes
+     */
+    public MessageCodec(BufferPool bufferPool) {
+        if (bufferPool.getBufferSize() < FRAME_BUFFER_SIZE) {
+            throw new IllegalArgumentException("Pooled buffers are smaller than a frame");
+        }
+        this.bufferPool = bufferPool;
+    }
+
+    /**
+     *  Frames a message for writing.
+     * @param message (Message) The message to be framed
+     * @return (ByteBuffer) The frame, ready to be written
+     */
+    public static ByteBuffer encode(Message message) {
+        byte[] body = encodeBody(message);
+        ByteBuffer frame = ByteBuffer.allocate(LENGTH_FIELD_SIZE + body.length);
+        frame.putInt(body.length);
+        frame.put(body);
+        frame.flip();
+        return frame;
+    }
+
+    /**
+     *  Serializes the body of a frame in text form, for writers that add the length prefix themselves.
+     * @param message (Message) The message to be serialized
+     * @return (byte[]) The body of the frame
+     */
+    public static byte[] encodeBody(Message message) {
+        return encodeBody(message, false);
+    }
+
+    /**
+     *  Serializes the body of a frame, for writers that add the length prefix themselves.
+     * @param message (Message) The message to be serialized
+     * @param binary (boolean) True to use the binary form for messages that have one
+     * @return (byte[]) The body of the frame
+     */
+    public static byte[] encodeBody(Message message, boolean binary) {
+        if (binary && BinaryEncoding.canEncode(message)) {
+            return BinaryEncoding.encode(message);
+        }
+        return Message.serialize(message).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     *  Reads one frame from a blocking stream, waiting until all of it has arrived.
+     * @param input (DataInputStream) The stream to read from
+     * @return (Message) The decoded message
+     * @throws IOException If the stream is closed or a frame is invalid
+     */
+    public static Message readFrame(DataInputStream input) throws IOException {
+        int frameLength = checkFrameLength(input.readInt());
+        byte[] body = new byte[frameLength];
+        input.readFully(body);
+        return decodeBody(body);
+    }
+
+    /**
+     *  Puts the messages of one request or response in a datagram, after the datagram header.
+     * @param conversationId (long) The id of the conversation the datagram belongs to
+     * @param sequence (int) The sequence number of the request, a response carries the one of its request
+     * @param messages (List) The messages, may be empty
+     * @param binary (boolean) True to use the binary form for messages that have one
+     * @return (ByteBuffer) The datagram, ready to be sent
+     * @throws ProtocolException If the messages don't fit in MAX_DATAGRAM_SIZE bytes
+     */
+    public static ByteBuffer encodeDatagram(long conversationId, int sequence, List<Message> messages, boolean binary)
+            throws ProtocolException {
+        List<byte[]> bodies = new ArrayList<>(messages.size());
+        int datagramSize = DATAGRAM_HEADER_SIZE;
+        for (Message message : messages) {
+            byte[] body = encodeBody(message, binary);
+            bodies.add(body);
+            datagramSize += LENGTH_FIELD_SIZE + body.length;
+        }
+        if (datagramSize > MAX_DATAGRAM_SIZE) {
+            throw new ProtocolException("Datagram of " + datagramSize + " bytes is too large");
+        }
+        ByteBuffer datagram = ByteBuffer.allocate(datagramSize);
+        datagram.putLong(conversationId);
+        datagram.putInt(sequence);
+        for (byte[] body : bodies) {
+            datagram.putInt(body.length);
+            datagram.put(body);
+        }
+        datagram.flip();
+        return datagram;
+    }
+
+    /**
+     *  Decodes the frames of a buffer that holds only complete frames, such as the rest of a datagram after its header.
+     * @param input (ByteBuffer) The frames, ready to be read from
+     * @return (List) The decoded messages, may be empty
+     * @throws ProtocolException If a frame has an invalid length or is cut off
+     */
+    public static List<Message> decodeFrames(ByteBuffer input) throws ProtocolException {
+        List<Message> messages = new ArrayList<>();
+        extractFrames(input, (buffer, offset, length) -> messages.add(decodeBody(buffer, offset, length)));
+        if (input.hasRemaining()) {
+            throw new ProtocolException("Incomplete frame in datagram");
+        }
+        return messages;
+    }
+
+    /**
+     *  Decodes all complete frames from the read bytes.
+     *  Bytes of a frame that is not complete are kept until the next call.
+     * @param input (ByteBuffer) The bytes read from the channel, ready to be read from
+     * @return (List) The decoded messages, may be empty
+     * @throws ProtocolException If a frame has an invalid length
+     */
+    public List<Message> decode(ByteBuffer input) throws ProtocolException {
+        List<Message> messages = new ArrayList<>();
+        decode(input, (buffer, offset, length) -> messages.add(decodeBody(buffer, offset, length)));
+        return messages;
+    }
+
+    /**
+     *  Hands every complete frame in the read bytes to a frame handler, without copying it.
+     *  Bytes of a frame that is not complete are kept until the next call.
+     * @param input (ByteBuffer) The bytes read from the channel, ready to be read from
+     * @param frameHandler (FrameHandler) Gets the body of every complete frame
+     * @throws ProtocolException If a frame has an invalid length, or the frame handler can't decode a frame
+     */
+    public void decode(ByteBuffer input, FrameHandler frameHandler) throws ProtocolException {
+        if (partialFrame != null) completePartialFrame(input, frameHandler);
+        if (partialFrame == null) {
+            extractFrames(input, frameHandler);
+            if (input.hasRemaining()) {
+                partialFrame = bufferPool.acquire();
+                partialFrame.put(input);
+            }
+        }
+    }
+
+    /**
+     *  Gives the buffer of a partial frame back to the pool, the partial frame is dropped.
+     */
+    public void release() {
+        if (partialFrame != null) {
+            bufferPool.release(partialFrame);
+            partialFrame = null;
+        }
+    }
+
+    /**
+     *  Copies read bytes to the partial frame until it is complete or the bytes run out.
+     *  A completed frame is decoded and its buffer given back.
+     * @param input (ByteBuffer) The bytes read from the channel
+     * @param frameHandler (FrameHandler) Gets the completed frame
+     * @throws ProtocolException If the frame has an invalid length
+     */
+    private void completePartialFrame(ByteBuffer input, FrameHandler frameHandler) throws ProtocolException {
+        if (partialFrame.position() < LENGTH_FIELD_SIZE) {
+            copy(input, LENGTH_FIELD_SIZE - partialFrame.position());
+            if (partialFrame.position() < LENGTH_FIELD_SIZE) return;
+        }
+        int frameLength = checkFrameLength(partialFrame.getInt(0));
+        copy(input, LENGTH_FIELD_SIZE + frameLength - partialFrame.position());
+        if (partialFrame.position() < LENGTH_FIELD_SIZE + frameLength) return;
+        partialFrame.flip();
+        try {
+            extractFrames(partialFrame, frameHandler);
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     *  Copies at most the given number of bytes from the input to the partial frame.
+     * @param input (ByteBuffer) The bytes read from the channel
+     * @param maxBytes (int) Largest number of bytes to copy
+     */
+    private void copy(ByteBuffer input, int maxBytes) {
+        int bytesToCopy = Math.min(input.remaining(), maxBytes);
+        ByteBuffer slice = input.duplicate();
+        slice.limit(slice.position() + bytesToCopy);
+        partialFrame.put(slice);
+        input.position(input.position() + bytesToCopy);
+    }
+
+    /**
+     *  Extracts the complete frames in a buffer, which must be ready to be read from.
+     *  The bytes of an incomplete frame at the end are left in the buffer.
+     * @param buffer (ByteBuffer) The frames
+     * @param frameHandler (FrameHandler) Gets the body of every complete frame
+     * @throws ProtocolException If a frame has an invalid length
+     */
+    private static void extractFrames(ByteBuffer buffer, FrameHandler frameHandler) throws ProtocolException {
+        while (buffer.remaining() >= LENGTH_FIELD_SIZE) {
+            int frameLength = checkFrameLength(buffer.getInt(buffer.position()));
+            if (buffer.remaining() < LENGTH_FIELD_SIZE + frameLength) return;
+            int bodyOffset = buffer.position() + LENGTH_FIELD_SIZE;
+            frameHandler.onFrame(buffer, bodyOffset, frameLength);
+            buffer.position(bodyOffset + frameLength);
+        }
+    }
+
+    /**
+     *  Checks that a frame length is within the limits.
+     * @param frameLength (int) The length read from the length prefix
+     * @return (int) The same length
+     * @throws ProtocolException If the length is invalid
+     */
+    private static int checkFrameLength(int frameLength) throws ProtocolException {
+        if (frameLength < 0 || frameLength > MAX_FRAME_SIZE) {
+            throw new ProtocolException("Invalid frame length: " + frameLength);
+        }
+        return frameLength;
+    }
+
+    /**
+     *  Copies the body of a frame out of a buffer and decodes it.
+     * @param buffer (ByteBuffer) The buffer holding the frame
+     * @param offset (int) Index of the first byte of the body
+     * @param length (int) Number of bytes in the body
+     * @return (Message) The decoded message
+     * @throws ProtocolException If the message type is unknown
+     */
+    private static Message decodeBody(ByteBuffer buffer, int offset, int length) throws ProtocolException {
+        byte[] body = new byte[length];
+        buffer.get(offset, body);
+        return decodeBody(body);
+    }
+
+    /**
+     *  Decodes the body of a frame.
+     * @param body (byte[]) The serialized message
+     * @return (Message) The decoded message
+     * @throws ProtocolException If the message type is unknown
+     */
+    private static Message decodeBody(byte[] body) throws ProtocolException {
+        if (BinaryEncoding.isBinary(body)) {
+            return BinaryEncoding.decode(body);
+        }
+        try {
+            return Message.deserialize(new String(body, StandardCharsets.UTF_8));
+        } catch (IllegalArgumentException exception) {
+            throw new ProtocolException("Unknown message type");
+        }
+    }
+
+    /**
+     *  Gets the frames decoded from the read bytes, one call per frame in the order they were read.
+     *  The frame is only valid during the call, the buffer may be reused or given back afterwards.
+     */
+    public interface FrameHandler {
+
+        /**
+         * @param buffer (ByteBuffer) The buffer holding the frame, its position and limit must be left as they are
+         * @param offset (int) Index of the first byte of the frame body
+         * @param length (int) Number of bytes in the frame body
+         * @throws ProtocolException If the frame can't be decoded
+         */
+        void onFrame(ByteBuffer buffer, int offset, int length) throws ProtocolException;
+    }
+}
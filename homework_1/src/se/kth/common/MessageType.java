@@ -2,31 +2,119 @@ package se.kth.common;
 
 /**
  *  The different message types used by the server and client.
+ *  Every type has a fixed opcode that identifies it in binary bodies, a new type gets the next free one
+ *  and the opcode of a type never changes, so it doesn't depend on the order of the types.
  */
 public enum  MessageType {
     /**
      *  Message to start the game, from client to server
+     *  The body may ask for the word, with a difficulty like hard or a word length, empty for any word.
      */
-    START,
+    START(0),
 
     /**
      *  Message to guess a character or word, from client to server
      */
-    GUESS,
+    GUESS(1),
 
     /**
      *  Message to quit, from client to server
      */
-    QUIT,
+    QUIT(2),
+
+    /**
+     *  Message sent first after connecting, from client to server.
+     *  The body is a comma separated list of the protocol features the client wants.
+     */
+    HELLO(3),
+
+    /**
+     *  Keepalive probe, sent by the server to idle clients and answered with PONG.
+     *  Clients may send it as well.
+     */
+    PING(4),
+
+    /**
+     *  Answer to PING, carrying the same body.
+     */
+    PONG(5),
+
+    /**
+     *  Asks the server for its metrics.
+     */
+    STATS(6),
+
+    /**
+     *  Asks the server to resume a session after reconnecting, the body is the token of the session.
+     */
+    RESUME(7),
 
     /**
      *  Response message from server
      */
-    RESPONSE_START,
+    RESPONSE_START(8),
 
     /**
      *  Response message from server
      */
-    RESPONSE_GUESS
+    RESPONSE_GUESS(9),
 
+    /**
+     *  Response to HELLO from server, the body lists the features that are used from now on.
+     */
+    RESPONSE_HELLO(10),
+
+    /**
+     *  Response to a guess from server that only has the changes to the game state,
+     *  sent instead of RESPONSE_GUESS when the client asked for deltas and the word didn't change.
+     */
+    RESPONSE_GUESS_DELTA(11),
+
+    /**
+     *  Response to STATS with the metrics of the server as text.
+     */
+    RESPONSE_STATS(12),
+
+    /**
+     *  Hands the client the token of its session, sent on the first START and on RESUME.
+     *  The body is empty when a session couldn't be resumed.
+     */
+    RESPONSE_SESSION(13),
+
+    /**
+     *  Message to make several guesses at once, from client to server.
+     *  The body lists characters and words separated by commas, they are applied in order
+     *  until one of them ends the game. Answered with one RESPONSE_GUESS with the resulting game state.
+     */
+    GUESS_BATCH(14);
+
+    private static final int MAX_OPCODE = 0x7F;
+    private static final MessageType[] BY_OPCODE = new MessageType[MAX_OPCODE + 1];
+
+    static {
+        for (MessageType messageType : values()) {
+            BY_OPCODE[messageType.opcode] = messageType;
+        }
+    }
+
+    private final int opcode;
+
+    MessageType(int opcode) {
+        this.opcode = opcode;
+    }
+
+    /**
+     * @return (int) The opcode of the type in binary bodies, between 0 and 127.
+     */
+    public int getOpcode() {
+        return opcode;
+    }
+
+    /**
+     * @param opcode (int) An opcode from a binary body
+     * @return (MessageType) The type with the opcode, or null if there is none.
+     */
+    public static MessageType fromOpcode(int opcode) {
+        return opcode >= 0 && opcode <= MAX_OPCODE ? BY_OPCODE[opcode] : null;
+    }
 }
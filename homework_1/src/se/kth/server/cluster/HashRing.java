@@ -0,0 +1,82 @@
+package se.kth.server.cluster;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ *  A consistent hash ring of the nodes of a cluster. Every node is placed on the ring at many points,
+ *  a key belongs to the node of the first point at or after the hash of the key.
+ *  When a node joins or leaves only the keys next to its points change node.
+ *  The ring can't be changed, a new ring is made when the nodes change.
+ *  nodeFor(key)    -   The node a key belongs to.
+ *  getNodes()      -   The nodes on the ring.
+ */
+final class HashRing {
+    private static final int POINTS_PER_NODE = 160;
+    private final List<InetSocketAddress> nodes;
+    private final long[] points;
+    private final int[] owners;
+
+    /**
+     *  Places the nodes on the ring.
+     * @param nodes (List) The nodes of the cluster
+     */
+    HashRing(List<InetSocketAddress> nodes) {
+        this.nodes = Collections.unmodifiableList(new ArrayList<>(nodes));
+        long[][] placed = new long[nodes.size() * POINTS_PER_NODE][];
+        for (int node = 0; node < nodes.size(); node++) {
+            String name = nodes.get(node).getHostString() + ":" + nodes.get(node).getPort() + "#";
+            for (int point = 0; point < POINTS_PER_NODE; point++) {
+                placed[node * POINTS_PER_NODE + point] = new long[]{hash(name + point), node};
+            }
+        }
+        Arrays.sort(placed, (first, second) -> Long.compare(first[0], second[0]));
+        points = new long[placed.length];
+        owners = new int[placed.length];
+        for (int i = 0; i < placed.length; i++) {
+            points[i] = placed[i][0];
+            owners[i] = (int) placed[i][1];
+        }
+    }
+
+    /**
+     * @param key (String) A key, the session id
+     * @return (InetSocketAddress) The node the key belongs to, or null if the ring is empty.
+     */
+    InetSocketAddress nodeFor(String key) {
+        if (points.length == 0) return null;
+        int index = Arrays.binarySearch(points, hash(key));
+        if (index < 0) index = -index - 1;
+        if (index == points.length) index = 0;
+        return nodes.get(owners[index]);
+    }
+
+    /**
+     * @return (List) The nodes on the ring.
+     */
+    List<InetSocketAddress> getNodes() {
+        return nodes;
+    }
+
+    /**
+     *  Hashes a string to 64 bits, FNV-1a followed by the finalizer of MurmurHash3 to spread the bits.
+     * @param key (String) The string
+     * @return (long) The hash
+     */
+    static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
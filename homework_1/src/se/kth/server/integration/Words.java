@@ -1,24 +1,58 @@
 package se.kth.server.integration;
 
-import java.io.BufferedReader;
+import se.kth.common.Difficulty;
+import se.kth.server.log.Logger;
+import se.kth.server.log.Log;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.*;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
  *  Takes care of the selection of a word for the game
+ *  Every word has an index, so a game can be stored with the index instead of the word.
+ *  The words are read from the dictionary compiled by WordsCompiler, which is mapped into memory
+ *  instead of being loaded on the heap. A dictionary that is missing or older than the word list
+ *  is compiled from the word list first, if it can't be written the compiled words are kept on the heap.
+ *  Picking a word is an index lookup, only the chosen word becomes a string.
+ *  The words are also bucketed by length, by number of distinct letters and by difficulty when they are
+ *  loaded, so a word with one of those properties is picked from its bucket without looking at the others.
+ *  The difficulty score of a word is the number of wrong guesses of a player who guesses the letters in
+ *  the order of how many words they are in, other characters than a to z count as the rarest letters.
  */
 public class Words {
-    private final List<String> WORDS = new ArrayList<>();
-    private final String WORDS_PATH = "/assets/words.txt";
-    private final String PATH = System.getProperty("user.dir") + WORDS_PATH;
+    static final String TEXT_PATH = System.getProperty("user.dir") + "/assets/words.txt";
+    static final String DICTIONARY_PATH = System.getProperty("user.dir") + "/assets/words.dict";
+    private static final Logger LOG = Log.getLogger("game");
+    private static final int ALPHABET_SIZE = 26;
+    private static final int[] NO_WORDS = {};
+    private final ByteBuffer dictionary;
+    private final int wordCount;
+    private final int tableSize;
+    private final int tableStart;
+    private final int wordsStart;
+    private int[][] wordsByLength;
+    private int[][] wordsByDistinctLetters;
+    private int[][] wordsByDifficulty;
 
     /**
-     *  Creates an instance of the word class and loads the words.
+     *  Creates an instance of the word class and maps the words.
      */
     public Words() {
-        loadWords();
+        dictionary = loadDictionary();
+        wordCount = dictionary.getInt(8);
+        tableSize = dictionary.getInt(12);
+        tableStart = WordsCompiler.HEADER_SIZE + (wordCount + 1) * Integer.BYTES;
+        wordsStart = tableStart + tableSize * Integer.BYTES;
+        buildIndexes();
     }
 
     /**
@@ -26,26 +60,266 @@ public class Words {
      * @return  a random word.
      */
     public String getRandomWord(){
-        Random random = new Random();
-        return WORDS.get(random.nextInt(WORDS.size())).toLowerCase();
+        return getWord(ThreadLocalRandom.current().nextInt(wordCount));
     }
 
     /**
-     *  Will load the words from the word file.
-     *  And put all word instances in a list.
+     * @param difficulty The difficulty tier.
+     * @return a random word of the tier, or null if there is none.
      */
-    private void loadWords(){
+    public String getRandomWord(Difficulty difficulty){
+        return getRandomWord(wordsByDifficulty[difficulty.ordinal()]);
+    }
+
+    /**
+     * @param length The number of characters.
+     * @return a random word of the length, or null if there is none.
+     */
+    public String getRandomWordOfLength(int length){
+        return getRandomWord(length >= 0 && length < wordsByLength.length ? wordsByLength[length] : NO_WORDS);
+    }
+
+    /**
+     * @param distinctLetters The number of different characters.
+     * @return a random word with that many different characters, or null if there is none.
+     */
+    public String getRandomWordWithDistinctLetters(int distinctLetters){
+        boolean indexed = distinctLetters >= 0 && distinctLetters < wordsByDistinctLetters.length;
+        return getRandomWord(indexed ? wordsByDistinctLetters[distinctLetters] : NO_WORDS);
+    }
+
+    /**
+     * @return the number of words.
+     */
+    public int size(){
+        return wordCount;
+    }
+
+    /**
+     * @param word A word in lower case.
+     * @return the index of the word, or -1 if it isn't in the list.
+     */
+    public int indexOf(String word){
+        byte[] wordBytes = word.getBytes(StandardCharsets.UTF_8);
+        int slot = slotOf(word.hashCode(), tableSize);
+        int entry;
+        while ((entry = dictionary.getInt(tableStart + slot * Integer.BYTES)) != 0){
+            if (equals(dictionary, wordsStart, entry - 1, wordBytes)) return entry - 1;
+            slot = (slot + 1) & (tableSize - 1);
+        }
+        return -1;
+    }
+
+    /**
+     * @param index The index of a word.
+     * @return the word in lower case.
+     */
+    public String getWord(int index){
+        int offset = offsetOf(dictionary, index);
+        byte[] wordBytes = new byte[offsetOf(dictionary, index + 1) - offset];
+        dictionary.get(wordsStart + offset, wordBytes);
+        return new String(wordBytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param bucket The indexes of some words.
+     * @return one of the words at random, or null if there are none.
+     */
+    private String getRandomWord(int[] bucket){
+        return bucket.length == 0 ? null : getWord(bucket[ThreadLocalRandom.current().nextInt(bucket.length)]);
+    }
+
+    /**
+     *  Buckets the words by length, number of distinct letters and difficulty.
+     *  The letters of every word are read once from the dictionary bytes to find its properties,
+     *  the letter frequencies of all words give the order of the guesses the difficulty is scored with.
+     *  Characters outside a to z are told apart by their UTF-8 bytes, so a repeated one is counted once.
+     */
+    private void buildIndexes(){
+        int[] lengths = new int[wordCount];
+        int[] distinctLetters = new int[wordCount];
+        int[] letterMasks = new int[wordCount];
+        boolean[] otherCharacters = new boolean[wordCount];
+        int[] wordsWithLetter = new int[ALPHABET_SIZE];
+        Set<Integer> distinctOthers = new HashSet<>();
+        for (int i = 0; i < wordCount; i++) {
+            int offset = offsetOf(dictionary, i);
+            int end = offsetOf(dictionary, i + 1);
+            while (offset < end) {
+                byte character = dictionary.get(wordsStart + offset++);
+                lengths[i]++;
+                if (character >= 'a' && character <= 'z'){
+                    letterMasks[i] |= 1 << (character - 'a');
+                    continue;
+                }
+                int other = character & 0xFF;
+                while (offset < end && (dictionary.get(wordsStart + offset) & 0xC0) == 0x80) {
+                    other = other << 8 | dictionary.get(wordsStart + offset++) & 0xFF;
+                }
+                distinctOthers.add(other);
+            }
+            otherCharacters[i] = !distinctOthers.isEmpty();
+            distinctLetters[i] = Integer.bitCount(letterMasks[i]) + distinctOthers.size();
+            distinctOthers.clear();
+            for (int letter = 0; letter < ALPHABET_SIZE; letter++) {
+                if ((letterMasks[i] & (1 << letter)) != 0) wordsWithLetter[letter]++;
+            }
+        }
+        int[] guessOrder = guessOrderOf(wordsWithLetter);
+        int[] difficulties = new int[wordCount];
+        for (int i = 0; i < wordCount; i++) {
+            int guesses = 0;
+            for (int letter = 0; letter < ALPHABET_SIZE; letter++) {
+                if ((letterMasks[i] & (1 << letter)) != 0) guesses = Math.max(guesses, guessOrder[letter] + 1);
+            }
+            if (otherCharacters[i]) guesses = ALPHABET_SIZE;
+            difficulties[i] = Difficulty.of(Math.max(0, guesses - distinctLetters[i])).ordinal();
+        }
+        wordsByLength = bucket(lengths, 0);
+        wordsByDistinctLetters = bucket(distinctLetters, 0);
+        wordsByDifficulty = bucket(difficulties, Difficulty.values().length);
+    }
+
+    /**
+     * @param wordsWithLetter The number of words each letter from a to z is in.
+     * @return the position of each letter in the order of guesses, the letter in most words first.
+     */
+    private static int[] guessOrderOf(int[] wordsWithLetter){
+        int[] guessOrder = new int[ALPHABET_SIZE];
+        for (int letter = 0; letter < ALPHABET_SIZE; letter++) {
+            for (int other = 0; other < ALPHABET_SIZE; other++) {
+                if (wordsWithLetter[other] > wordsWithLetter[letter]
+                        || (wordsWithLetter[other] == wordsWithLetter[letter] && other < letter)){
+                    guessOrder[letter]++;
+                }
+            }
+        }
+        return guessOrder;
+    }
+
+    /**
+     * @param keys A key for every word.
+     * @param minBuckets The least number of buckets, there are more if a key is larger.
+     * @return the indexes of the words grouped by key, the words with key k are in element k.
+     */
+    private static int[][] bucket(int[] keys, int minBuckets){
+        int maxKey = minBuckets - 1;
+        for (int key : keys) {
+            maxKey = Math.max(maxKey, key);
+        }
+        int[] sizes = new int[maxKey + 1];
+        for (int key : keys) {
+            sizes[key]++;
+        }
+        int[][] buckets = new int[maxKey + 1][];
+        for (int key = 0; key <= maxKey; key++) {
+            buckets[key] = sizes[key] == 0 ? NO_WORDS : new int[sizes[key]];
+            sizes[key] = 0;
+        }
+        for (int i = 0; i < keys.length; i++) {
+            buckets[keys[i]][sizes[keys[i]]++] = i;
+        }
+        return buckets;
+    }
+
+    /**
+     * @param hash The String hash of a word.
+     * @param tableSize The number of slots of the hash table, a power of two.
+     * @return the slot where the search for the word starts.
+     */
+    static int slotOf(int hash, int tableSize){
+        return (hash ^ (hash >>> 16)) & (tableSize - 1);
+    }
+
+    /**
+     * @param dictionary A compiled dictionary.
+     * @param wordsStart Where the word bytes of the dictionary start.
+     * @param index The index of a word in the dictionary.
+     * @param wordBytes The UTF-8 bytes of a word.
+     * @return true if the word at the index has the bytes.
+     */
+    static boolean equals(ByteBuffer dictionary, int wordsStart, int index, byte[] wordBytes){
+        int offset = offsetOf(dictionary, index);
+        if (offsetOf(dictionary, index + 1) - offset != wordBytes.length) return false;
+        for (int i = 0; i < wordBytes.length; i++) {
+            if (dictionary.get(wordsStart + offset + i) != wordBytes[i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @param dictionary A compiled dictionary.
+     * @param index The index of a word, or the number of words for the end of the last word.
+     * @return where the word starts in the word bytes.
+     */
+    private static int offsetOf(ByteBuffer dictionary, int index){
+        return dictionary.getInt(WordsCompiler.HEADER_SIZE + index * Integer.BYTES);
+    }
+
+    /**
+     *  Maps the dictionary, compiling it from the word list first when it is missing or outdated.
+     * @return the dictionary.
+     */
+    private ByteBuffer loadDictionary(){
+        Path textPath = Paths.get(TEXT_PATH);
+        Path dictionaryPath = Paths.get(DICTIONARY_PATH);
         try {
-            BufferedReader reader = Files.newBufferedReader(Paths.get(PATH));
-            String line = reader.readLine();
-            while (line != null){
-                line = line.replaceAll("\n", "");
-                String[] lineComponents = line.split(" ");
-                Collections.addAll(WORDS, lineComponents);
-                line = reader.readLine();
+            if (isUpToDate(dictionaryPath, textPath)){
+                ByteBuffer dictionary = map(dictionaryPath);
+                if (dictionary != null) return dictionary;
+                LOG.warn("The dictionary {} is not valid, it is compiled again.", DICTIONARY_PATH);
+            }
+            if (!Files.exists(textPath)){
+                LOG.error("Word file not found: {}", TEXT_PATH);
+                return WordsCompiler.compile(List.of());
+            }
+            try {
+                WordsCompiler.compile(textPath, dictionaryPath);
+                LOG.info("Compiled the words into {}.", DICTIONARY_PATH);
+                ByteBuffer dictionary = map(dictionaryPath);
+                if (dictionary != null) return dictionary;
+            } catch (IOException exception) {
+                LOG.warn("Unable to write the dictionary {}, the words are kept on the heap.", DICTIONARY_PATH);
             }
+            return WordsCompiler.compile(WordsCompiler.readWords(textPath));
         } catch (IOException e) {
-            System.err.println("Word file not found.");
+            LOG.error("Unable to read the words: {}", e.getMessage());
+            return WordsCompiler.compile(List.of());
+        }
+    }
+
+    /**
+     * @param dictionaryPath The compiled dictionary.
+     * @param textPath The word list.
+     * @return true if the dictionary exists and the word list hasn't changed after it was compiled.
+     * @throws IOException When the files can't be read
+     */
+    private static boolean isUpToDate(Path dictionaryPath, Path textPath) throws IOException {
+        return Files.exists(dictionaryPath) && (!Files.exists(textPath)
+                || Files.getLastModifiedTime(textPath).compareTo(Files.getLastModifiedTime(dictionaryPath)) <= 0);
+    }
+
+    /**
+     *  Maps a dictionary read only, the mapping stays valid after the channel is closed.
+     * @param dictionaryPath The compiled dictionary.
+     * @return the dictionary, or null if it isn't a dictionary of this version.
+     * @throws IOException When the dictionary can't be mapped
+     */
+    private static ByteBuffer map(Path dictionaryPath) throws IOException {
+        try (FileChannel channel = FileChannel.open(dictionaryPath, StandardOpenOption.READ)) {
+            ByteBuffer dictionary = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (dictionary.capacity() < WordsCompiler.HEADER_SIZE || dictionary.getInt(0) != WordsCompiler.MAGIC
+                    || dictionary.getInt(4) != WordsCompiler.VERSION) {
+                return null;
+            }
+            long wordCount = dictionary.getInt(8);
+            long tableSize = dictionary.getInt(12);
+            long wordsStart = WordsCompiler.HEADER_SIZE + (wordCount + 1 + tableSize) * Integer.BYTES;
+            if (wordCount < 0 || Long.bitCount(tableSize) != 1 || tableSize <= wordCount || wordsStart > dictionary.capacity()
+                    || wordsStart + dictionary.getInt((int) (WordsCompiler.HEADER_SIZE + wordCount * Integer.BYTES)) != dictionary.capacity()) {
+                return null;
+            }
+            return dictionary;
         }
     }
 }
@@ -0,0 +1,135 @@
+package se.kth.server.integration;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ *  Compiles the word list into the dictionary that Words maps into memory.
+ *  The dictionary holds the lower cased words as UTF-8 bytes one after the other, with a table of where
+ *  every word starts and a hash table from word to index. All numbers are big-endian ints.
+ *  header          -   MAGIC, VERSION, number of words, number of hash table slots.
+ *  offsets         -   Number of words + 1 offsets into the word bytes, word i ends where word i + 1 starts.
+ *  hash table      -   Power of two number of slots holding the index of a word + 1, 0 for an empty slot.
+ *                      A word is in the first free slot from the spread String hash of it, later
+ *                      duplicates of a word are left out so indexOf finds the first one.
+ *  word bytes      -   The words.
+ *  Run it with the word list and the dictionary to write, they default to assets/words.txt and
+ *  assets/words.dict in the working directory. Words compiles a missing or outdated dictionary itself.
+ */
+public class WordsCompiler {
+    static final int MAGIC = 0x484D5744;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 4 * Integer.BYTES;
+
+    /**
+     *  Compiles a word list into a dictionary file.
+     * @param args The word list and the dictionary file, both optional
+     */
+    public static void main(String[] args) {
+        Path textPath = Paths.get(args.length > 0 ? args[0] : Words.TEXT_PATH);
+        Path dictionaryPath = Paths.get(args.length > 1 ? args[1] : Words.DICTIONARY_PATH);
+        try {
+            long start = System.nanoTime();
+            int wordCount = compile(textPath, dictionaryPath).getInt(8);
+            System.out.println("Compiled " + wordCount + " words into " + dictionaryPath + " in "
+                    + (System.nanoTime() - start) / 1_000_000 + " ms");
+        } catch (IOException exception) {
+            System.err.println("Unable to compile the words: " + exception.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     *  Compiles a word list and writes the dictionary, through a temporary file so that a server mapping
+     *  the dictionary never sees half of it. Every call has a temporary file of its own, so server processes
+     *  that start together can compile at the same time, the last one to finish replaces the dictionary.
+     * @param textPath (Path) The word list, words are separated by line breaks or spaces
+     * @param dictionaryPath (Path) Where the dictionary is written
+     * @return (ByteBuffer) The dictionary that was written
+     * @throws IOException When the word list can't be read or the dictionary can't be written
+     */
+    static ByteBuffer compile(Path textPath, Path dictionaryPath) throws IOException {
+        ByteBuffer dictionary = compile(readWords(textPath));
+        Path directory = dictionaryPath.toAbsolutePath().getParent();
+        Path temporaryPath = Files.createTempFile(directory, dictionaryPath.getFileName().toString(), ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(temporaryPath, StandardOpenOption.WRITE)) {
+                while (dictionary.hasRemaining()) {
+                    channel.write(dictionary);
+                }
+            }
+            Files.move(temporaryPath, dictionaryPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporaryPath);
+        }
+        return dictionary.rewind();
+    }
+
+    /**
+     *  Compiles words into a dictionary in memory.
+     * @param words (List) The words, they are lower cased
+     * @return (ByteBuffer) The dictionary, from its first byte
+     */
+    static ByteBuffer compile(List<String> words) {
+        byte[][] wordBytes = new byte[words.size()][];
+        int byteCount = 0;
+        for (int i = 0; i < wordBytes.length; i++) {
+            wordBytes[i] = words.get(i).toLowerCase(Locale.ROOT).getBytes(StandardCharsets.UTF_8);
+            byteCount += wordBytes[i].length;
+        }
+        int tableSize = Integer.highestOneBit(Math.max(1, wordBytes.length) * 2 - 1) << 1;
+        int offsetsStart = HEADER_SIZE;
+        int tableStart = offsetsStart + (wordBytes.length + 1) * Integer.BYTES;
+        int wordsStart = tableStart + tableSize * Integer.BYTES;
+        ByteBuffer dictionary = ByteBuffer.allocate(wordsStart + byteCount);
+        dictionary.putInt(MAGIC).putInt(VERSION).putInt(wordBytes.length).putInt(tableSize);
+        int offset = 0;
+        for (byte[] word : wordBytes) {
+            dictionary.putInt(offset);
+            dictionary.put(wordsStart + offset, word);
+            offset += word.length;
+        }
+        dictionary.putInt(offset);
+        for (int i = 0; i < wordBytes.length; i++) {
+            int slot = Words.slotOf(new String(wordBytes[i], StandardCharsets.UTF_8).hashCode(), tableSize);
+            while (dictionary.getInt(tableStart + slot * Integer.BYTES) != 0
+                    && !Words.equals(dictionary, wordsStart, dictionary.getInt(tableStart + slot * Integer.BYTES) - 1,
+                    wordBytes[i])) {
+                slot = (slot + 1) & (tableSize - 1);
+            }
+            if (dictionary.getInt(tableStart + slot * Integer.BYTES) == 0) {
+                dictionary.putInt(tableStart + slot * Integer.BYTES, i + 1);
+            }
+        }
+        return dictionary.rewind();
+    }
+
+    /**
+     * @param textPath (Path) The word list
+     * @return (List) The words of the list, in order
+     * @throws IOException When the word list can't be read
+     */
+    static List<String> readWords(Path textPath) throws IOException {
+        List<String> words = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(textPath)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                for (String word : line.split(" ")) {
+                    if (!word.isEmpty()) words.add(word);
+                }
+            }
+        }
+        return words;
+    }
+}
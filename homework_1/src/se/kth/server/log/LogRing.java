@@ -0,0 +1,87 @@
+package se.kth.server.log;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ *  A bounded ring of log records with many producers and one consumer, without locks.
+ *  A producer claims the next sequence with a compare and set, fills the record of its slot
+ *  and publishes it by storing the sequence in the slot. The consumer reads the records
+ *  in sequence order, waiting for a slot to be published before it moves past it.
+ *  When the ring is full the record is dropped and counted, logging never blocks.
+ */
+final class LogRing {
+    private final LogRecord[] records;
+    private final AtomicLongArray published;
+    private final AtomicLong head = new AtomicLong();
+    private final LongAdder droppedRecords = new LongAdder();
+    private final int mask;
+    private volatile long tail;
+
+    /**
+     *  Creates a ring with all its records allocated.
+     * @param capacity (int) Number of records, rounded up to a power of two
+     */
+    LogRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        records = new LogRecord[size];
+        for (int i = 0; i < size; i++) {
+            records[i] = new LogRecord();
+        }
+        published = new AtomicLongArray(size);
+        mask = size - 1;
+    }
+
+    /**
+     *  Adds a record, called by any thread.
+     * @return (boolean) False if the ring was full and the record was dropped
+     */
+    boolean offer(Level level, String category, String template, Object firstArgument, Object secondArgument) {
+        long sequence;
+        do {
+            sequence = head.get();
+            if (sequence - tail >= records.length) {
+                droppedRecords.increment();
+                return false;
+            }
+        } while (!head.compareAndSet(sequence, sequence + 1));
+        int slot = (int) sequence & mask;
+        LogRecord record = records[slot];
+        record.timeMillis = System.currentTimeMillis();
+        record.level = level;
+        record.category = category;
+        record.threadName = Thread.currentThread().getName();
+        record.template = template;
+        record.firstArgument = firstArgument;
+        record.secondArgument = secondArgument;
+        published.lazySet(slot, sequence + 1);
+        return true;
+    }
+
+    /**
+     * @return (LogRecord) The oldest published record, or null if there is none. Only called by the consumer.
+     */
+    LogRecord peek() {
+        long sequence = tail;
+        int slot = (int) sequence & mask;
+        if (published.get(slot) != sequence + 1) return null;
+        return records[slot];
+    }
+
+    /**
+     *  Frees the record returned by peek, so producers can use its slot again. Only called by the consumer.
+     */
+    void advance() {
+        long sequence = tail;
+        records[(int) sequence & mask].clear();
+        tail = sequence + 1;
+    }
+
+    /**
+     * @return (long) Number of records dropped because the ring was full.
+     */
+    long getDroppedRecords() {
+        return droppedRecords.sum();
+    }
+}
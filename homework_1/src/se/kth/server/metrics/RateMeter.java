@@ -0,0 +1,54 @@
+package se.kth.server.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ *  Counts events and how many of them happen per second.
+ *  Events are marked without locks, the rate is worked out when it is read, over the time
+ *  since the rate was last worked out, at least one second.
+ */
+public class RateMeter {
+    private static final long MIN_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private final LongAdder count = new LongAdder();
+    private long windowStart = System.nanoTime();
+    private long windowStartCount;
+    private double ratePerSecond;
+
+    /**
+     *  Marks one event.
+     */
+    public void mark() {
+        count.increment();
+    }
+
+    /**
+     *  Marks a number of events.
+     * @param events (long) Number of events
+     */
+    public void mark(long events) {
+        count.add(events);
+    }
+
+    /**
+     * @return (long) Number of events marked since the meter was created.
+     */
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * @return (double) Events per second over the last window.
+     */
+    public synchronized double getRatePerSecond() {
+        long now = System.nanoTime();
+        long elapsed = now - windowStart;
+        if (elapsed >= MIN_WINDOW_NANOS) {
+            long currentCount = count.sum();
+            ratePerSecond = (currentCount - windowStartCount) * (double) TimeUnit.SECONDS.toNanos(1) / elapsed;
+            windowStart = now;
+            windowStartCount = currentCount;
+        }
+        return ratePerSecond;
+    }
+}
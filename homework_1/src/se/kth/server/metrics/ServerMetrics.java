@@ -0,0 +1,292 @@
+package se.kth.server.metrics;
+
+import se.kth.common.LatencyHistogram;
+import se.kth.common.MessageType;
+import se.kth.server.log.Logger;
+import se.kth.server.log.Log;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ *  The metrics of one server. Everything is recorded without locks, so the metrics can be
+ *  updated from the event loops and the workers on every message.
+ *  Gauges are read from the parts of the server that own them, when the metrics are read.
+ *  connectionAccepted()        -   Counts an accepted connection.
+ *  connectionOpened/Closed()   -   Tracks the number of open connections.
+ *  bytesRead/Written(n)        -   Counts bytes on the sockets.
+ *  messageReceived/Sent(type)  -   Counts messages per type.
+ *  responseWritten(type, latency) - Records the time from decoding a message until its response was written,
+ *                                 per type of the message, so slow STATS don't hide in the GUESS latencies.
+ *  registerGauge(name, gauge)  -   Adds a value that is read when the metrics are shown.
+ */
+public class ServerMetrics implements ServerMetricsMXBean {
+    private static final Logger LOG = Log.getLogger("metrics");
+    private final RateMeter acceptedConnections = new RateMeter();
+    private final LongAdder activeConnections = new LongAdder();
+    private final RateMeter bytesRead = new RateMeter();
+    private final RateMeter bytesWritten = new RateMeter();
+    private final RateMeter messagesReceivedTotal = new RateMeter();
+    private final Map<MessageType, LongAdder> messagesReceived = new EnumMap<>(MessageType.class);
+    private final Map<MessageType, LongAdder> messagesSent = new EnumMap<>(MessageType.class);
+    private final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+    private final Map<MessageType, LatencyHistogram> responseLatencies = new EnumMap<>(MessageType.class);
+
+    /**
+     *  Creates metrics with every counter at zero.
+     */
+    public ServerMetrics() {
+        for (MessageType messageType : MessageType.values()) {
+            messagesReceived.put(messageType, new LongAdder());
+            messagesSent.put(messageType, new LongAdder());
+            responseLatencies.put(messageType, new LatencyHistogram());
+        }
+    }
+
+    /**
+     *  Registers the metrics with the platform MBean server, so they can be read with JMX tools.
+     * @param name (String) Name of the server, used in the object name
+     */
+    public void registerMBean(String name) {
+        try {
+            ObjectName objectName = new ObjectName("se.kth.server:type=ServerMetrics,name=" + name);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        } catch (JMException exception) {
+            LOG.warn("Unable to register metrics: {}", exception.getMessage());
+        }
+    }
+
+    /**
+     *  Adds a gauge, a value owned by another part of the server that is read when the metrics are shown.
+     * @param name (String) Name of the gauge
+     * @param gauge (LongSupplier) Reads the value, it may be called from any thread
+     */
+    public void registerGauge(String name, LongSupplier gauge) {
+        gauges.put(name, gauge);
+    }
+
+    public void connectionAccepted() {
+        acceptedConnections.mark();
+    }
+
+    public void connectionOpened() {
+        activeConnections.increment();
+    }
+
+    public void connectionClosed() {
+        activeConnections.decrement();
+    }
+
+    public void bytesRead(long bytes) {
+        bytesRead.mark(bytes);
+    }
+
+    public void bytesWritten(long bytes) {
+        bytesWritten.mark(bytes);
+    }
+
+    public void messageReceived(MessageType messageType) {
+        messagesReceivedTotal.mark();
+        messagesReceived.get(messageType).increment();
+    }
+
+    public void messageSent(MessageType messageType) {
+        messagesSent.get(messageType).increment();
+    }
+
+    /**
+     *  Records the latency of one response.
+     * @param messageType (MessageType) The type of the message that was answered
+     * @param latencyNanos (long) Nanoseconds from decoding the message until the response was written
+     */
+    public void responseWritten(MessageType messageType, long latencyNanos) {
+        responseLatencies.get(messageType).record(latencyNanos);
+    }
+
+    /**
+     * @return (LatencyHistogram) The latencies from decoding a message until its response was written,
+     *         of all types of messages together.
+     */
+    public LatencyHistogram getResponseLatency() {
+        LatencyHistogram total = new LatencyHistogram();
+        for (LatencyHistogram histogram : responseLatencies.values()) {
+            total.add(histogram);
+        }
+        return total;
+    }
+
+    /**
+     * @param messageType (MessageType) A type of message
+     * @return (LatencyHistogram) The latencies from decoding a message of the type until its response was written.
+     */
+    public LatencyHistogram getResponseLatency(MessageType messageType) {
+        return responseLatencies.get(messageType);
+    }
+
+    @Override
+    public long getAcceptedConnections() {
+        return acceptedConnections.getCount();
+    }
+
+    @Override
+    public double getAcceptRate() {
+        return acceptedConnections.getRatePerSecond();
+    }
+
+    @Override
+    public long getActiveConnections() {
+        return activeConnections.sum();
+    }
+
+    @Override
+    public long getBytesRead() {
+        return bytesRead.getCount();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return bytesWritten.getCount();
+    }
+
+    @Override
+    public double getBytesReadPerSecond() {
+        return bytesRead.getRatePerSecond();
+    }
+
+    @Override
+    public double getBytesWrittenPerSecond() {
+        return bytesWritten.getRatePerSecond();
+    }
+
+    @Override
+    public double getMessagesReceivedPerSecond() {
+        return messagesReceivedTotal.getRatePerSecond();
+    }
+
+    @Override
+    public Map<String, Long> getMessagesReceived() {
+        return countsOf(messagesReceived);
+    }
+
+    @Override
+    public Map<String, Long> getMessagesSent() {
+        return countsOf(messagesSent);
+    }
+
+    @Override
+    public Map<String, Long> getGauges() {
+        Map<String, Long> values = new TreeMap<>();
+        gauges.forEach((name, gauge) -> values.put(name, gauge.getAsLong()));
+        return values;
+    }
+
+    @Override
+    public long getResponseLatencyCount() {
+        return getResponseLatency().getCount();
+    }
+
+    @Override
+    public double getResponseLatencyMeanMicros() {
+        return getResponseLatency().getMean() / TimeUnit.MICROSECONDS.toNanos(1);
+    }
+
+    @Override
+    public long getResponseLatencyP50Micros() {
+        return TimeUnit.NANOSECONDS.toMicros(getResponseLatency().getValueAtPercentile(50));
+    }
+
+    @Override
+    public long getResponseLatencyP99Micros() {
+        return TimeUnit.NANOSECONDS.toMicros(getResponseLatency().getValueAtPercentile(99));
+    }
+
+    @Override
+    public long getResponseLatencyP999Micros() {
+        return TimeUnit.NANOSECONDS.toMicros(getResponseLatency().getValueAtPercentile(99.9));
+    }
+
+    @Override
+    public long getResponseLatencyMaxMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(getResponseLatency().getMax());
+    }
+
+    @Override
+    public Map<String, Long> getResponseLatencyCountByType() {
+        Map<String, Long> counts = new TreeMap<>();
+        responseLatencies.forEach((messageType, histogram) -> {
+            long count = histogram.getCount();
+            if (count != 0) counts.put(messageType.name(), count);
+        });
+        return counts;
+    }
+
+    @Override
+    public Map<String, Long> getResponseLatencyP99MicrosByType() {
+        Map<String, Long> latencies = new TreeMap<>();
+        responseLatencies.forEach((messageType, histogram) -> {
+            if (histogram.getCount() != 0) {
+                latencies.put(messageType.name(), TimeUnit.NANOSECONDS.toMicros(histogram.getValueAtPercentile(99)));
+            }
+        });
+        return latencies;
+    }
+
+    /**
+     *  Formats the metrics as text, one metric per line. It is the body of the STATS response.
+     *  The latency of all messages is followed by the latency of every type of message that has been answered.
+     * @return (String) The report
+     */
+    @Override
+    public String getReport() {
+        StringBuilder report = new StringBuilder();
+        report.append("connections: accepted=").append(getAcceptedConnections())
+                .append(" active=").append(getActiveConnections())
+                .append(String.format(" accepts/s=%.1f%n", getAcceptRate()));
+        report.append("bytes: read=").append(getBytesRead()).append(" written=").append(getBytesWritten())
+                .append(String.format(" read/s=%.0f written/s=%.0f%n", getBytesReadPerSecond(), getBytesWrittenPerSecond()));
+        report.append(String.format("messages/s: %.1f%n", getMessagesReceivedPerSecond()));
+        report.append("received: ").append(getMessagesReceived()).append('\n');
+        report.append("sent: ").append(getMessagesSent()).append('\n');
+        report.append("gauges: ").append(getGauges()).append('\n');
+        appendLatency(report, "latency us", getResponseLatency());
+        responseLatencies.forEach((messageType, histogram) -> {
+            if (histogram.getCount() != 0) appendLatency(report.append('\n'), "latency us " + messageType, histogram);
+        });
+        return report.toString();
+    }
+
+    /**
+     *  Appends one latency line of the report.
+     * @param report (StringBuilder) The report
+     * @param name (String) What the latencies are of
+     * @param histogram (LatencyHistogram) The latencies
+     */
+    private static void appendLatency(StringBuilder report, String name, LatencyHistogram histogram) {
+        report.append(name).append(": count=").append(histogram.getCount())
+                .append(String.format(" mean=%.1f", histogram.getMean() / TimeUnit.MICROSECONDS.toNanos(1)))
+                .append(" p50=").append(TimeUnit.NANOSECONDS.toMicros(histogram.getValueAtPercentile(50)))
+                .append(" p99=").append(TimeUnit.NANOSECONDS.toMicros(histogram.getValueAtPercentile(99)))
+                .append(" p99.9=").append(TimeUnit.NANOSECONDS.toMicros(histogram.getValueAtPercentile(99.9)))
+                .append(" max=").append(TimeUnit.NANOSECONDS.toMicros(histogram.getMax()));
+    }
+
+    /**
+     * @param counters The counters per message type
+     * @return The counters that are not zero, by the name of the message type.
+     */
+    private static Map<String, Long> countsOf(Map<MessageType, LongAdder> counters) {
+        Map<String, Long> counts = new TreeMap<>();
+        counters.forEach((messageType, counter) -> {
+            long count = counter.sum();
+            if (count != 0) counts.put(messageType.name(), count);
+        });
+        return counts;
+    }
+}
@@ -1,6 +1,8 @@
 package se.kth.server.model;
 
+import se.kth.common.Difficulty;
 import se.kth.common.GameState;
+import se.kth.common.MessageCodec;
 import se.kth.common.NotValidGuessException;
 import se.kth.server.integration.Words;
 
@@ -63,10 +65,56 @@ public class GameHandler {
      * @return new game state with the same score as previous state.
      */
     public GameState newGame(GameState currentGameState){
-        String randomWord = words.getRandomWord();
-        char[] hiddenWord = makeHiddenWord(randomWord);
-        int remainingAttempts = estimateRemainingAttempts(randomWord.length());
-        return new GameState(currentGameState.getScore(), remainingAttempts, hiddenWord, randomWord);
+        return newGame(currentGameState, words.getRandomWord());
+    }
+
+    /**
+     *  Will make a new game with a word of the asked difficulty.
+     * @param currentGameState the current game state
+     * @param difficulty the difficulty tier of the word
+     * @return new game state with the same score as previous state.
+     */
+    public GameState newGame(GameState currentGameState, Difficulty difficulty){
+        String randomWord = words.getRandomWord(difficulty);
+        return newGame(currentGameState, randomWord != null ? randomWord : words.getRandomWord());
+    }
+
+    /**
+     *  Will make a new game with a word of the asked length, or any word if there is none of the length.
+     * @param currentGameState the current game state
+     * @param wordLength the number of characters of the word
+     * @return new game state with the same score as previous state.
+     */
+    public GameState newGame(GameState currentGameState, int wordLength){
+        String randomWord = words.getRandomWordOfLength(wordLength);
+        return newGame(currentGameState, randomWord != null ? randomWord : words.getRandomWord());
+    }
+
+    /**
+     * @param currentGameState the current game state
+     * @param word the word of the new game
+     * @return new game state with the same score as previous state.
+     */
+    private GameState newGame(GameState currentGameState, String word){
+        char[] hiddenWord = makeHiddenWord(word);
+        int remainingAttempts = estimateRemainingAttempts(word.length());
+        return new GameState(currentGameState.getScore(), remainingAttempts, hiddenWord, word);
+    }
+
+    /**
+     * @param word A word of a game.
+     * @return the index of the word, or -1 if it isn't one of the words.
+     */
+    public int wordIndexOf(String word){
+        return words.indexOf(word);
+    }
+
+    /**
+     * @param wordIndex The index of a word.
+     * @return the word.
+     */
+    public String wordAt(int wordIndex){
+        return words.getWord(wordIndex);
     }
 
     /**
@@ -129,8 +177,8 @@ public class GameHandler {
      * @param currentGameState the current game state.
      * @return new game state.
      */
-    private GameState guessWord(String guess, GameState currentGameState) {
-        if (guess.equals(currentGameState.getWord())){
+    private GameState guessWord(CharSequence guess, GameState currentGameState) {
+        if (currentGameState.getWord().contentEquals(guess)){
             int score = currentGameState.getScore() + 1;
             char[] empty = {};
             return new GameState(score, 0, empty, "");
@@ -146,18 +194,18 @@ public class GameHandler {
      * @param currentGameState current game state
      * @return returns true if valid, false otherwise
      */
-    private boolean checkIfValidWord(String guess, GameState currentGameState){
+    private boolean checkIfValidWord(CharSequence guess, GameState currentGameState){
         return guess.length() > 1 && !(guess.length() > currentGameState.getWord().length());
     }
 
     /**
      * Will check the guess if it is a word or a character and check if it is correct.
-     * @param guess word or character as a string
+     * @param guess word or character, e.g. a string
      * @param currentGameState the current game state.
      * @return new game state.
      * @throws NotValidGuessException if the guess does not have the right amount of characters at the word.
      */
-    public GameState guess(String guess, GameState currentGameState) throws NotValidGuessException{
+    public GameState guess(CharSequence guess, GameState currentGameState) throws NotValidGuessException{
         GameState newGameState;
         if (guess.length() == 1){
             char guessedCharacter = guess.charAt(0);
@@ -165,7 +213,32 @@ public class GameHandler {
         } else if(checkIfValidWord(guess, currentGameState)){
             newGameState = guessWord(guess, currentGameState);
         } else {
-            throw new NotValidGuessException(guess, currentGameState.getWord().length());
+            throw new NotValidGuessException(guess.toString(), currentGameState.getWord().length());
+        }
+        return newGameState;
+    }
+
+    /**
+     * Will make several guesses in order, like guess does for each of them.
+     * The guesses after one that ends the game, by guessing the word or using the last attempt, are skipped.
+     * @param guesses characters and words separated by MessageCodec.GUESS_SEPARATOR, empty ones are skipped
+     * @param currentGameState the current game state.
+     * @return the game state after the last guess that was made.
+     * @throws NotValidGuessException if a guess does not have the right amount of characters,
+     *                                the guesses before it have been made
+     */
+    public GameState guessBatch(CharSequence guesses, GameState currentGameState) throws NotValidGuessException{
+        GameState newGameState = currentGameState;
+        int start = 0;
+        while (start <= guesses.length() && newGameState == currentGameState){
+            int end = start;
+            while (end < guesses.length() && guesses.charAt(end) != MessageCodec.GUESS_SEPARATOR){
+                end++;
+            }
+            if (end > start){
+                newGameState = guess(guesses.subSequence(start, end), currentGameState);
+            }
+            start = end + 1;
         }
         return newGameState;
     }
@@ -0,0 +1,141 @@
+package se.kth.server.net;
+
+import java.util.concurrent.ExecutorService;
+import se.kth.server.controller.Controller;
+import se.kth.server.metrics.ServerMetrics;
+import se.kth.server.session.SessionTable;
+import se.kth.server.log.Logger;
+import se.kth.server.log.Log;
+import java.util.concurrent.Executors;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.util.regex.Pattern;
+import java.net.ServerSocket;
+import java.io.IOException;
+import java.net.Socket;
+
+/**
+ *  Hangman server that handles every connection on its own thread with blocking reads and writes.
+ *  It uses one virtual thread per connection when the runtime has them (Java 21 and later)
+ *  and falls back to a cached pool of platform threads otherwise.
+ *  The metrics of the server are registered as an MBean and answered to STATS messages.
+ *  The games are kept in a session table, so clients can resume them on a new connection.
+ *  The games of closed connections are parked off the heap.
+ */
+public class BlockingHangmanServer implements GameServer {
+	private static final Logger LOG = Log.getLogger("server");
+	private final ServerMetrics serverMetrics = new ServerMetrics();
+	public final Controller controller;
+	private ExecutorService connectionThreads;
+	private ServerSocket serverSocket;
+	private SessionTable sessionTable;
+	private long sessionTtlMillis = 300000;
+	private int maxParkedSessions = 1000000;
+	private String clusterSecret;
+	private boolean reusePort;
+	private int port;
+
+	/**
+	 *  Creates an instance of blocking hangman server with port 4444.
+	 */
+	public BlockingHangmanServer(Controller controller){
+		this.port = 4444;
+		this.controller = controller;
+	}
+
+	/**
+	 * Parses a given port. If not valid 4444 will be used.
+	 * @param port The port to be used for the server.
+	 */
+	@Override
+	public void parsePort(String port){
+		final String PORT_REGEX =
+				"(6553[0-5]|655[0-2][0-9]\\d|65[0-4](\\d){2}|6[0-4](\\d){3}|[1-5](\\d){4}|[1-9](\\d){0,3})";
+		if (Pattern.matches(PORT_REGEX, port)){
+			this.port = Integer.valueOf(port);
+		}
+	}
+
+	@Override
+	public void setReusePort(boolean reusePort){
+		this.reusePort = reusePort;
+	}
+
+	@Override
+	public void setSessionTtl(long sessionTtlMillis){
+		this.sessionTtlMillis = sessionTtlMillis;
+	}
+
+	@Override
+	public void setMaxParkedSessions(int maxParkedSessions){
+		this.maxParkedSessions = maxParkedSessions;
+	}
+
+	@Override
+	public void setClusterSecret(String clusterSecret){
+		this.clusterSecret = clusterSecret;
+	}
+
+	/**
+	 *  Starts the server.
+	 */
+	@Override
+	public void serve(){
+		try {
+			LOG.info("Starting blocking server...");
+			connectionThreads = newThreadPerConnectionExecutor();
+			sessionTable = new SessionTable(controller, sessionTtlMillis, maxParkedSessions, clusterSecret);
+			sessionTable.start();
+			serverSocket = new ServerSocket();
+			if (reusePort) {
+				if (serverSocket.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+					serverSocket.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+				} else {
+					LOG.warn("SO_REUSEPORT is not supported on this platform.");
+				}
+			}
+			serverSocket.bind(new InetSocketAddress(port));
+			LOG.info("Server on: {}", serverSocket);
+			serverMetrics.registerGauge("sessions.count", sessionTable::getSessionCount);
+			serverMetrics.registerGauge("sessions.parked", sessionTable::getParkedCount);
+			serverMetrics.registerGauge("sessions.parkedBytes", sessionTable::getParkedBytes);
+			serverMetrics.registerMBean("blocking");
+		}catch (IOException exception){
+			LOG.error("Unable to start server on given port: {}", exception.getMessage());
+			System.exit(1);
+		}
+		LOG.info("Accepting new connections!");
+		acceptConnections();
+	}
+
+	/**
+	 *  Accepts connections and starts a client handler for each of them.
+	 */
+	private void acceptConnections(){
+		while (!serverSocket.isClosed()){
+			try {
+				Socket socket = serverSocket.accept();
+				socket.setTcpNoDelay(true);
+				LOG.info("Connection from {}.", socket.getRemoteSocketAddress());
+				serverMetrics.connectionAccepted();
+				connectionThreads.execute(new BlockingClientHandler(controller, serverMetrics, sessionTable, socket));
+			}catch (IOException exception){
+				LOG.warn("Couldn't establish a connection: {}", exception.getMessage());
+			}
+		}
+	}
+
+	/**
+	 *  Creates the executor that starts one thread per connection.
+	 *  Virtual threads are looked up reflectively so the server still runs on older runtimes.
+	 * @return (ExecutorService) The executor
+	 */
+	private static ExecutorService newThreadPerConnectionExecutor(){
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		}catch (ReflectiveOperationException exception){
+			LOG.info("Virtual threads are not available, using platform threads.");
+			return Executors.newCachedThreadPool();
+		}
+	}
+}
@@ -1,152 +1,415 @@
 package se.kth.server.net;
 
-import java.util.concurrent.LinkedBlockingQueue;
-import static se.kth.common.Message.deserialize;
-import static se.kth.common.Message.serialize;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.TimeUnit;
 import se.kth.server.controller.Controller;
-import java.util.concurrent.ForkJoinPool;
+import se.kth.server.metrics.ServerMetrics;
+import se.kth.server.session.SessionTable;
+import se.kth.server.log.Logger;
+import se.kth.server.log.Log;
+import java.util.concurrent.Executor;
 import java.nio.channels.SocketChannel;
 import java.nio.channels.SelectionKey;
 import se.kth.common.MessageType;
-import se.kth.common.GameState;
+import se.kth.common.MessageCodec;
+import se.kth.common.InboundMessage;
+import se.kth.common.BufferPool;
 import se.kth.common.Message;
+import java.net.ProtocolException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.Iterator;
+import java.util.List;
 
 /**
  *  Client handler takes care of all messages to one client.
+ *  Messages are read on the event loop and handled in order on the session's serial executor,
+ *  so the game state is only ever touched by one worker at a time.
+ *  Messages are decoded in place from the read buffer into requests that are recycled once they have been
+ *  handled, so reading START and GUESS messages allocates nothing once the connection has warmed up.
+ *  Responses go through a lock-free queue, the handler asks its event loop for a flush
+ *  only when it has no flush pending, so a burst of responses costs one request.
+ *  The unwritten response bytes are counted. Above the high watermark the handler stops reading
+ *  from the client until they drop below the low watermark.
+ *  The time of the last read is kept for the idle check of the event loop, which sends a PING
+ *  to idle clients and measures the round trip when the PONG comes back.
+ *  Every response carries the time its message was decoded, for the latency metrics.
+ *  When the connection closes without a QUIT the game is parked in the session table for the client to resume.
  */
-class ClientHandler implements Runnable {
-    private final LinkedBlockingQueue<Message> readingQueue = new LinkedBlockingQueue<>();
-    private final LinkedBlockingQueue<Message> sendingQueue = new LinkedBlockingQueue<>();
-    private final ByteBuffer clientMessage = ByteBuffer.allocateDirect(8192);
+class ClientHandler {
+    private static final Logger LOG = Log.getLogger("net");
+    private static final Logger MESSAGE_LOG = Log.getLogger("net.messages");
+    private static final Logger KEEPALIVE_LOG = Log.getLogger("net.keepalive");
+    private static final int MAX_FREE_REQUESTS = 16;
+    private final ArrayBlockingQueue<InboundRequest> freeRequests = new ArrayBlockingQueue<>(MAX_FREE_REQUESTS);
+    private final MessageCodec.FrameHandler frameHandler = this::receiveFrame;
+    private final ConcurrentLinkedQueue<QueuedFrame> sendingQueue = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private final WriteWatermarks writeWatermarks;
+    private final OutboundBuffer outboundBuffer;
+    private final MessageCodec messageCodec;
+    private final ServerMetrics serverMetrics;
     private final SocketChannel clientSocketChanel;
-    private final HangmanServer hangmanServer;
-    private GameState currentGameState = null;
-    private final Controller controller;
+    private final SerialExecutor sessionExecutor;
+    private final GameSession gameSession;
+    private final EventLoop eventLoop;
     private SelectionKey selectionKey;
-    private boolean connected;
+    private volatile boolean connected;
+    private boolean readPaused;
+    private long readPausedSince;
+    private TimingWheel.Timeout idleTimeout;
+    private long lastActivity = System.nanoTime();
+    private long readAt;
+    private long pingSentAt;
+    private long roundTripNanos = -1;
 
     /**
      *  Makes an instance of a client handler on the client socket.
+     * @param eventLoop The event loop that reads and writes for this client.
+     * @param controller The controller for the game operations.
+     * @param workerPool The pool that runs the game operations.
+     * @param bufferPool The pool of buffers for partial frames and writing.
+     * @param writeWatermarks The limits on unwritten response bytes.
+     * @param serverMetrics The metrics of the server.
+     * @param sessionTable The sessions of the server.
      * @param clientSocketChanel Connection to client.
-     * @param hangmanServer The server that has main operations for reading and writing.
      */
-    ClientHandler(HangmanServer hangmanServer, SocketChannel clientSocketChanel){
+    ClientHandler(EventLoop eventLoop, Controller controller, Executor workerPool, BufferPool bufferPool,
+                  WriteWatermarks writeWatermarks, ServerMetrics serverMetrics, SessionTable sessionTable,
+                  SocketChannel clientSocketChanel){
         this.clientSocketChanel = clientSocketChanel;
-        controller = hangmanServer.controller;
-        this.hangmanServer = hangmanServer;
+        this.eventLoop = eventLoop;
+        gameSession = new GameSession(controller, serverMetrics, sessionTable);
+        sessionExecutor = new SerialExecutor(workerPool);
+        outboundBuffer = new OutboundBuffer(bufferPool, serverMetrics);
+        messageCodec = new MessageCodec(bufferPool);
+        this.serverMetrics = serverMetrics;
+        this.writeWatermarks = writeWatermarks;
         connected = true;
     }
 
     /**
      *  The main program for the client - server communication.
-     *  Will parse the messages from the client and do the operations it asks for.
-     */
-    @Override
-    public void run() {
-        Iterator<Message> messageIterator = readingQueue.iterator();
-        while (messageIterator.hasNext() && connected) {
-            try {
-                Message receivedMessage = messageIterator.next();
-                switch (receivedMessage.getMessageType()){
-                    case GUESS:
-                        if (currentGameState != null){
-                            currentGameState = controller.guess((String) receivedMessage.getBody(), currentGameState);
-                            sendMessage(MessageType.RESPONSE_GUESS, currentGameState);
-                        } else {
-                            sendMessage(MessageType.RESPONSE_GUESS, "No game started");
-                        }
-                        break;
-                    case START:
-                        if (currentGameState == null){
-                            currentGameState = controller.startGame();
-                        } else {
-                            currentGameState = controller.newGame(currentGameState);
-                        }
-                        sendMessage(MessageType.RESPONSE_START, currentGameState);
-                        break;
-                    case QUIT:
-                        connected = false;
-                        disconnect();
-                        break;
-                }
-            }catch (Throwable err){
-                System.err.println("Something went wrong: " + err.getMessage());
+     *  Will parse the message from the client and do the operation it asks for.
+     *  The request is recycled afterwards.
+     * @param request The message from the client.
+     */
+    private void handleRequest(InboundRequest request) {
+        try {
+            if (!connected) return;
+            MessageType messageType = request.message.getMessageType();
+            if (messageType == MessageType.QUIT){
+                connected = false;
+                gameSession.quit();
+                scheduleFlush();
+                return;
+            }
+            List<Message> responses = gameSession.handle(messageType, request.message.getBody(),
+                    request.message.getCorrelationId());
+            for (Message response : responses) {
+                sendMessage(response, messageType, request.receivedAt);
             }
-            messageIterator.remove();
+        } finally {
+            freeRequests.offer(request);
         }
     }
 
     /**
      *  Disconnects the client from the server.
+     *  The game is parked on the session executor, after the messages that are already queued,
+     *  which are dropped.
      */
     void disconnect() {
+        connected = false;
+        sessionExecutor.execute(gameSession::park);
         try {
             if (clientSocketChanel != null){
-                System.out.println("Shutting down connection...");
+                LOG.info("Shutting down connection to {}...", clientSocketChanel.socket().getRemoteSocketAddress());
                 clientSocketChanel.close();
             }
         }catch (IOException exception){
-            System.err.println("Unable to disconnect!");
+            LOG.warn("Unable to disconnect: {}", exception.getMessage());
         }
     }
 
     /**
-     *  Reads message from the buffer and adds the message to the reading queue.
+     *  Reads the bytes available on the channel and queues every complete message on the session.
+     *  A read may contain no, one or several messages, partial messages are completed on later reads.
+     *  The read buffer belongs to the event loop, the messages are decoded out of it before the next read.
+     * @param readBuffer The read buffer of the event loop.
      * @throws IOException Error on client socket channel while reading.
      */
-    void readMessage() throws IOException{
-        clientMessage.clear();
-        int numOfReadBytes = clientSocketChanel.read(clientMessage);
+    void readMessage(ByteBuffer readBuffer) throws IOException{
+        readBuffer.clear();
+        int numOfReadBytes = clientSocketChanel.read(readBuffer);
         if (numOfReadBytes == -1) throw new IOException("Client has closed connection.");
-        readingQueue.add(deserialize(extractMessageFromBuffer()));
-        ForkJoinPool.commonPool().execute(this);
+        serverMetrics.bytesRead(numOfReadBytes);
+        readBuffer.flip();
+        readAt = System.nanoTime();
+        lastActivity = readAt;
+        messageCodec.decode(readBuffer, frameHandler);
     }
 
     /**
-     * Extract the message from the buffer.
-     * @return (String) message as string
+     *  Decodes a frame into a recycled request and queues it on the session, a PONG is handled right away.
+     * @param buffer The read buffer holding the frame.
+     * @param offset Index of the first byte of the frame body.
+     * @param length Number of bytes in the frame body.
+     * @throws ProtocolException If the frame isn't a valid message.
      */
-    private String extractMessageFromBuffer() {
-        clientMessage.flip();
-        byte[] bytes = new byte[clientMessage.remaining()];
-        clientMessage.get(bytes);
-        System.out.println(new String(bytes));
-        return new String(bytes);
+    private void receiveFrame(ByteBuffer buffer, int offset, int length) throws ProtocolException {
+        InboundRequest request = freeRequests.poll();
+        if (request == null) request = new InboundRequest();
+        request.message.decode(buffer, offset, length);
+        request.receivedAt = readAt;
+        MessageType messageType = request.message.getMessageType();
+        if (MESSAGE_LOG.isDebugEnabled()) MESSAGE_LOG.debug("Received {}", request.message.toString());
+        serverMetrics.messageReceived(messageType);
+        if (messageType == MessageType.PONG){
+            recordRoundTrip();
+            freeRequests.offer(request);
+        } else {
+            sessionExecutor.execute(request);
+        }
     }
 
     /**
-     *  Writes the message to the client.
+     *  Writes the queued messages to the client, called by the event loop.
+     *  They are copied into pooled buffers, up to the high watermark, and written with one gathering
+     *  write. Whatever the channel doesn't accept is kept for the next call.
+     * @return (boolean) True if everything has been written
      * @throws IOException When something is wrong on the socket chanel while writing
      */
-    void writeMessage() throws IOException{
-        synchronized (sendingQueue) {
-            while (sendingQueue.size() > 0) {
-                String out = serialize(sendingQueue.poll());
-                System.out.println(out);
-                ByteBuffer message = ByteBuffer.wrap(out.getBytes());
-                clientSocketChanel.write(message);
-            }
+    boolean writeMessage() throws IOException{
+        flushScheduled.set(false);
+        boolean written;
+        do {
+            fillOutboundBuffer();
+            written = outboundBuffer.flushTo(clientSocketChanel);
+        } while (written && !sendingQueue.isEmpty());
+        updateReadPaused();
+        return written;
+    }
+
+    /**
+     *  Moves queued messages to the outbound buffer until it reaches the high watermark.
+     */
+    private void fillOutboundBuffer(){
+        QueuedFrame out;
+        while (outboundBuffer.getPendingBytes() < writeWatermarks.highWatermark && (out = sendingQueue.poll()) != null) {
+            queuedBytes.addAndGet(-frameSize(out.body));
+            outboundBuffer.appendFrame(out.body, out.requestType, out.receivedAt);
+        }
+    }
+
+    /**
+     *  Pauses reading above the high watermark and resumes it below the low watermark.
+     */
+    private void updateReadPaused(){
+        long pendingBytes = getPendingBytes();
+        if (!readPaused && pendingBytes > writeWatermarks.highWatermark){
+            readPaused = true;
+            readPausedSince = System.nanoTime();
+        } else if (readPaused && pendingBytes <= writeWatermarks.lowWatermark){
+            readPaused = false;
+        }
+    }
+
+    /**
+     * @return (long) Number of response bytes that haven't been written yet.
+     */
+    long getPendingBytes(){
+        return queuedBytes.get() + outboundBuffer.getPendingBytes();
+    }
+
+    /**
+     * @return (boolean) True while reading is paused because of unwritten responses.
+     */
+    boolean isReadPaused(){
+        return readPaused;
+    }
+
+    /**
+     * @param now (long) The current time from System.nanoTime()
+     * @return (boolean) True if reading has been paused for longer than the overload timeout.
+     */
+    boolean isOverloaded(long now){
+        return readPaused && now - readPausedSince > writeWatermarks.overloadTimeoutNanos;
+    }
+
+    /**
+     * @param now (long) The current time from System.nanoTime()
+     * @return (long) Nanoseconds until the client is overloaded, if it stays above the low watermark.
+     */
+    long nanosUntilOverloaded(long now){
+        return Math.max(0, readPausedSince + writeWatermarks.overloadTimeoutNanos - now);
+    }
+
+    /**
+     *  Drops the queued responses that haven't been moved to the outbound buffer.
+     *  A client that gets deltas can't miss one, so nothing is dropped for it. Reading is resumed, and the
+     *  overload timeout starts over, only if the client ends up at or below its low watermark.
+     * @return (boolean) True if the client can stay connected, false if it should be disconnected.
+     */
+    boolean shedQueuedMessages(){
+        if (gameSession.isDeltaResponses()) return false;
+        QueuedFrame out;
+        while ((out = sendingQueue.poll()) != null) {
+            queuedBytes.addAndGet(-frameSize(out.body));
         }
+        if (getPendingBytes() > writeWatermarks.lowWatermark) return false;
+        readPaused = false;
+        readPausedSince = 0;
+        return true;
+    }
+
+    /**
+     * @return (int) The interest set for the key, reading unless paused and writing while responses are pending.
+     */
+    int interestOps(){
+        int interestOps = readPaused ? 0 : SelectionKey.OP_READ;
+        if (getPendingBytes() > 0) interestOps |= SelectionKey.OP_WRITE;
+        return interestOps;
+    }
+
+    /**
+     * @return (boolean) True once the client has asked to quit and every response has been queued for writing.
+     */
+    boolean isQuitting(){
+        return !connected && sendingQueue.isEmpty();
+    }
+
+    /**
+     *  Gives the buffers of the client back to the pool, after the client has been removed.
+     */
+    void releaseBuffers(){
+        outboundBuffer.release();
+        messageCodec.release();
+    }
+
+    /**
+     *  Sends a keepalive probe, called by the event loop when the client has been idle.
+     * @param now (long) The current time from System.nanoTime()
+     */
+    void sendPing(long now){
+        if (pingSentAt == 0){
+            pingSentAt = now;
+        }
+        serverMetrics.messageSent(MessageType.PING);
+        queueFrame(new QueuedFrame(MessageCodec.encodeBody(new Message(MessageType.PING, "")), null, 0));
+    }
+
+    /**
+     *  Records the round trip of the oldest unanswered PING.
+     */
+    private void recordRoundTrip(){
+        if (pingSentAt == 0) return;
+        roundTripNanos = lastActivity - pingSentAt;
+        pingSentAt = 0;
+        if (KEEPALIVE_LOG.isDebugEnabled()){
+            KEEPALIVE_LOG.debug("Round trip to client: {} us", TimeUnit.NANOSECONDS.toMicros(roundTripNanos));
+        }
+    }
+
+    /**
+     * @return (long) Nanoseconds of the last measured round trip, or -1 if none has been measured.
+     */
+    long getRoundTripNanos(){
+        return roundTripNanos;
+    }
+
+    /**
+     * @return (long) The System.nanoTime() of the last read from the client.
+     */
+    long getLastActivity(){
+        return lastActivity;
+    }
+
+    void setIdleTimeout(TimingWheel.Timeout idleTimeout){
+        this.idleTimeout = idleTimeout;
+    }
+
+    TimingWheel.Timeout getIdleTimeout(){
+        return idleTimeout;
     }
 
     void setSelectionKey(SelectionKey selectionKey){
         this.selectionKey = selectionKey;
     }
 
+    SelectionKey getSelectionKey(){
+        return selectionKey;
+    }
+
     /**
      *  A function that will queue up the message that should be sent.
-     * @param messageType What kind of message.
-     * @param body The message body we want to send to the client.
+     *  The message is encoded right away, on the worker, in the form the client asked for.
+     * @param message The message we want to send to the client.
+     * @param requestType The type of the message it responds to.
+     * @param receivedAt System.nanoTime() when the message it responds to was decoded.
      */
-    private void sendMessage(MessageType messageType, Object body){
-        Message message = new Message(messageType, body);
-        synchronized (sendingQueue) {
-            sendingQueue.add(message);
+    private void sendMessage(Message message, MessageType requestType, long receivedAt){
+        MESSAGE_LOG.debug("Sending {}", message);
+        serverMetrics.messageSent(message.getMessageType());
+        queueFrame(new QueuedFrame(MessageCodec.encodeBody(message, gameSession.isBinaryEncoding()), requestType, receivedAt));
+    }
+
+    /**
+     *  Queues a frame and asks for a flush.
+     * @param frame The encoded message.
+     */
+    private void queueFrame(QueuedFrame frame){
+        queuedBytes.addAndGet(frameSize(frame.body));
+        sendingQueue.add(frame);
+        scheduleFlush();
+    }
+
+    /**
+     * @param body The body of a frame.
+     * @return The size of the frame, with its length prefix.
+     */
+    private static int frameSize(byte[] body){
+        return MessageCodec.LENGTH_FIELD_SIZE + body.length;
+    }
+
+    /**
+     *  Asks the event loop to flush this client, unless a flush is already pending.
+     */
+    private void scheduleFlush(){
+        if (flushScheduled.compareAndSet(false, true)) {
+            eventLoop.scheduleFlush(this);
+        }
+    }
+
+    /**
+     *  The body of a response waiting to be written, with the type and the decoding time of the message it answers.
+     */
+    private static final class QueuedFrame {
+        private final byte[] body;
+        private final MessageType requestType;
+        private final long receivedAt;
+
+        QueuedFrame(byte[] body, MessageType requestType, long receivedAt){
+            this.body = body;
+            this.requestType = requestType;
+            this.receivedAt = receivedAt;
+        }
+    }
+
+    /**
+     *  A message of the client waiting to be handled on the session, with storage for its body.
+     *  Up to MAX_FREE_REQUESTS of them are kept for reuse.
+     */
+    private final class InboundRequest implements Runnable {
+        private final InboundMessage message = new InboundMessage();
+        private long receivedAt;
+
+        @Override
+        public void run() {
+            handleRequest(this);
         }
-        hangmanServer.queueMessageForWriting(this.selectionKey);
-        hangmanServer.wakeUpSelector();
     }
 }
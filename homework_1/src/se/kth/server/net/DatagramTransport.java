@@ -0,0 +1,212 @@
+package se.kth.server.net;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.TimeUnit;
+import se.kth.server.log.Logger;
+import se.kth.server.log.Log;
+import se.kth.common.MessageCodec;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ *  Serves clients over UDP next to the TCP connections, with the same controller, workers and session table.
+ *  Every datagram starts with the id of the conversation, chosen by the client, and a sequence number,
+ *  followed by frames as they are sent over TCP. A response carries the sequence number of its request.
+ *  The client retransmits a request until its response arrives, the conversation answers a repeated
+ *  request from its last response, so no request is handled twice.
+ *  Conversations are found by id rather than by address. One that has been silent for the idle timeout
+ *  is dropped and its game parked in the session table, as if its connection had closed. Conversations
+ *  can't go without an idle timeout, with keepalive turned off they are dropped after two minutes.
+ *  The number of conversations is capped, a datagram of a new conversation beyond the cap is dropped
+ *  and the client gives up after its retransmits.
+ *  A response larger than its request is only sent to an address that has answered a PING with its cookie,
+ *  so a forged source address can't be flooded with responses.
+ *  The transport receives on its own thread, responses are sent by the workers.
+ */
+class DatagramTransport implements Runnable {
+    private static final Logger LOG = Log.getLogger("net");
+    private static final long SWEEP_INTERVAL_MILLIS = 1000;
+    private static final long DEFAULT_IDLE_TIMEOUT_NANOS = TimeUnit.MINUTES.toNanos(2);
+    private final ConcurrentHashMap<Long, DatagramPeer> peers = new ConcurrentHashMap<>();
+    private final ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(MessageCodec.MAX_DATAGRAM_SIZE);
+    private final AtomicLong duplicates = new AtomicLong();
+    private final AtomicLong refused = new AtomicLong();
+    private final AtomicLong challenges = new AtomicLong();
+    private final HangmanServer hangmanServer;
+    private DatagramChannel datagramChannel;
+    private Selector selector;
+    private long nextSweep;
+
+    /**
+     *  Creates a transport for the server, it is not bound yet.
+     * @param hangmanServer (HangmanServer) The server the transport belongs to
+     */
+    DatagramTransport(HangmanServer hangmanServer) {
+        this.hangmanServer = hangmanServer;
+    }
+
+    /**
+     *  Binds the datagram channel.
+     *  With reuse port set, the kernel spreads the clients of several processes by their address.
+     * @param port (int) The port to receive on
+     * @param reusePort (boolean) True to bind with SO_REUSEPORT
+     * @throws IOException When the channel can't be bound
+     */
+    void bind(int port, boolean reusePort) throws IOException {
+        datagramChannel = DatagramChannel.open();
+        datagramChannel.configureBlocking(false);
+        if (reusePort) {
+            if (datagramChannel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                datagramChannel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            } else {
+                LOG.warn("SO_REUSEPORT is not supported on this platform.");
+            }
+        }
+        datagramChannel.bind(new InetSocketAddress(port));
+        selector = Selector.open();
+        datagramChannel.register(selector, SelectionKey.OP_READ);
+        LOG.info("Datagrams on: {}", datagramChannel.getLocalAddress());
+    }
+
+    /**
+     * @return (int) Number of conversations.
+     */
+    int getPeerCount() {
+        return peers.size();
+    }
+
+    /**
+     * @return (long) Number of repeated requests answered from the last response.
+     */
+    long getDuplicates() {
+        return duplicates.get();
+    }
+
+    /**
+     * @return (long) Number of datagrams dropped because they would have started a conversation beyond the cap.
+     */
+    long getRefused() {
+        return refused.get();
+    }
+
+    /**
+     * @return (long) Number of PINGs sent to confirm an address instead of a response larger than its request.
+     */
+    long getChallenges() {
+        return challenges.get();
+    }
+
+    /**
+     *  Counts a repeated request, called by the conversations.
+     */
+    void duplicateReceived() {
+        duplicates.incrementAndGet();
+    }
+
+    /**
+     *  Counts a PING sent to confirm an address, called by the conversations.
+     */
+    void challengeSent() {
+        challenges.incrementAndGet();
+    }
+
+    /**
+     *  Sends a datagram, may be called from any thread.
+     *  A datagram the channel can't take is dropped, the client retransmits its request.
+     * @param datagram (ByteBuffer) The datagram, ready to be sent
+     * @param address (SocketAddress) Where it is sent
+     */
+    void send(ByteBuffer datagram, SocketAddress address) {
+        try {
+            int sentBytes = datagramChannel.send(datagram, address);
+            hangmanServer.getServerMetrics().bytesWritten(sentBytes);
+        } catch (IOException exception) {
+            LOG.debug("Couldn't send datagram to {}: {}", address, exception.getMessage());
+        }
+    }
+
+    /**
+     *  Receives datagrams and drops idle conversations until the server stops.
+     */
+    @Override
+    public void run() {
+        while (datagramChannel.isOpen()) {
+            try {
+                selector.select(SWEEP_INTERVAL_MILLIS);
+                selector.selectedKeys().clear();
+                receiveDatagrams();
+                sweepIdlePeers();
+            } catch (IOException exception) {
+                LOG.warn("Couldn't receive datagram: {}", exception.getMessage());
+            }
+        }
+    }
+
+    /**
+     *  Receives the datagrams waiting on the channel and hands each to its conversation.
+     *  Datagrams too short for the header are dropped, a new conversation is created for an unknown id
+     *  unless there are as many conversations as allowed.
+     * @throws IOException When the channel fails
+     */
+    private void receiveDatagrams() throws IOException {
+        while (true) {
+            receiveBuffer.clear();
+            SocketAddress address = datagramChannel.receive(receiveBuffer);
+            if (address == null) return;
+            long receivedAt = System.nanoTime();
+            receiveBuffer.flip();
+            hangmanServer.getServerMetrics().bytesRead(receiveBuffer.remaining());
+            if (receiveBuffer.remaining() < MessageCodec.DATAGRAM_HEADER_SIZE) continue;
+            long conversationId = receiveBuffer.getLong();
+            int sequence = receiveBuffer.getInt();
+            ByteBuffer frames = ByteBuffer.allocate(receiveBuffer.remaining());
+            frames.put(receiveBuffer).flip();
+            DatagramPeer peer = peers.get(conversationId);
+            if (peer == null) {
+                if (peers.size() >= hangmanServer.getMaxConversations()) {
+                    if (refused.getAndIncrement() == 0) LOG.warn("Too many datagram conversations, refusing new ones.");
+                    continue;
+                }
+                peer = newPeer(conversationId);
+                peers.put(conversationId, peer);
+            }
+            peer.receive(address, sequence, frames, receivedAt);
+        }
+    }
+
+    /**
+     *  Creates the conversation of a new id.
+     * @param conversationId (Long) The id chosen by the client
+     * @return (DatagramPeer) The conversation
+     */
+    private DatagramPeer newPeer(Long conversationId) {
+        LOG.debug("New datagram conversation {}.", conversationId);
+        GameSession gameSession = new GameSession(hangmanServer.controller, hangmanServer.getServerMetrics(),
+                hangmanServer.getSessionTable());
+        return new DatagramPeer(conversationId, this, gameSession,
+                new SerialExecutor(hangmanServer.getWorkerPool()), hangmanServer.getServerMetrics());
+    }
+
+    /**
+     *  Drops the conversations that have been silent for the idle timeout, at most once per sweep interval.
+     */
+    private void sweepIdlePeers() {
+        long now = System.nanoTime();
+        if (now - nextSweep < 0) return;
+        nextSweep = now + TimeUnit.MILLISECONDS.toNanos(SWEEP_INTERVAL_MILLIS);
+        long idleTimeout = hangmanServer.getIdleTimeoutNanos() > 0
+                ? hangmanServer.getIdleTimeoutNanos() : DEFAULT_IDLE_TIMEOUT_NANOS;
+        peers.values().removeIf(peer -> {
+            if (!peer.isIdle(now, idleTimeout)) return false;
+            peer.close();
+            return true;
+        });
+    }
+}
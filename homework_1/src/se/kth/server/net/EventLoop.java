@@ -0,0 +1,383 @@
+package se.kth.server.net;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import se.kth.server.log.Logger;
+import se.kth.server.log.Log;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import se.kth.common.MessageCodec;
+import java.nio.ByteBuffer;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ *  An event loop owns one selector and the thread that runs it.
+ *  It reads and writes for every connection registered to it.
+ *  All its connections read into the one read buffer of the loop, every read is decoded before the next.
+ *  Connections are handed to the loop from other threads through a wakeup queue,
+ *  the loop registers them with its selector on its own thread.
+ *  Clients with responses to write are handed over the same way. The selector is woken up
+ *  at most once per pass of the loop, however many connections and clients are handed over.
+ *  Clients that are paused by their write watermarks are checked every pass for the overload timeout.
+ *  Every client has an idle timeout in the loop's timing wheel. Idle clients get a PING every keepalive
+ *  interval and are closed when they have been silent for longer than the idle timeout.
+ *  An unexpected error while handling one connection closes only that connection, the loop keeps
+ *  running for the others.
+ */
+class EventLoop implements Runnable {
+	private final ConcurrentLinkedQueue<SocketChannel> pendingConnections = new ConcurrentLinkedQueue<>();
+	private final ConcurrentLinkedQueue<ClientHandler> dirtyClients = new ConcurrentLinkedQueue<>();
+	private final AtomicBoolean wakeUpPending = new AtomicBoolean();
+	private static final Logger LOG = Log.getLogger("net");
+	private static final Logger IO_LOG = Log.getLogger("net.io");
+	private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+	private static final int WHEEL_SLOTS = 512;
+	private final TimingWheel timingWheel = new TimingWheel(TICK_NANOS, WHEEL_SLOTS);
+	private final Set<ClientHandler> pausedClients = new HashSet<>();
+	private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(MessageCodec.FRAME_BUFFER_SIZE);
+	private final HangmanServer hangmanServer;
+	private final Selector selector;
+	private final String name;
+	private volatile boolean running = true;
+
+	/**
+	 *  Creates an event loop with its own selector.
+	 * @param hangmanServer (HangmanServer) The server the loop belongs to
+	 * @param name (String) Name of the loop, used for its thread
+	 * @throws IOException When the selector can't be opened
+	 */
+	EventLoop(HangmanServer hangmanServer, String name) throws IOException {
+		this.hangmanServer = hangmanServer;
+		this.name = name;
+		selector = Selector.open();
+	}
+
+	/**
+	 * @return (Selector) The selector of the loop.
+	 */
+	Selector getSelector() {
+		return selector;
+	}
+
+	/**
+	 * @return (String) The name of the loop.
+	 */
+	String getName() {
+		return name;
+	}
+
+	/**
+	 * @return (int) Number of clients waiting for the loop to flush their responses.
+	 */
+	int getPendingFlushes() {
+		return dirtyClients.size();
+	}
+
+	/**
+	 *  Hands a newly accepted connection to this loop.
+	 *  May be called from any thread, the connection is registered by the loop itself.
+	 * @param socketChannel (SocketChannel) The accepted connection
+	 */
+	void register(SocketChannel socketChannel) {
+		pendingConnections.add(socketChannel);
+		wakeUpSelector();
+	}
+
+	/**
+	 *  Hands a client with queued responses to this loop to be flushed.
+	 *  May be called from any thread.
+	 * @param clientHandler (ClientHandler) The client to flush
+	 */
+	void scheduleFlush(ClientHandler clientHandler) {
+		dirtyClients.add(clientHandler);
+		wakeUpSelector();
+	}
+
+	/**
+	 *	Wakes up the selector, unless a wake up is already pending for this pass of the loop.
+	 */
+	private void wakeUpSelector() {
+		if (wakeUpPending.compareAndSet(false, true)) {
+			selector.wakeup();
+		}
+	}
+
+	/**
+	 *  Stops the loop after the current iteration.
+	 */
+	void shutdown() {
+		running = false;
+		selector.wakeup();
+	}
+
+	/**
+	 *  Selects and dispatches events until the loop is shut down.
+	 */
+	@Override
+	public void run() {
+		while (running){
+			try {
+				wakeUpPending.set(false);
+				registerPendingConnections();
+				flushDirtyClients();
+				long selectTimeout = nextSelectTimeout(checkPausedClients());
+				int numKeys = selectTimeout == 0 ? selector.select() : selector.select(selectTimeout);
+				if (numKeys > 0){
+					Iterator<SelectionKey> eventKeys = selector.selectedKeys().iterator();
+					while (eventKeys.hasNext()) {
+						SelectionKey key = eventKeys.next();
+						eventKeys.remove();
+						if (!key.isValid()) continue;
+						try {
+							dispatch(key);
+						} catch (RuntimeException exception) {
+							LOG.error("Closing connection after an unexpected error: {}", exception.toString());
+							closeAfterError(key);
+						}
+					}
+				}
+			}catch (IOException exception){
+				LOG.warn("Couldn't establish a connection: {}", exception.getMessage());
+			}catch (RuntimeException exception){
+				LOG.error("Unexpected error in {}: {}", name, exception.toString());
+			}
+		}
+	}
+
+	/**
+	 *  Handles the events the selector found ready on one key.
+	 * @param key (SelectionKey) A selected key
+	 * @throws IOException If a connection can't be accepted.
+	 */
+	private void dispatch(SelectionKey key) throws IOException {
+		int keyOps = key.readyOps();
+		if ((keyOps & SelectionKey.OP_ACCEPT) == SelectionKey.OP_ACCEPT) hangmanServer.acceptClientConnection(key);
+		if (key.isValid() && (keyOps & SelectionKey.OP_READ) == SelectionKey.OP_READ) acceptMessageFromConnection(key);
+		if (key.isValid() && (keyOps & SelectionKey.OP_WRITE) == SelectionKey.OP_WRITE) writeMessageToConnection(key);
+	}
+
+	/**
+	 *  Closes the connection of a key after an unexpected error, the acceptor's server channel is kept open.
+	 * @param key (SelectionKey) The key of the failed connection
+	 */
+	private void closeAfterError(SelectionKey key) {
+		if (key.attachment() instanceof ClientHandler) {
+			removeClient(key);
+		}
+	}
+
+	/**
+	 *  Registers the connections handed to this loop since the last iteration.
+	 *	A connection that can't be registered is closed, the others are still registered.
+	 */
+	private void registerPendingConnections() {
+		SocketChannel socketChannel;
+		while ((socketChannel = pendingConnections.poll()) != null) {
+			try {
+				registerConnection(socketChannel);
+			} catch (IOException | RuntimeException exception) {
+				LOG.warn("Couldn't register a connection: {}", exception.toString());
+				SelectionKey key = socketChannel.keyFor(selector);
+				if (key != null && key.attachment() instanceof ClientHandler) {
+					removeClient(key);
+				} else {
+					closeChannel(socketChannel);
+				}
+			}
+		}
+	}
+
+	/**
+	 *  Registers one connection with the selector and attaches a client handler to its key.
+	 * @param socketChannel (SocketChannel) The accepted connection
+	 * @throws IOException If the connection can't be registered.
+	 */
+	private void registerConnection(SocketChannel socketChannel) throws IOException {
+		socketChannel.configureBlocking(false);
+		Socket socket = socketChannel.socket();
+		ClientHandler clientHandler = new ClientHandler(this, hangmanServer.controller, hangmanServer.getWorkerPool(),
+				hangmanServer.getBufferPool(), hangmanServer.getWriteWatermarks(), hangmanServer.getServerMetrics(),
+				hangmanServer.getSessionTable(), socketChannel);
+		clientHandler.setIdleTimeout(new TimingWheel.Timeout(() -> checkIdle(clientHandler)));
+		SelectionKey selectionKey = socketChannel.register(selector, SelectionKey.OP_READ, clientHandler);
+		clientHandler.setSelectionKey(selectionKey);
+		hangmanServer.getServerMetrics().connectionOpened();
+		LOG.info("Connection from {} handled by {}.", socket.getRemoteSocketAddress(), name);
+		if (hangmanServer.getKeepaliveIntervalNanos() > 0) {
+			timingWheel.schedule(clientHandler.getIdleTimeout(), hangmanServer.getKeepaliveIntervalNanos());
+		}
+	}
+
+	/**
+	 *  Closes a connection that was never registered.
+	 * @param socketChannel (SocketChannel) The connection
+	 */
+	private void closeChannel(SocketChannel socketChannel) {
+		try {
+			socketChannel.close();
+		} catch (IOException exception) {
+			LOG.warn("Unable to close connection: {}", exception.getMessage());
+		}
+	}
+
+	/**
+	 *  Flushes the clients that have queued responses since the last pass.
+	 *	A client that fails unexpectedly is closed, the others are still flushed.
+	 */
+	private void flushDirtyClients() {
+		ClientHandler clientHandler;
+		while ((clientHandler = dirtyClients.poll()) != null) {
+			try {
+				flushClient(clientHandler);
+			} catch (RuntimeException exception) {
+				LOG.error("Closing connection after an unexpected error: {}", exception.toString());
+				removeClient(clientHandler.getSelectionKey());
+			}
+		}
+	}
+
+	/**
+	 *  Advances the timing wheel and works out how long the selector may block.
+	 * @param pausedClientsTimeout (long) Milliseconds until the next paused client times out, or 0 for none
+	 * @return (long) Milliseconds the selector may block, or 0 to block until woken up
+	 */
+	private long nextSelectTimeout(long pausedClientsTimeout) {
+		if (timingWheel.isEmpty()) return pausedClientsTimeout;
+		long now = System.nanoTime();
+		timingWheel.advance(now);
+		long tickTimeout = Math.max(1, TimeUnit.NANOSECONDS.toMillis(timingWheel.nanosUntilNextTick(now)));
+		return pausedClientsTimeout == 0 ? tickTimeout : Math.min(tickTimeout, pausedClientsTimeout);
+	}
+
+	/**
+	 *  Checks a client when its idle timeout expires.
+	 *  A client silent for longer than the idle timeout is closed, one silent for longer than the
+	 *  keepalive interval gets a PING, and the check is scheduled again.
+	 * @param clientHandler (ClientHandler) The client to check
+	 */
+	private void checkIdle(ClientHandler clientHandler) {
+		SelectionKey key = clientHandler.getSelectionKey();
+		if (!key.isValid()) return;
+		long keepaliveInterval = hangmanServer.getKeepaliveIntervalNanos();
+		long idleTimeout = hangmanServer.getIdleTimeoutNanos();
+		long now = System.nanoTime();
+		long idleTime = now - clientHandler.getLastActivity();
+		if (idleTime >= idleTimeout) {
+			LOG.info("Closing idle connection to {}.", ((SocketChannel) key.channel()).socket().getRemoteSocketAddress());
+			removeClient(key);
+			return;
+		}
+		long nextCheck = keepaliveInterval - idleTime;
+		if (idleTime >= keepaliveInterval) {
+			clientHandler.sendPing(now);
+			nextCheck = Math.min(keepaliveInterval, idleTimeout - idleTime);
+		}
+		timingWheel.schedule(clientHandler.getIdleTimeout(), nextCheck);
+	}
+
+	/**
+	 *  Applies the overload policy to the paused clients that have been paused for too long.
+	 * @return (long) Milliseconds until the next paused client times out, or 0 if no client is paused
+	 */
+	private long checkPausedClients() {
+		if (pausedClients.isEmpty()) return 0;
+		long now = System.nanoTime();
+		long nextTimeout = Long.MAX_VALUE;
+		for (ClientHandler clientHandler : new ArrayList<>(pausedClients)) {
+			if (clientHandler.isOverloaded(now)) {
+				applyOverloadPolicy(clientHandler);
+			} else {
+				nextTimeout = Math.min(nextTimeout, clientHandler.nanosUntilOverloaded(now));
+			}
+		}
+		if (nextTimeout == Long.MAX_VALUE) return 0;
+		return Math.max(1, TimeUnit.NANOSECONDS.toMillis(nextTimeout) + 1);
+	}
+
+	/**
+	 *  Disconnects or sheds a client that has stayed above its high watermark for too long.
+	 *  A client that shedding doesn't bring down to its low watermark is disconnected as well.
+	 * @param clientHandler (ClientHandler) The overloaded client
+	 */
+	private void applyOverloadPolicy(ClientHandler clientHandler) {
+		OverloadPolicy overloadPolicy = hangmanServer.getWriteWatermarks().overloadPolicy;
+		LOG.warn("Client stayed above its write watermark: {}", overloadPolicy);
+		if (overloadPolicy == OverloadPolicy.SHED && clientHandler.shedQueuedMessages()) {
+			flushClient(clientHandler);
+		} else {
+			removeClient(clientHandler.getSelectionKey());
+		}
+	}
+
+	/**
+	 *	Reads a message from the connection.
+	 * @param key (SelectionKey) The key the client is attached to.
+	 */
+	private void acceptMessageFromConnection(SelectionKey key){
+		IO_LOG.trace("Reading message");
+		ClientHandler clientHandler = (ClientHandler) key.attachment();
+		try {
+			clientHandler.readMessage(readBuffer);
+		} catch (IOException exception){
+			removeClient(key);
+		}
+	}
+
+	/**
+	 * Removes the disconnects the client from the key and cancels it.
+	 * @param key (SelectionKey) The key the client is attached to.
+	 */
+	private void removeClient(SelectionKey key) {
+		if (!key.isValid()) return;
+		ClientHandler clientHandler = (ClientHandler) key.attachment();
+		clientHandler.disconnect();
+		clientHandler.releaseBuffers();
+		pausedClients.remove(clientHandler);
+		timingWheel.cancel(clientHandler.getIdleTimeout());
+		key.cancel();
+		hangmanServer.getServerMetrics().connectionClosed();
+	}
+
+	/**
+	 *	Writes the queued messages to the client attached to the key.
+	 * @param key (SelectionKey) The connection to the client
+	 */
+	private void writeMessageToConnection(SelectionKey key) {
+		IO_LOG.trace("Writing message");
+		flushClient((ClientHandler) key.attachment());
+	}
+
+	/**
+	 *  Writes the queued messages of a client.
+	 *	The key stays interested in writing until everything has been written,
+	 *	and in reading unless the client is paused by its write watermarks.
+	 *	A client that has quit is removed once everything has been written.
+	 * @param clientHandler (ClientHandler) The client to flush
+	 */
+	private void flushClient(ClientHandler clientHandler) {
+		SelectionKey key = clientHandler.getSelectionKey();
+		if (!key.isValid()) return;
+		try {
+			boolean written = clientHandler.writeMessage();
+			if (written && clientHandler.isQuitting()) {
+				removeClient(key);
+			} else {
+				key.interestOps(clientHandler.interestOps());
+				if (clientHandler.isReadPaused()) {
+					pausedClients.add(clientHandler);
+				} else {
+					pausedClients.remove(clientHandler);
+				}
+			}
+		} catch (IOException exception){
+			removeClient(key);
+		}
+	}
+}
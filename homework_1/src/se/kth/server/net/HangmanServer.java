@@ -1,28 +1,67 @@
 package se.kth.server.net;
 
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.nio.channels.ServerSocketChannel;
 import se.kth.server.controller.Controller;
+import se.kth.server.metrics.ServerMetrics;
+import se.kth.server.session.SessionTable;
+import se.kth.server.log.Logger;
+import se.kth.server.log.Log;
+import se.kth.common.MessageCodec;
+import se.kth.common.BufferPool;
 import java.nio.channels.SocketChannel;
 import java.nio.channels.SelectionKey;
 import java.net.InetSocketAddress;
-import java.nio.channels.Selector;
+import java.net.StandardSocketOptions;
 import java.util.regex.Pattern;
 import java.net.ServerSocket;
 import java.io.IOException;
-import java.net.Socket;
-import java.util.Set;
 
 /**
  *  Hangman server consists of methods to check validity of a port
  *  and start a server that accepts connections.
+ *  The server runs an acceptor loop on the calling thread. With zero event loops
+ *  the acceptor also handles all connections, otherwise accepted connections are
+ *  spread round-robin over the event loops, each running on its own thread.
+ *  The game operations run on a fixed pool of workers owned by the server.
+ *  The metrics of the server are registered as an MBean and answered to STATS messages.
+ *  The games are kept in a session table, so clients can resume them on a new connection.
+ *  The games of closed connections are parked off the heap.
+ *  Optionally clients are also served over UDP on the same port number, see DatagramTransport.
  */
-public class HangmanServer {
-	private final LinkedBlockingQueue<SelectionKey> sendingQueue = new LinkedBlockingQueue<>();
+public class HangmanServer implements GameServer {
+	private static final Logger LOG = Log.getLogger("server");
+	private final AtomicInteger nextEventLoop = new AtomicInteger();
+	private final ServerMetrics serverMetrics = new ServerMetrics();
 	private ServerSocketChannel serverSocketChannel;
 	public final Controller controller;
-	private Selector selector;
-	private boolean running;
+	private EventLoop[] eventLoops;
+	private int workerCount = Runtime.getRuntime().availableProcessors();
+	private long maxPooledBytes = 64L * 1024 * 1024;
+	private long writeLowWatermark = 16 * 1024;
+	private long writeHighWatermark = 64 * 1024;
+	private long overloadTimeoutMillis = 10000;
+	private OverloadPolicy overloadPolicy = OverloadPolicy.DISCONNECT;
+	private WriteWatermarks writeWatermarks;
+	private long keepaliveIntervalMillis = 30000;
+	private long idleTimeoutMillis = 120000;
+	private long sessionTtlMillis = 300000;
+	private int maxParkedSessions = 1000000;
+	private String clusterSecret;
+	private SessionTable sessionTable;
+	private BufferPool bufferPool;
+	private ExecutorService workerPool;
+	private EventLoop acceptor;
+	private DatagramTransport datagramTransport;
+	private boolean datagramEnabled;
+	private int maxConversations = 10000;
+	private boolean reusePort;
+	private int eventLoopCount;
 	private int port;
 
 	/**
@@ -37,6 +76,7 @@ public class HangmanServer {
 	 * Parses a given port. If not valid 4444 will be used.
 	 * @param port The port to be used for the server.
 	 */
+	@Override
 	public void parsePort(String port){
 		final String PORT_REGEX =
 				"(6553[0-5]|655[0-2][0-9]\\d|65[0-4](\\d){2}|6[0-4](\\d){3}|[1-5](\\d){4}|[1-9](\\d){0,3})";
@@ -45,139 +85,295 @@ public class HangmanServer {
 		}
 	}
 
+	@Override
+	public void setReusePort(boolean reusePort){
+		this.reusePort = reusePort;
+	}
+
+	@Override
+	public void setSessionTtl(long sessionTtlMillis){
+		this.sessionTtlMillis = sessionTtlMillis;
+	}
+
+	@Override
+	public void setMaxParkedSessions(int maxParkedSessions){
+		this.maxParkedSessions = maxParkedSessions;
+	}
+
+	@Override
+	public void setClusterSecret(String clusterSecret){
+		this.clusterSecret = clusterSecret;
+	}
+
+	/**
+	 *  Serves clients over UDP as well, on the same port number as the TCP connections.
+	 * @param datagramEnabled (boolean) True to receive datagrams
+	 */
+	public void setDatagramEnabled(boolean datagramEnabled){
+		this.datagramEnabled = datagramEnabled;
+	}
+
+	/**
+	 *  Caps the conversations over UDP, datagrams that would start a new conversation beyond it are dropped.
+	 * @param maxConversations (int) The most conversations, values below one are treated as one
+	 */
+	public void setMaxConversations(int maxConversations){
+		this.maxConversations = Math.max(1, maxConversations);
+	}
+
+	/**
+	 * @return (int) The most conversations over UDP.
+	 */
+	int getMaxConversations(){
+		return maxConversations;
+	}
+
+	/**
+	 *  Sets the number of event loops handling connections.
+	 *  Zero means that the acceptor handles the connections itself.
+	 * @param eventLoopCount (int) Number of event loops, negative values are treated as zero
+	 */
+	public void setEventLoopCount(int eventLoopCount){
+		this.eventLoopCount = Math.max(0, eventLoopCount);
+	}
+
+	/**
+	 *  Sets the number of workers running the game operations.
+	 * @param workerCount (int) Number of workers, values below one are treated as one
+	 */
+	public void setWorkerCount(int workerCount){
+		this.workerCount = Math.max(1, workerCount);
+	}
+
+	/**
+	 * @return (Executor) The pool that runs the game operations.
+	 */
+	Executor getWorkerPool(){
+		return workerPool;
+	}
+
+	/**
+	 *  Sets the cap on direct memory held by the pool of read and write buffers.
+	 *  When the pool is at its cap, buffers are allocated on the heap for as long as they are borrowed.
+	 * @param maxPooledBytes (long) The cap in bytes
+	 */
+	public void setMaxPooledBytes(long maxPooledBytes){
+		this.maxPooledBytes = maxPooledBytes;
+	}
+
+	/**
+	 *  Sets the limits on unwritten response bytes of each connection.
+	 *  Above the high watermark the server stops reading from the client, below the low watermark it reads again.
+	 * @param lowWatermark (long) Bytes below which reading is resumed
+	 * @param highWatermark (long) Bytes above which reading is paused
+	 */
+	public void setWriteWatermarks(long lowWatermark, long highWatermark){
+		this.writeLowWatermark = lowWatermark;
+		this.writeHighWatermark = highWatermark;
+	}
+
+	/**
+	 *  Sets what is done with clients that stay above the high watermark.
+	 * @param overloadTimeoutMillis (long) How long a client may stay above the high watermark
+	 * @param overloadPolicy (OverloadPolicy) What is done with the client after that
+	 */
+	public void setOverloadPolicy(long overloadTimeoutMillis, OverloadPolicy overloadPolicy){
+		this.overloadTimeoutMillis = overloadTimeoutMillis;
+		this.overloadPolicy = overloadPolicy;
+	}
+
+	/**
+	 *  Sets how idle connections are probed and closed.
+	 *  A client silent for the keepalive interval gets a PING, one silent for the idle timeout is closed.
+	 *  An idle timeout that doesn't leave the client time to answer the PING is raised to twice the interval.
+	 * @param keepaliveIntervalMillis (long) The keepalive interval, 0 turns off probing and closing
+	 * @param idleTimeoutMillis (long) The idle timeout, longer than the keepalive interval
+	 */
+	public void setKeepalive(long keepaliveIntervalMillis, long idleTimeoutMillis){
+		this.keepaliveIntervalMillis = Math.max(0, keepaliveIntervalMillis);
+		this.idleTimeoutMillis = this.keepaliveIntervalMillis > 0 && idleTimeoutMillis <= this.keepaliveIntervalMillis
+				? 2 * this.keepaliveIntervalMillis : Math.max(0, idleTimeoutMillis);
+	}
+
+	/**
+	 *  Sets the keepalive interval and keeps the idle timeout, unless it has to be raised.
+	 * @param keepaliveIntervalMillis (long) The keepalive interval, 0 turns off probing and closing
+	 */
+	public void setKeepalive(long keepaliveIntervalMillis){
+		setKeepalive(keepaliveIntervalMillis, idleTimeoutMillis);
+	}
+
+	/**
+	 * @return (long) The keepalive interval in nanoseconds, 0 if turned off.
+	 */
+	long getKeepaliveIntervalNanos(){
+		return TimeUnit.MILLISECONDS.toNanos(keepaliveIntervalMillis);
+	}
+
+	/**
+	 * @return (long) The idle timeout in nanoseconds.
+	 */
+	long getIdleTimeoutNanos(){
+		return TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+	}
+
+	/**
+	 * @return (WriteWatermarks) The limits on unwritten response bytes of each connection.
+	 */
+	WriteWatermarks getWriteWatermarks(){
+		return writeWatermarks;
+	}
+
+	/**
+	 * @return (ServerMetrics) The metrics of the server.
+	 */
+	ServerMetrics getServerMetrics(){
+		return serverMetrics;
+	}
+
+	/**
+	 * @return (SessionTable) The sessions of the server.
+	 */
+	SessionTable getSessionTable(){
+		return sessionTable;
+	}
+
+	/**
+	 * @return (BufferPool) The pool of buffers for reading and writing.
+	 */
+	BufferPool getBufferPool(){
+		return bufferPool;
+	}
+
 	/**
 	 *  Starts the server.
 	 */
+	@Override
 	public void serve(){
 		try {
-			System.out.println("Starting server...");
-			initSelector();
+			LOG.info("Starting server...");
+			bufferPool = new BufferPool(MessageCodec.FRAME_BUFFER_SIZE, maxPooledBytes);
+			writeWatermarks = new WriteWatermarks(writeLowWatermark, writeHighWatermark,
+					TimeUnit.MILLISECONDS.toNanos(overloadTimeoutMillis), overloadPolicy);
+			sessionTable = new SessionTable(controller, sessionTtlMillis, maxParkedSessions, clusterSecret);
+			sessionTable.start();
+			initWorkerPool();
+			initEventLoops();
+			initMetrics();
 			initServerSocketChannel();
+			initDatagramTransport();
 		}catch (IOException exception){
-			System.out.println("\nUnable to start server on given port!");
+			LOG.error("Unable to start server on given port: {}", exception.getMessage());
 			System.exit(1);
 		}
-		running = true;
-		System.out.println("Accepting new connections!");
-		processConnections();
+		LOG.info("Accepting new connections!");
+		acceptor.run();
 	}
 
 	/**
-	 *	Adds the key for the queue to be ready for sending a message to a client.
-	 * @param selectionKey (SelectionKey) The key to be added to the queue
+	 *  Starts the workers that run the game operations.
 	 */
-	public void queueMessageForWriting(SelectionKey selectionKey) {
-		sendingQueue.add(selectionKey);
+	private void initWorkerPool(){
+		AtomicInteger workerNumber = new AtomicInteger();
+		workerPool = Executors.newFixedThreadPool(workerCount, task -> {
+			Thread thread = new Thread(task, "game-worker-" + workerNumber.getAndIncrement());
+			thread.setDaemon(true);
+			return thread;
+		});
 	}
 
+	/**
+	 *  Binds the datagram transport and starts its thread, if datagrams are enabled.
+	 * @throws IOException When the datagram channel can't be bound.
+	 */
+	private void initDatagramTransport() throws IOException{
+		if (!datagramEnabled) return;
+		datagramTransport = new DatagramTransport(this);
+		datagramTransport.bind(port, reusePort);
+		serverMetrics.registerGauge("datagram.conversations", datagramTransport::getPeerCount);
+		serverMetrics.registerGauge("datagram.duplicates", datagramTransport::getDuplicates);
+		serverMetrics.registerGauge("datagram.refused", datagramTransport::getRefused);
+		serverMetrics.registerGauge("datagram.challenges", datagramTransport::getChallenges);
+		Thread thread = new Thread(datagramTransport, "datagram-transport");
+		thread.setDaemon(true);
+		thread.start();
+	}
 
 	/**
-	 * Opens the selector.
-	 * @throws IOException When something is wrong with the selector.
+	 *  Adds the gauges of the worker pool, the buffer pool, the sessions and the event loops and registers the MBean.
 	 */
-	private void initSelector() throws IOException{ selector = Selector.open(); }
+	private void initMetrics(){
+		ThreadPoolExecutor workers = (ThreadPoolExecutor) workerPool;
+		serverMetrics.registerGauge("workerQueueDepth", () -> workers.getQueue().size());
+		serverMetrics.registerGauge("bufferPool.buffersInUse", bufferPool::getBuffersInUse);
+		serverMetrics.registerGauge("bufferPool.pooledBytes", bufferPool::getPooledBytes);
+		serverMetrics.registerGauge("bufferPool.overflowAllocations", bufferPool::getOverflowAllocations);
+		serverMetrics.registerGauge("log.droppedRecords", Log::getDroppedRecords);
+		serverMetrics.registerGauge("sessions.count", sessionTable::getSessionCount);
+		serverMetrics.registerGauge("sessions.parked", sessionTable::getParkedCount);
+		serverMetrics.registerGauge("sessions.parkedBytes", sessionTable::getParkedBytes);
+		serverMetrics.registerGauge(acceptor.getName() + ".pendingFlushes", acceptor::getPendingFlushes);
+		for (EventLoop eventLoop : eventLoops) {
+			serverMetrics.registerGauge(eventLoop.getName() + ".pendingFlushes", eventLoop::getPendingFlushes);
+		}
+		serverMetrics.registerMBean("nio");
+	}
+
+	/**
+	 *  Opens the acceptor and the event loops and starts the event loop threads.
+	 * @throws IOException When a selector can't be opened.
+	 */
+	private void initEventLoops() throws IOException{
+		acceptor = new EventLoop(this, "acceptor");
+		eventLoops = new EventLoop[eventLoopCount];
+		for (int i = 0; i < eventLoopCount; i++) {
+			eventLoops[i] = new EventLoop(this, "event-loop-" + i);
+			Thread thread = new Thread(eventLoops[i], eventLoops[i].getName());
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
 
 	/**
 	 *	Initializes the server on the given port and registers the selector.
+	 *	With reuse port set, other processes may listen on the same port.
 	 * @throws IOException When something is wrong when initializing
 	 */
 	private void initServerSocketChannel() throws IOException{
 		InetSocketAddress inetSocketAddress = new InetSocketAddress(port);
 		serverSocketChannel = ServerSocketChannel.open();
 		serverSocketChannel.configureBlocking(false);
-		ServerSocket serverSocket = serverSocketChannel.socket();
-		serverSocket.bind(inetSocketAddress);
-		System.out.println("Server on: " + serverSocket);
-		serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT);
-	}
-
-	/**
-	 *
-	 */
-	private void processConnections(){
-		while (running){
-			try {
-				while (!sendingQueue.isEmpty()) {
-					sendingQueue.poll().interestOps(SelectionKey.OP_WRITE);
-				}
-				int numKeys = selector.select();
-				if (numKeys > 0){
-					Set eventKeys = selector.selectedKeys();
-					for (Object eventKey : eventKeys) {
-						SelectionKey key = (SelectionKey) eventKey;
-						if (!key.isValid()) continue;
-						int keyOps = key.readyOps();
-						if ((keyOps & SelectionKey.OP_ACCEPT) == SelectionKey.OP_ACCEPT) acceptClientConnection(key);
-						if ((keyOps & SelectionKey.OP_READ) == SelectionKey.OP_READ) acceptMessageFromConnection(key);
-						if ((keyOps & SelectionKey.OP_WRITE) == SelectionKey.OP_WRITE) writeMessageToConnection(key);
-						selector.selectedKeys().remove(key);
-					}
-				}
-			}catch (IOException exception){
-				System.err.println("Couldn't establish a connection.");
+		if (reusePort) {
+			if (serverSocketChannel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+				serverSocketChannel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+			} else {
+				LOG.warn("SO_REUSEPORT is not supported on this platform.");
 			}
 		}
+		ServerSocket serverSocket = serverSocketChannel.socket();
+		serverSocket.bind(inetSocketAddress);
+		LOG.info("Server on: {} with {} event loops", serverSocket, eventLoopCount);
+		serverSocketChannel.register(acceptor.getSelector(), SelectionKey.OP_ACCEPT);
 	}
 
 	/**
-	 *	Establishes a connection with a new client.
-	 *	It attaches a client handler to the key.
+	 *	Accepts a connection with a new client and hands it to an event loop.
 	 * @param key (SelectionKey) The key the connection comes from.
 	 * @throws IOException If something happens when establishing connection.
 	 */
-	private void acceptClientConnection(SelectionKey key) throws IOException {
+	void acceptClientConnection(SelectionKey key) throws IOException {
 		ServerSocketChannel serverSocketChannel = (ServerSocketChannel) key.channel();
 		SocketChannel socketChannel = serverSocketChannel.accept();
-		socketChannel.configureBlocking(false);
-		Socket socket = socketChannel.socket();
-		ClientHandler clientHandler = new ClientHandler(this, socketChannel);
-		System.out.println("Connection on " + socket + ".");
-		SelectionKey selectionKey = socketChannel.register(selector, SelectionKey.OP_READ, clientHandler);
-		clientHandler.setSelectionKey(selectionKey);
-	}
-
-	/**
-	 *	Reads a message from the connection.
-	 * @param key (SelectionKey) The key the client is attached to.
-	 */
-	private void acceptMessageFromConnection(SelectionKey key){
-		System.out.println("\nReading message");
-		ClientHandler clientHandler = (ClientHandler) key.attachment();
-		try {
-			clientHandler.readMessage();
-		} catch (IOException exception){
-			removeClient(key);
-		}
-
+		if (socketChannel == null) return;
+		serverMetrics.connectionAccepted();
+		nextEventLoop().register(socketChannel);
 	}
 
 	/**
-	 * Removes the disconnects the client from the key and cancels it.
-	 * @param key (SelectionKey) The key the client is attached to.
+	 * @return (EventLoop) The event loop that should handle the next connection.
 	 */
-	private void removeClient(SelectionKey key) {
-		ClientHandler clientHandler = (ClientHandler) key.attachment();
-		clientHandler.disconnect();
-		key.cancel();
-	}
-
-	/**
-	 *	Writes a message to the client attached to the key.
-	 * @param key (SelectionKey) The connection to the client
-	 * @throws IOException If something is wrong when writing
-	 */
-	private void writeMessageToConnection(SelectionKey key) throws IOException {
-		System.out.println("\nWriting message");
-		ClientHandler clientHandler = (ClientHandler) key.attachment();
-		clientHandler.writeMessage();
-		key.interestOps(SelectionKey.OP_READ);
-	}
-
-	/**
-	 *	Wakes up the selector
-	 */
-	public void wakeUpSelector() {
-		selector.wakeup();
+	private EventLoop nextEventLoop(){
+		if (eventLoops.length == 0) return acceptor;
+		return eventLoops[Math.floorMod(nextEventLoop.getAndIncrement(), eventLoops.length)];
 	}
 }
-
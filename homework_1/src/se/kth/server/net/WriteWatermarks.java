@@ -0,0 +1,28 @@
+package se.kth.server.net;
+
+/**
+ *  Limits on the unwritten response bytes of one connection.
+ *  Above the high watermark the server stops reading from the client, below the low watermark
+ *  it reads again. A client above the high watermark for longer than the timeout is handled
+ *  according to the overload policy.
+ */
+class WriteWatermarks {
+    final long lowWatermark;
+    final long highWatermark;
+    final long overloadTimeoutNanos;
+    final OverloadPolicy overloadPolicy;
+
+    /**
+     *  Creates the limits.
+     * @param lowWatermark (long) Bytes below which reading is resumed
+     * @param highWatermark (long) Bytes above which reading is paused
+     * @param overloadTimeoutNanos (long) How long a client may stay above the high watermark
+     * @param overloadPolicy (OverloadPolicy) What to do with a client that stays above it longer
+     */
+    WriteWatermarks(long lowWatermark, long highWatermark, long overloadTimeoutNanos, OverloadPolicy overloadPolicy) {
+        this.lowWatermark = Math.min(lowWatermark, highWatermark);
+        this.highWatermark = highWatermark;
+        this.overloadTimeoutNanos = overloadTimeoutNanos;
+        this.overloadPolicy = overloadPolicy;
+    }
+}
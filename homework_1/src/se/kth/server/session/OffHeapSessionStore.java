@@ -0,0 +1,296 @@
+package se.kth.server.session;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ *  The parked sessions of a session table, in fixed slots of direct memory so millions of them
+ *  don't add to the heap or to the work of the garbage collector.
+ *  A slot holds the token of the session and its game, with the word as an index into the words
+ *  and the revealed positions as a bit mask:
+ *      0   long    high half of the token
+ *      8   long    low half of the token
+ *      16  long    revealed positions, bit i is set when letter i of the word is shown
+ *      24  int     index of the word, -1 when the word has been guessed and no new word started
+ *      28  int     score
+ *      32  int     tenths of a second from the creation of the store until the session was parked
+ *      36  short   remaining attempts
+ *      38  byte    state of the slot, empty, used or removed
+ *  The slots are spread over segments by the token, every segment is an open addressed table
+ *  with linear probing and its own lock. A segment doubles when it is three quarters full.
+ *  put(...)            -   Parks a game, replacing one parked with the same token.
+ *  contains(high, low) -   Tells if a game is parked with the token.
+ *  take(high, low)     -   Removes a parked game and returns it, unless it has expired.
+ *  evictExpired()      -   Removes the games parked for longer than the time to live.
+ */
+class OffHeapSessionStore {
+    static final int SLOT_SIZE = 40;
+    private static final int TOKEN_HIGH = 0;
+    private static final int TOKEN_LOW = 8;
+    private static final int REVEALED_MASK = 16;
+    private static final int WORD_INDEX = 24;
+    private static final int SCORE = 28;
+    private static final int PARKED_AT = 32;
+    private static final int REMAINING_ATTEMPTS = 36;
+    private static final int STATE = 38;
+    private static final byte EMPTY = 0;
+    private static final byte USED = 1;
+    private static final byte REMOVED = 2;
+    private static final int SEGMENT_BITS = 6;
+    private static final int INITIAL_SEGMENT_SLOTS = 256;
+    private final Segment[] segments = new Segment[1 << SEGMENT_BITS];
+    private final AtomicInteger size = new AtomicInteger();
+    private final long createdAt = System.nanoTime();
+    private final long ttlTenths;
+    private final int maxSize;
+
+    /**
+     *  Creates an empty store.
+     * @param ttlNanos (long) Nanoseconds a game is kept, rounded up to tenths of a second
+     * @param maxSize (int) The most games that are kept at the same time
+     */
+    OffHeapSessionStore(long ttlNanos, int maxSize) {
+        this.ttlTenths = (ttlNanos + 99_999_999) / 100_000_000;
+        this.maxSize = maxSize;
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = new Segment(INITIAL_SEGMENT_SLOTS);
+        }
+    }
+
+    /**
+     *  Parks a game, a game already parked with the token is replaced.
+     * @param tokenHigh (long) High half of the token
+     * @param tokenLow (long) Low half of the token
+     * @param wordIndex (int) Index of the word, -1 if there is no word
+     * @param revealedMask (long) The revealed positions
+     * @param score (int) The score
+     * @param remainingAttempts (int) The remaining attempts
+     * @return (boolean) False if the store is full and the game wasn't kept
+     */
+    boolean put(long tokenHigh, long tokenLow, int wordIndex, long revealedMask, int score, int remainingAttempts) {
+        Segment segment = segmentOf(tokenHigh);
+        synchronized (segment) {
+            int slot = segment.find(tokenHigh, tokenLow);
+            if (slot >= 0) {
+                segment.write(slot, tokenHigh, tokenLow, wordIndex, revealedMask, score, remainingAttempts, now());
+                return true;
+            }
+            if (size.incrementAndGet() > maxSize) {
+                size.decrementAndGet();
+                return false;
+            }
+            segment.put(tokenHigh, tokenLow, wordIndex, revealedMask, score, remainingAttempts, now());
+        }
+        return true;
+    }
+
+    /**
+     * @param tokenHigh (long) High half of the token
+     * @param tokenLow (long) Low half of the token
+     * @return (boolean) True if a game is parked with the token, even if it has expired since the last sweep
+     */
+    boolean contains(long tokenHigh, long tokenLow) {
+        Segment segment = segmentOf(tokenHigh);
+        synchronized (segment) {
+            return segment.find(tokenHigh, tokenLow) >= 0;
+        }
+    }
+
+    /**
+     *  Removes a parked game and returns it.
+     * @param tokenHigh (long) High half of the token
+     * @param tokenLow (long) Low half of the token
+     * @return (ParkedGame) The game, or null if the token is unknown or the game has expired
+     */
+    ParkedGame take(long tokenHigh, long tokenLow) {
+        Segment segment = segmentOf(tokenHigh);
+        ParkedGame parkedGame;
+        synchronized (segment) {
+            int slot = segment.find(tokenHigh, tokenLow);
+            if (slot < 0) return null;
+            parkedGame = segment.read(slot);
+            segment.remove(slot);
+        }
+        size.decrementAndGet();
+        return isExpired(parkedGame.parkedAt, now()) ? null : parkedGame;
+    }
+
+    /**
+     *  Removes the games parked for longer than the time to live, one segment at a time.
+     * @return (int) Number of removed games
+     */
+    int evictExpired() {
+        int evicted = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                int now = now();
+                for (int slot = 0; slot < segment.capacity; slot++) {
+                    if (segment.stateAt(slot) == USED && isExpired(segment.parkedAt(slot), now)) {
+                        segment.remove(slot);
+                        evicted++;
+                    }
+                }
+            }
+        }
+        size.addAndGet(-evicted);
+        return evicted;
+    }
+
+    /**
+     * @return (int) Number of parked games.
+     */
+    int size() {
+        return size.get();
+    }
+
+    /**
+     * @return (long) Direct memory in bytes held by the slots.
+     */
+    long getAllocatedBytes() {
+        long bytes = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                bytes += (long) segment.capacity * SLOT_SIZE;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * @return (int) Tenths of a second since the store was created.
+     */
+    private int now() {
+        return (int) ((System.nanoTime() - createdAt) / 100_000_000);
+    }
+
+    private boolean isExpired(int parkedAt, int now) {
+        return now - parkedAt > ttlTenths;
+    }
+
+    private Segment segmentOf(long tokenHigh) {
+        return segments[(int) (tokenHigh >>> (Long.SIZE - SEGMENT_BITS))];
+    }
+
+    /**
+     *  A game taken out of the store.
+     */
+    static final class ParkedGame {
+        final int wordIndex;
+        final long revealedMask;
+        final int score;
+        final int remainingAttempts;
+        final int parkedAt;
+
+        ParkedGame(int wordIndex, long revealedMask, int score, int remainingAttempts, int parkedAt) {
+            this.wordIndex = wordIndex;
+            this.revealedMask = revealedMask;
+            this.score = score;
+            this.remainingAttempts = remainingAttempts;
+            this.parkedAt = parkedAt;
+        }
+    }
+
+    /**
+     *  One open addressed table of slots, only used while holding its monitor.
+     *  The tokens are random, so the low half of the token is used as the hash.
+     */
+    private static final class Segment {
+        private ByteBuffer slots;
+        private int capacity;
+        private int used;
+        private int removed;
+
+        Segment(int capacity) {
+            this.capacity = capacity;
+            slots = ByteBuffer.allocateDirect(capacity * SLOT_SIZE);
+        }
+
+        /**
+         * @return The slot of the token, or -1 if it isn't in the segment.
+         */
+        int find(long tokenHigh, long tokenLow) {
+            int mask = capacity - 1;
+            for (int slot = (int) tokenLow & mask; ; slot = (slot + 1) & mask) {
+                byte state = stateAt(slot);
+                if (state == EMPTY) return -1;
+                int offset = slot * SLOT_SIZE;
+                if (state == USED && slots.getLong(offset + TOKEN_LOW) == tokenLow
+                        && slots.getLong(offset + TOKEN_HIGH) == tokenHigh) {
+                    return slot;
+                }
+            }
+        }
+
+        void put(long tokenHigh, long tokenLow, int wordIndex, long revealedMask, int score,
+                 int remainingAttempts, int parkedAt) {
+            if ((used + removed + 1) * 4L > capacity * 3L) {
+                resize(used * 2 >= capacity ? capacity * 2 : capacity);
+            }
+            int mask = capacity - 1;
+            int slot = (int) tokenLow & mask;
+            while (stateAt(slot) == USED) {
+                slot = (slot + 1) & mask;
+            }
+            if (stateAt(slot) == REMOVED) removed--;
+            write(slot, tokenHigh, tokenLow, wordIndex, revealedMask, score, remainingAttempts, parkedAt);
+            used++;
+        }
+
+        ParkedGame read(int slot) {
+            int offset = slot * SLOT_SIZE;
+            return new ParkedGame(slots.getInt(offset + WORD_INDEX), slots.getLong(offset + REVEALED_MASK),
+                    slots.getInt(offset + SCORE), slots.getShort(offset + REMAINING_ATTEMPTS), parkedAt(slot));
+        }
+
+        void remove(int slot) {
+            slots.put(slot * SLOT_SIZE + STATE, REMOVED);
+            used--;
+            removed++;
+        }
+
+        byte stateAt(int slot) {
+            return slots.get(slot * SLOT_SIZE + STATE);
+        }
+
+        int parkedAt(int slot) {
+            return slots.getInt(slot * SLOT_SIZE + PARKED_AT);
+        }
+
+        private void write(int slot, long tokenHigh, long tokenLow, int wordIndex, long revealedMask, int score,
+                           int remainingAttempts, int parkedAt) {
+            int offset = slot * SLOT_SIZE;
+            slots.putLong(offset + TOKEN_HIGH, tokenHigh);
+            slots.putLong(offset + TOKEN_LOW, tokenLow);
+            slots.putLong(offset + REVEALED_MASK, revealedMask);
+            slots.putInt(offset + WORD_INDEX, wordIndex);
+            slots.putInt(offset + SCORE, score);
+            slots.putInt(offset + PARKED_AT, parkedAt);
+            slots.putShort(offset + REMAINING_ATTEMPTS, (short) remainingAttempts);
+            slots.put(offset + STATE, USED);
+        }
+
+        /**
+         *  Moves the used slots to a new table, which also drops the removed ones.
+         * @param newCapacity The number of slots of the new table, a power of two
+         */
+        private void resize(int newCapacity) {
+            ByteBuffer oldSlots = slots;
+            int oldCapacity = capacity;
+            slots = ByteBuffer.allocateDirect(newCapacity * SLOT_SIZE);
+            capacity = newCapacity;
+            used = 0;
+            removed = 0;
+            int mask = newCapacity - 1;
+            for (int oldSlot = 0; oldSlot < oldCapacity; oldSlot++) {
+                int from = oldSlot * SLOT_SIZE;
+                if (oldSlots.get(from + STATE) != USED) continue;
+                int slot = (int) oldSlots.getLong(from + TOKEN_LOW) & mask;
+                while (stateAt(slot) == USED) {
+                    slot = (slot + 1) & mask;
+                }
+                slots.put(slot * SLOT_SIZE, oldSlots, from, SLOT_SIZE);
+                used++;
+            }
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package se.kth.server.startup;
+
+import se.kth.server.log.Logger;
+import se.kth.server.log.Log;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *  Runs several server processes that listen on the same port with SO_REUSEPORT, so the kernel
+ *  spreads the incoming connections between them. Every process is a JVM of its own, started with
+ *  the same JVM options and server options as the launcher.
+ *  The launcher restarts a process that dies, unless it dies right after it was started, e.g. because
+ *  the port is taken. The processes are stopped when the launcher stops.
+ */
+class ProcessLauncher {
+    private static final Logger LOG = Log.getLogger("server.launcher");
+    private static final String REUSE_PORT_OPTION = "--reuse-port";
+    private static final String DEBUG_AGENT = "-agentlib:jdwp";
+    private static final long MIN_UPTIME_NANOS = TimeUnit.SECONDS.toNanos(5);
+    private static final long POLL_MILLIS = 500;
+    private final List<String> command = new ArrayList<>();
+    private final Process[] processes;
+    private final long[] startTimes;
+    private volatile boolean stopping;
+
+    /**
+     *  Creates a launcher for a number of server processes.
+     * @param processCount (int) Number of processes
+     * @param serverArgs (List) The options of every process, without the number of processes
+     */
+    ProcessLauncher(int processCount, List<String> serverArgs) {
+        processes = new Process[processCount];
+        startTimes = new long[processCount];
+        command.add(ProcessHandle.current().info().command().orElse(System.getProperty("java.home") + "/bin/java"));
+        for (String jvmArg : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+            if (!jvmArg.startsWith(DEBUG_AGENT)) command.add(jvmArg);
+        }
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(Main.class.getName());
+        command.addAll(serverArgs);
+        if (!serverArgs.contains(REUSE_PORT_OPTION)) command.add(REUSE_PORT_OPTION);
+    }
+
+    /**
+     *  Starts the processes and watches them until the launcher is stopped or every process has failed.
+     */
+    void run() {
+        Runtime.getRuntime().addShutdownHook(new Thread(this::stopProcesses, "launcher-shutdown"));
+        for (int i = 0; i < processes.length; i++) {
+            start(i);
+        }
+        LOG.info("Started {} server processes.", processes.length);
+        while (!stopping && watchProcesses()) {
+            try {
+                Thread.sleep(POLL_MILLIS);
+            } catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        if (stopping) return;
+        LOG.error("Every server process has failed, stopping.");
+        System.exit(1);
+    }
+
+    /**
+     *  Restarts the processes that have died.
+     * @return (boolean) True while at least one process is running
+     */
+    private boolean watchProcesses() {
+        boolean running = false;
+        for (int i = 0; i < processes.length; i++) {
+            Process process = processes[i];
+            if (process == null) continue;
+            if (process.isAlive()) {
+                running = true;
+            } else if (stopping) {
+                return false;
+            } else if (System.nanoTime() - startTimes[i] < MIN_UPTIME_NANOS) {
+                LOG.error("Server process {} exited right after it started with code {}, not restarting it.",
+                        i, process.exitValue());
+                processes[i] = null;
+            } else {
+                LOG.warn("Server process {} exited with code {}, restarting it.", i, process.exitValue());
+                running |= start(i);
+            }
+        }
+        return running;
+    }
+
+    /**
+     *  Starts one process, its output goes to the output of the launcher.
+     * @param index (int) The index of the process
+     * @return (boolean) True if the process was started
+     */
+    private boolean start(int index) {
+        try {
+            processes[index] = new ProcessBuilder(command).inheritIO().start();
+            startTimes[index] = System.nanoTime();
+            return true;
+        } catch (IOException exception) {
+            LOG.error("Unable to start server process {}: {}", index, exception.getMessage());
+            processes[index] = null;
+            return false;
+        }
+    }
+
+    /**
+     *  Stops every process, called when the launcher stops.
+     */
+    private void stopProcesses() {
+        stopping = true;
+        for (Process process : processes) {
+            if (process != null) process.destroy();
+        }
+        for (Process process : processes) {
+            try {
+                if (process != null && !process.waitFor(5, TimeUnit.SECONDS)) process.destroyForcibly();
+            } catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
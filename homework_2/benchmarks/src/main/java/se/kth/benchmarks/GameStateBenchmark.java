@@ -0,0 +1,37 @@
+package se.kth.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import se.kth.common.GameState;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *  Formatting a game state for the client, done for every text response.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GameStateBenchmark {
+    private GameState gameState;
+
+    @Setup
+    public void setUp() {
+        gameState = new GameState(3, 7, "b_n_h_a_k".toCharArray(), "benchmark");
+    }
+
+    @Benchmark
+    public String gameStateToString() {
+        return gameState.toString();
+    }
+}
@@ -0,0 +1,61 @@
+package se.kth.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import se.kth.common.GameState;
+import se.kth.common.Message;
+import se.kth.common.MessageType;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *  The text form of messages, as it is written to and read from the socket.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageBenchmark {
+    private Message guessMessage;
+    private Message gameStateMessage;
+    private String serializedGuess;
+    private String serializedGameState;
+
+    @Setup
+    public void setUp() {
+        guessMessage = new Message(MessageType.GUESS, "e");
+        GameState gameState = new GameState(3, 7, "b_n_h_a_k".toCharArray(), "benchmark");
+        gameStateMessage = new Message(MessageType.RESPONSE_GUESS, gameState);
+        serializedGuess = Message.serialize(guessMessage);
+        serializedGameState = Message.serialize(gameStateMessage);
+    }
+
+    @Benchmark
+    public String serializeGuess() {
+        return Message.serialize(guessMessage);
+    }
+
+    @Benchmark
+    public String serializeGameState() {
+        return Message.serialize(gameStateMessage);
+    }
+
+    @Benchmark
+    public Message deserializeGuess() {
+        return Message.deserialize(serializedGuess);
+    }
+
+    @Benchmark
+    public Message deserializeGameState() {
+        return Message.deserialize(serializedGameState);
+    }
+}
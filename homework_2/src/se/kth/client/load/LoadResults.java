@@ -0,0 +1,95 @@
+package se.kth.client.load;
+
+import se.kth.common.LatencyHistogram;
+import se.kth.common.MessageType;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ *  The results of a load test, shared by all load workers.
+ *  Latencies are from writing a message until its response has been decoded, per type of message.
+ */
+class LoadResults {
+    private final Map<MessageType, LatencyHistogram> latencies = new EnumMap<>(MessageType.class);
+    private final LongAdder connectedClients = new LongAdder();
+    private final LongAdder connectFailures = new LongAdder();
+    private final LongAdder disconnects = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private volatile boolean recording;
+
+    /**
+     *  Creates empty results, nothing is recorded until recording is started.
+     */
+    LoadResults() {
+        for (MessageType messageType : MessageType.values()) {
+            latencies.put(messageType, new LatencyHistogram());
+        }
+    }
+
+    /**
+     *  Starts recording latencies, called when the warm up is over.
+     */
+    void startRecording() {
+        recording = true;
+    }
+
+    /**
+     *  Records the latency of one response.
+     * @param messageType (MessageType) The type of the message that was answered
+     * @param latencyNanos (long) Nanoseconds from writing the message until the response was decoded
+     */
+    void recordResponse(MessageType messageType, long latencyNanos) {
+        if (recording) latencies.get(messageType).record(latencyNanos);
+    }
+
+    void clientConnected() {
+        connectedClients.increment();
+    }
+
+    void connectFailed() {
+        connectFailures.increment();
+    }
+
+    void clientDisconnected() {
+        disconnects.increment();
+    }
+
+    void responseTimedOut() {
+        if (recording) timeouts.increment();
+    }
+
+    /**
+     *  Formats the results as a table with one row per type of message.
+     * @param measuredSeconds (double) Seconds that latencies were recorded for
+     * @return (String) The report
+     */
+    String report(double measuredSeconds) {
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("connected=%d connectFailures=%d disconnects=%d timeouts=%d%n",
+                connectedClients.sum(), connectFailures.sum(), disconnects.sum(), timeouts.sum()));
+        report.append(String.format("%-12s %10s %10s %10s %10s %10s %10s%n",
+                "type", "count", "msg/s", "p50 us", "p99 us", "p999 us", "max us"));
+        LatencyHistogram total = new LatencyHistogram();
+        for (Map.Entry<MessageType, LatencyHistogram> entry : latencies.entrySet()) {
+            if (entry.getValue().getCount() == 0) continue;
+            report.append(formatRow(entry.getKey().name(), entry.getValue(), measuredSeconds));
+            total.add(entry.getValue());
+        }
+        report.append(formatRow("ALL", total, measuredSeconds));
+        return report.toString();
+    }
+
+    /**
+     * @return One row of the report.
+     */
+    private static String formatRow(String name, LatencyHistogram histogram, double measuredSeconds) {
+        return String.format("%-12s %10d %10.0f %10d %10d %10d %10d%n", name, histogram.getCount(),
+                histogram.getCount() / measuredSeconds,
+                TimeUnit.NANOSECONDS.toMicros(histogram.getValueAtPercentile(50)),
+                TimeUnit.NANOSECONDS.toMicros(histogram.getValueAtPercentile(99)),
+                TimeUnit.NANOSECONDS.toMicros(histogram.getValueAtPercentile(99.9)),
+                TimeUnit.NANOSECONDS.toMicros(histogram.getMax()));
+    }
+}
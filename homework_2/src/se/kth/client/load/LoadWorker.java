@@ -0,0 +1,188 @@
+package se.kth.client.load;
+
+import se.kth.common.BufferPool;
+import se.kth.common.Message;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *  One thread of a load test, driving its share of the simulated clients with one selector.
+ *  Connections are opened a few at a time, so the server's accept backlog isn't overrun.
+ *  Responses that take longer than the timeout are counted and the client moves on.
+ */
+class LoadWorker implements Runnable {
+    private static final int MAX_PENDING_CONNECTS = 32;
+    private static final long SELECT_TIMEOUT_MILLIS = 100;
+    private final List<LoadConnection> connections = new ArrayList<>();
+    private final InetSocketAddress serverAddress;
+    private final BufferPool bufferPool;
+    private final LoadResults loadResults;
+    private final List<Message> script;
+    private final long responseTimeoutNanos;
+    private final int connectionCount;
+    private final boolean binary;
+    private final int pipelineDepth;
+    private final Random random;
+    private final Selector selector;
+    private volatile boolean running = true;
+    private int pendingConnects;
+
+    /**
+     *  Creates a worker with its own selector.
+     * @param serverAddress (InetSocketAddress) The server to connect to
+     * @param connectionCount (int) Number of simulated clients of this worker
+     * @param script (List) The messages every client repeats, or null for random games
+     * @param binary (boolean) True to ask the server for binary game states and deltas
+     * @param pipelineDepth (int) How many messages every client may have waiting for responses
+     * @param responseTimeoutNanos (long) How long a response may take
+     * @param bufferPool (BufferPool) The pool read buffers are borrowed from
+     * @param loadResults (LoadResults) Where latencies are recorded
+     * @param seed (long) Seed of the random guesses
+     * @throws IOException When the selector can't be opened
+     */
+    LoadWorker(InetSocketAddress serverAddress, int connectionCount, List<Message> script, boolean binary,
+               int pipelineDepth, long responseTimeoutNanos, BufferPool bufferPool, LoadResults loadResults, long seed) throws IOException {
+        this.serverAddress = serverAddress;
+        this.connectionCount = connectionCount;
+        this.script = script;
+        this.binary = binary;
+        this.pipelineDepth = pipelineDepth;
+        this.responseTimeoutNanos = responseTimeoutNanos;
+        this.bufferPool = bufferPool;
+        this.loadResults = loadResults;
+        this.random = new Random(seed);
+        selector = Selector.open();
+    }
+
+    /**
+     *  Stops the worker after the current pass, its connections are closed.
+     */
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    /**
+     *  Connects the clients and drives them until the worker is shut down.
+     */
+    @Override
+    public void run() {
+        long nextTimeoutCheck = System.nanoTime();
+        try {
+            while (running) {
+                openConnections();
+                selector.select(SELECT_TIMEOUT_MILLIS);
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.isValid()) handleKey(key);
+                }
+                long now = System.nanoTime();
+                if (now >= nextTimeoutCheck) {
+                    checkTimeouts(now);
+                    nextTimeoutCheck = now + TimeUnit.MILLISECONDS.toNanos(SELECT_TIMEOUT_MILLIS);
+                }
+            }
+        } catch (IOException exception) {
+            System.err.println("Load worker stopped: " + exception.getMessage());
+        } finally {
+            for (LoadConnection connection : connections) {
+                connection.close();
+            }
+            try {
+                selector.close();
+            } catch (IOException exception) {
+                System.err.println("Unable to close selector: " + exception.getMessage());
+            }
+        }
+    }
+
+    /**
+     *  Starts connecting clients until all of them are connecting or the limit of pending connects is reached.
+     * @throws IOException When a channel can't be opened
+     */
+    private void openConnections() throws IOException {
+        while (connections.size() < connectionCount && pendingConnects < MAX_PENDING_CONNECTS) {
+            SocketChannel socketChannel = SocketChannel.open();
+            socketChannel.configureBlocking(false);
+            socketChannel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            boolean connected = socketChannel.connect(serverAddress);
+            LoadConnection connection = new LoadConnection(socketChannel, bufferPool, loadResults,
+                    new Player(script, random), binary, pipelineDepth);
+            connection.setSelectionKey(socketChannel.register(selector,
+                    connected ? SelectionKey.OP_WRITE : SelectionKey.OP_CONNECT, connection));
+            connections.add(connection);
+            if (connected) {
+                startConnection(connection);
+            } else {
+                pendingConnects++;
+            }
+        }
+    }
+
+    /**
+     *  Queues the first messages of a connection that has connected at once, without waiting for OP_CONNECT.
+     * @param connection (LoadConnection) The connection
+     */
+    private void startConnection(LoadConnection connection) {
+        try {
+            connection.connected();
+            connection.write();
+        } catch (IOException exception) {
+            loadResults.connectFailed();
+            connection.close();
+        }
+    }
+
+    /**
+     *  Handles an event on one connection. A connection that fails is closed and not opened again.
+     * @param key (SelectionKey) The key of the connection
+     */
+    private void handleKey(SelectionKey key) {
+        LoadConnection connection = (LoadConnection) key.attachment();
+        boolean connecting = key.isConnectable();
+        try {
+            if (connecting) {
+                pendingConnects--;
+                connection.connected();
+                connection.write();
+                return;
+            }
+            if (key.isReadable()) connection.read();
+            if (key.isValid() && key.isWritable()) connection.write();
+        } catch (IOException exception) {
+            if (connecting) {
+                loadResults.connectFailed();
+            } else {
+                loadResults.clientDisconnected();
+            }
+            key.cancel();
+            connection.close();
+        }
+    }
+
+    /**
+     *  Moves on from responses that have taken too long.
+     * @param now (long) The current time from System.nanoTime()
+     */
+    private void checkTimeouts(long now) {
+        for (LoadConnection connection : connections) {
+            try {
+                connection.checkTimeout(now, responseTimeoutNanos);
+            } catch (IOException exception) {
+                loadResults.clientDisconnected();
+                connection.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,389 @@
+package se.kth.client.net;
+
+import se.kth.common.Message;
+import se.kth.common.MessageCodec;
+import se.kth.common.MessageType;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *  Connection to a server over datagrams, without connection setup and without head-of-line blocking.
+ *  Every connect starts a conversation with a random id. The requests of the conversation are numbered
+ *  and sent one at a time, a request is sent again until the response with its number arrives.
+ *  The server answers a repeated request without handling it twice.
+ *  The retransmit timeout follows the measured round trip time, only requests that weren't retransmitted
+ *  are measured, and it doubles on every retransmit. When a request has been sent too many times the
+ *  server is given up on, the game is resumed with its session token on the next connect.
+ *  An idle conversation is kept alive with a PING, so the server doesn't drop it.
+ *  The server answers a request from an address it hasn't confirmed with a PING instead of a larger response,
+ *  the request is sent again at once with a PONG carrying the body of the PING, which confirms the address.
+ *  The requests carry correlation ids like on TCP, the futures of the requests a response answers are completed.
+ *  Requests made while a datagram is outstanding are sent together in the next one, as many as fit in
+ *  MAX_DATAGRAM_SIZE bytes, so callers don't wait for a round trip per request.
+ */
+public class DatagramConnection implements GameConnection, Runnable {
+    private static final long INITIAL_RETRANSMIT_TIMEOUT_NANOS = TimeUnit.MILLISECONDS.toNanos(200);
+    private static final long MIN_RETRANSMIT_TIMEOUT_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+    private static final long MAX_RETRANSMIT_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(3);
+    private static final long KEEPALIVE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(30);
+    private static final int MAX_RETRANSMITS = 6;
+    private static final int MAX_REQUESTS_PER_DATAGRAM = 32;
+    private final LinkedBlockingQueue<List<Message>> sendingQueue = new LinkedBlockingQueue<>();
+    private final ByteBuffer receiveBuffer = ByteBuffer.allocate(MessageCodec.MAX_DATAGRAM_SIZE);
+    private final ResponseFormatter responseFormatter = new ResponseFormatter();
+    private final PendingRequests pendingRequests = new PendingRequests();
+    private final SecureRandom random = new SecureRandom();
+    private OutputHandler viewObserver;
+    private DatagramChannel datagramChannel;
+    private Selector selector;
+    private volatile boolean connected;
+    private volatile boolean running;
+    private long conversationId;
+    private int sequence;
+    private List<Message> outstandingMessages;
+    private ByteBuffer outstandingRequest;
+    private boolean outstandingQuit;
+    private int retransmits;
+    private long sentAt;
+    private long retransmitAt;
+    private long lastResponseAt;
+    private long retransmitTimeout = INITIAL_RETRANSMIT_TIMEOUT_NANOS;
+    private long smoothedRoundTrip = -1;
+    private long roundTripVariance;
+
+    /**
+     *  Starts a new conversation with the server.
+     *  The first request asks for game states in binary form and guess responses as deltas,
+     *  and resumes the last game if the server was given up on during it.
+     * @throws IOException When the datagram channel can't be opened
+     */
+    @Override
+    public void connect() throws IOException {
+        if (running) return;
+        datagramChannel = DatagramChannel.open();
+        datagramChannel.configureBlocking(false);
+        datagramChannel.connect(new InetSocketAddress(InetAddress.getLocalHost(), 4444));
+        selector = Selector.open();
+        datagramChannel.register(selector, SelectionKey.OP_READ);
+        conversationId = random.nextLong();
+        sequence = 0;
+        outstandingRequest = null;
+        lastResponseAt = System.nanoTime();
+        sendingQueue.clear();
+        Message hello = new Message(MessageType.HELLO, MessageCodec.BINARY_FEATURE + "," + MessageCodec.DELTA_FEATURE);
+        if (responseFormatter.getSessionToken() != null){
+            sendingQueue.add(List.of(hello, new Message(MessageType.RESUME, responseFormatter.getSessionToken())));
+        } else {
+            sendingQueue.add(List.of(hello));
+        }
+        connected = true;
+        running = true;
+        new Thread(this).start();
+    }
+
+    @Override
+    public void setViewObserver(OutputHandler viewObserver){
+        this.viewObserver = viewObserver;
+    }
+
+    /**
+     *  Quits the game, the conversation ends when the server has received the QUIT.
+     */
+    @Override
+    public void disconnect(){
+        if (connected){
+            connected = false;
+            responseFormatter.forgetSession();
+            queueAndSend(new Message(MessageType.QUIT, ""));
+            pendingRequests.failAll(new IOException("Disconnected from the server"));
+        }
+    }
+
+    @Override
+    public CompletableFuture<Message> startNewGame(String wordRequest) {
+        if (connected){
+            return request(MessageType.START, wordRequest);
+        } else {
+            viewObserver.print("Not connected to any server...");
+            return CompletableFuture.failedFuture(new IOException("Not connected to any server"));
+        }
+    }
+
+    @Override
+    public CompletableFuture<Message> submitGuess(String guess) {
+        if (connected) {
+            return request(MessageType.GUESS, guess);
+        } else {
+            viewObserver.print("Not connected to any server...");
+            return CompletableFuture.failedFuture(new IOException("Not connected to any server"));
+        }
+    }
+
+    /**
+     *  Makes several guesses to the started game in one request.
+     * @param guesses characters and words, made in order until one ends the game
+     * @return The future of the game after the guesses.
+     */
+    @Override
+    public CompletableFuture<Message> submitGuesses(List<String> guesses) {
+        if (connected) {
+            return request(MessageType.GUESS_BATCH, String.join(String.valueOf(MessageCodec.GUESS_SEPARATOR), guesses));
+        } else {
+            viewObserver.print("Not connected to any server...");
+            return CompletableFuture.failedFuture(new IOException("Not connected to any server"));
+        }
+    }
+
+    @Override
+    public CompletableFuture<Message> requestStats() {
+        if (connected) {
+            return request(MessageType.STATS, "");
+        } else {
+            viewObserver.print("Not connected to any server...");
+            return CompletableFuture.failedFuture(new IOException("Not connected to any server"));
+        }
+    }
+
+    /**
+     *  Adds a request to the pending requests and queues it with its correlation id.
+     * @param messageType (MessageType) The message type to be sent
+     * @param body (String) The message to be sent
+     * @return (CompletableFuture) The future of the answer
+     */
+    private CompletableFuture<Message> request(MessageType messageType, String body) {
+        int correlationId = pendingRequests.nextCorrelationId();
+        CompletableFuture<Message> response = pendingRequests.add(correlationId, messageType);
+        queueAndSend(new Message(messageType, body, correlationId));
+        return response;
+    }
+
+    /**
+     *  Queues a request and wakes up the selector for sending.
+     * @param message (Message) The request to be sent
+     */
+    private void queueAndSend(Message message) {
+        sendingQueue.add(List.of(message));
+        selector.wakeup();
+    }
+
+    /**
+     *  Sends the requests one at a time and retransmits them until the conversation ends.
+     */
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                long now = System.nanoTime();
+                if (outstandingRequest == null) sendNextRequest(now);
+                selector.select(selectTimeoutMillis(now));
+                selector.selectedKeys().clear();
+                receiveResponses();
+                checkRetransmit(System.nanoTime());
+            }
+        } catch (IOException exception) {
+            connected = false;
+            running = false;
+            viewObserver.print(exception.getMessage());
+        } finally {
+            pendingRequests.failAll(new IOException("The conversation with the server has ended"));
+            try {
+                selector.close();
+                datagramChannel.close();
+            } catch (IOException exception) {
+                viewObserver.print(exception.getMessage());
+            }
+        }
+    }
+
+    /**
+     *  Sends the queued requests in one datagram, or a PING if the conversation has been idle for the keepalive interval.
+     * @param now (long) System.nanoTime() of the send
+     * @throws IOException When the channel fails
+     */
+    private void sendNextRequest(long now) throws IOException {
+        List<Message> messages = sendingQueue.poll();
+        if (messages == null){
+            if (!connected || now - lastResponseAt < KEEPALIVE_INTERVAL_NANOS) return;
+            messages = List.of(new Message(MessageType.PING, String.valueOf(now)));
+        } else if (!sendingQueue.isEmpty()){
+            messages = new ArrayList<>(messages);
+            int datagramSize = MessageCodec.DATAGRAM_HEADER_SIZE + framesSize(messages);
+            List<Message> next;
+            while (messages.size() < MAX_REQUESTS_PER_DATAGRAM && (next = sendingQueue.peek()) != null
+                    && datagramSize + framesSize(next) <= MessageCodec.MAX_DATAGRAM_SIZE){
+                datagramSize += framesSize(next);
+                messages.addAll(sendingQueue.poll());
+            }
+        }
+        outstandingMessages = messages;
+        outstandingRequest = MessageCodec.encodeDatagram(conversationId, ++sequence, messages, false);
+        outstandingQuit = false;
+        for (Message message : messages) {
+            if (message.getMessageType() == MessageType.QUIT) outstandingQuit = true;
+        }
+        retransmits = 0;
+        sentAt = now;
+        transmit(now);
+    }
+
+    /**
+     * @param messages (List) Requests to be sent
+     * @return (int) Number of bytes the frames of the requests take in a datagram
+     */
+    private static int framesSize(List<Message> messages) {
+        int size = 0;
+        for (Message message : messages) {
+            size += MessageCodec.LENGTH_FIELD_SIZE + MessageCodec.encodeBody(message, false).length;
+        }
+        return size;
+    }
+
+    /**
+     *  Sends the outstanding request and sets when it is sent again.
+     * @param now (long) System.nanoTime() of the send
+     * @throws IOException When the channel fails
+     */
+    private void transmit(long now) throws IOException {
+        outstandingRequest.rewind();
+        datagramChannel.write(outstandingRequest);
+        retransmitAt = now + retransmitTimeout;
+    }
+
+    /**
+     * @param now (long) System.nanoTime() of the check
+     * @return (long) Milliseconds the selector may block, until the retransmit or the keepalive
+     */
+    private long selectTimeoutMillis(long now) {
+        long wakeUpAt = outstandingRequest != null ? retransmitAt : lastResponseAt + KEEPALIVE_INTERVAL_NANOS;
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(wakeUpAt - now));
+    }
+
+    /**
+     *  Retransmits the outstanding request when its timeout has passed, with a doubled timeout.
+     *  After too many retransmits the server is given up on.
+     * @param now (long) System.nanoTime() of the check
+     * @throws IOException When the channel fails
+     */
+    private void checkRetransmit(long now) throws IOException {
+        if (outstandingRequest == null || now - retransmitAt < 0) return;
+        if (retransmits == MAX_RETRANSMITS){
+            boolean quitting = outstandingQuit;
+            connected = false;
+            running = false;
+            if (!quitting) viewObserver.print("The server isn't answering, connect again to continue the game.");
+            return;
+        }
+        retransmits++;
+        retransmitTimeout = Math.min(retransmitTimeout * 2, MAX_RETRANSMIT_TIMEOUT_NANOS);
+        transmit(now);
+    }
+
+    /**
+     *  Receives the datagrams waiting on the channel and shows the response to the outstanding request.
+     *  Responses to older requests, which were retransmitted, are ignored.
+     * @throws IOException When the channel fails
+     */
+    private void receiveResponses() throws IOException {
+        while (true) {
+            receiveBuffer.clear();
+            try {
+                if (datagramChannel.receive(receiveBuffer) == null) return;
+            } catch (PortUnreachableException exception) {
+                return;
+            }
+            long now = System.nanoTime();
+            receiveBuffer.flip();
+            if (receiveBuffer.remaining() < MessageCodec.DATAGRAM_HEADER_SIZE) continue;
+            if (receiveBuffer.getLong() != conversationId || receiveBuffer.getInt() != sequence) continue;
+            if (outstandingRequest == null) continue;
+            List<Message> responses;
+            try {
+                responses = MessageCodec.decodeFrames(receiveBuffer);
+            } catch (ProtocolException exception) {
+                continue;
+            }
+            if (responses.size() == 1 && responses.get(0).getMessageType() == MessageType.PING){
+                answerChallenge(responses.get(0), now);
+                continue;
+            }
+            if (retransmits == 0) updateRetransmitTimeout(now - sentAt);
+            outstandingRequest = null;
+            lastResponseAt = now;
+            if (outstandingQuit) running = false;
+            for (Message response : responses) {
+                show(response);
+                pendingRequests.complete(response);
+            }
+        }
+    }
+
+    /**
+     *  Sends the outstanding request again with a PONG in front, the server asked with a PING to confirm
+     *  the address before it sends a response larger than the request. The round trip is measured from here.
+     *  The PING is ignored if the request has no room left for the PONG.
+     * @param ping (Message) The PING from the server
+     * @param now (long) System.nanoTime() of the send
+     * @throws IOException When the channel fails
+     */
+    private void answerChallenge(Message ping, long now) throws IOException {
+        List<Message> messages = new ArrayList<>(outstandingMessages.size() + 1);
+        messages.add(new Message(MessageType.PONG, ping.getBody()));
+        for (Message message : outstandingMessages) {
+            if (message.getMessageType() != MessageType.PONG) messages.add(message);
+        }
+        try {
+            outstandingRequest = MessageCodec.encodeDatagram(conversationId, sequence, messages, false);
+        } catch (ProtocolException exception) {
+            return;
+        }
+        outstandingMessages = messages;
+        retransmits = 0;
+        sentAt = now;
+        transmit(now);
+    }
+
+    /**
+     *  Updates the smoothed round trip time and its variance with a measured round trip,
+     *  the retransmit timeout is the smoothed round trip time plus four times the variance.
+     * @param roundTrip (long) The measured round trip in nanoseconds
+     */
+    private void updateRetransmitTimeout(long roundTrip) {
+        if (smoothedRoundTrip < 0){
+            smoothedRoundTrip = roundTrip;
+            roundTripVariance = roundTrip / 2;
+        } else {
+            roundTripVariance = (3 * roundTripVariance + Math.abs(smoothedRoundTrip - roundTrip)) / 4;
+            smoothedRoundTrip = (7 * smoothedRoundTrip + roundTrip) / 8;
+        }
+        retransmitTimeout = Math.max(MIN_RETRANSMIT_TIMEOUT_NANOS,
+                Math.min(smoothedRoundTrip + 4 * roundTripVariance, MAX_RETRANSMIT_TIMEOUT_NANOS));
+    }
+
+    /**
+     *  Shows a response in the view, the answer to HELLO tells that the server is reachable.
+     * @param response (Message) The response
+     */
+    private void show(Message response) {
+        if (response.getMessageType() == MessageType.RESPONSE_HELLO){
+            viewObserver.print("Connected to server");
+            return;
+        }
+        String formattedMessage = responseFormatter.format(response);
+        if (!formattedMessage.isEmpty()) viewObserver.print(formattedMessage);
+        Message snapshotRequest = responseFormatter.takeSnapshotRequest();
+        if (snapshotRequest != null) sendingQueue.add(List.of(snapshotRequest));
+    }
+}
@@ -0,0 +1,66 @@
+package se.kth.client.net;
+
+import se.kth.common.Message;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ *  A connection to a hangman server, over TCP or datagrams.
+ *  connect()               -   Connects to the server, the messages will be shown through the view observer.
+ *  disconnect()            -   Quits the game and disconnects.
+ *  startNewGame(String)    -   Will tell the server to start a new game of hangman, of a difficulty or word length.
+ *  submitGuess(String)     -   Submit guess with a character or a word.
+ *  submitGuesses(List)     -   Submit several guesses in one request, made until one ends the game.
+ *  requestStats()          -   Asks the server for its metrics.
+ *  The requests return at once, several may be in flight. Every response is shown through the view observer,
+ *  the returned future is completed with the response that answers the request, or fails when the request
+ *  can't be sent or the connection is lost before the answer.
+ */
+public interface GameConnection {
+
+    /**
+     * Makes a connection to the server.
+     * @throws IOException When we can't connect
+     */
+    void connect() throws IOException;
+
+    /**
+     * Sets the observer that shows the messages from the server.
+     * @param viewObserver The observer
+     */
+    void setViewObserver(OutputHandler viewObserver);
+
+    /**
+     * Will disconnect from the connected server
+     * @throws IOException When we can't disconnect
+     */
+    void disconnect() throws IOException;
+
+    /**
+     *  Starts a new game.
+     * @param wordRequest a difficulty like hard, a word length, or empty for any word
+     * @return The future of the new game.
+     */
+    CompletableFuture<Message> startNewGame(String wordRequest);
+
+    /**
+     *  Makes a guess to the started game.
+     * @param guess the guess can be a character or a word in the form of a string
+     * @return The future of the game after the guess, a full game state or a delta.
+     */
+    CompletableFuture<Message> submitGuess(String guess);
+
+    /**
+     *  Makes several guesses to the started game in one request, they are made in order until one ends the game.
+     * @param guesses characters and words
+     * @return The future of the game after the guesses.
+     */
+    CompletableFuture<Message> submitGuesses(List<String> guesses);
+
+    /**
+     *  Asks the server for its metrics, they are shown when the response arrives.
+     * @return The future of the metrics.
+     */
+    CompletableFuture<Message> requestStats();
+}
@@ -1,6 +1,8 @@
 package se.kth.client.net;
 
+import se.kth.common.BufferPool;
 import se.kth.common.Message;
+import se.kth.common.MessageCodec;
 import se.kth.common.MessageType;
 import java.io.IOException;
 import java.net.InetAddress;
@@ -10,88 +12,175 @@ import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 import java.nio.channels.spi.SelectorProvider;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.LinkedBlockingQueue;
-import static se.kth.common.Message.deserialize;
-import static se.kth.common.Message.serialize;
 
 /**
  *  Server connection is used for making a connection to a server
  *  It also takes care of all communication to the server
  *  connect(OutputHandler)  -   Connects the user to a server, the messages will be shown through handler
  *  disconnect()            -   Simply disconnects, resets sockets.
- *  startNewGame()          -   Will tell the server to start a new game of hangman.
+ *  startNewGame(String)    -   Will tell the server to start a new game of hangman, of a difficulty or word length.
  *  submitGuess(String)     -   Submit guess with a character or a word.
+ *  submitGuesses(List)     -   Submit several guesses in one request.
+ *  requestStats()          -   Asks the server for its metrics.
+ *  The token of the game session is kept, when the connection is lost the game is resumed on the next connect.
+ *  Requests carry correlation ids and are written as soon as they are made, the connection reads and writes
+ *  at the same time, so several requests can be in flight and each future is completed by its own answer.
  */
-public class ServerConnection implements Runnable {
+public class ServerConnection implements GameConnection, Runnable {
+    private static final long QUIT_TIMEOUT_MILLIS = 1000;
     private final LinkedBlockingQueue<Message> sendingQueue = new LinkedBlockingQueue<>();
     private final LinkedBlockingQueue<Message> readingQueue = new LinkedBlockingQueue<>();
-    private final ByteBuffer serverMessage = ByteBuffer.allocateDirect(8192);
+    private static final BufferPool BUFFER_POOL = new BufferPool(MessageCodec.FRAME_BUFFER_SIZE, 1024 * 1024);
+    private final MessageCodec messageCodec = new MessageCodec(BUFFER_POOL);
     private InetSocketAddress serverAddress;
     private SocketChannel socketChannel;
+    private final ResponseFormatter responseFormatter = new ResponseFormatter();
+    private final PendingRequests pendingRequests = new PendingRequests();
+    private ByteBuffer partiallyWritten;
     private OutputHandler viewObserver;
-    private boolean timeToSend = false;
+    private volatile boolean timeToSend = false;
     private Selector selector;
-    private boolean connected;
+    private Thread networkThread;
+    private volatile boolean connected;
+    private volatile boolean quitting;
 
     /**
      * Makes a connection to the server and sets the view observer.
      * @throws IOException When we can't connect
      */
+    @Override
     public void connect() throws IOException {
         serverAddress = new InetSocketAddress(InetAddress.getLocalHost(), 4444);
-        new Thread(this).start();
+        networkThread = new Thread(this);
+        networkThread.start();
     }
 
+    @Override
     public void setViewObserver(OutputHandler viewObserver){
         this.viewObserver = viewObserver;
     }
 
     /**
      * Will disconnect from the connected server
+     * The QUIT is written before the socket is closed, so the server removes the game instead of keeping
+     * it for a resume. The wait for it is capped by QUIT_TIMEOUT_MILLIS.
      * @throws IOException When we can't disconnect
      */
+    @Override
     public void disconnect() throws IOException{
         if (connected){
-            queueAndSend(MessageType.QUIT, "");
-            socketChannel.close();
+            responseFormatter.forgetSession();
+            synchronized (sendingQueue) {
+                quitting = true;
+                queueAndSend(MessageType.QUIT, "");
+            }
+            try {
+                networkThread.join(QUIT_TIMEOUT_MILLIS);
+            } catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+            }
+            connected = false;
             socketChannel.keyFor(selector).cancel();
+            socketChannel.close();
             socketChannel = null;
-            connected = false;
+            messageCodec.release();
+            pendingRequests.failAll(new IOException("Disconnected from the server"));
         }
     }
 
     /**
      *  Starts a new game.
-     * @throws IOException When we don't have connection
+     * @param wordRequest a difficulty like hard, a word length, or empty for any word
+     * @return The future of the new game.
      */
-    public void startNewGame() {
+    @Override
+    public CompletableFuture<Message> startNewGame(String wordRequest) {
         if (connected){
-            queueAndSend(MessageType.START, "");
+            return request(MessageType.START, wordRequest);
         } else {
-            viewObserver.print("Not connected to any server...");
+            return notConnected();
         }
     }
 
     /**
      *  Makes a guess to the started game.
      * @param guess the guess can be a character or a word in the form of a string
-     * @throws IOException When we don't have connection
+     * @return The future of the game after the guess.
      */
-    public void submitGuess(String guess) {
+    @Override
+    public CompletableFuture<Message> submitGuess(String guess) {
         if (connected) {
-            queueAndSend(MessageType.GUESS, guess);
+            return request(MessageType.GUESS, guess);
         } else {
-            viewObserver.print("Not connected to any server...");
+            return notConnected();
         }
     }
 
+    /**
+     *  Makes several guesses to the started game in one request.
+     * @param guesses characters and words, made in order until one ends the game
+     * @return The future of the game after the guesses.
+     */
+    @Override
+    public CompletableFuture<Message> submitGuesses(List<String> guesses) {
+        if (connected) {
+            return request(MessageType.GUESS_BATCH, String.join(String.valueOf(MessageCodec.GUESS_SEPARATOR), guesses));
+        } else {
+            return notConnected();
+        }
+    }
+
+    /**
+     *  Asks the server for its metrics, they are shown when the response arrives.
+     * @return The future of the metrics.
+     */
+    @Override
+    public CompletableFuture<Message> requestStats() {
+        if (connected) {
+            return request(MessageType.STATS, "");
+        } else {
+            return notConnected();
+        }
+    }
+
+    /**
+     *  Adds a request to the pending requests and queues it with its correlation id.
+     * @param messageType (MessageType) The message type to be sent
+     * @param body (String) The message to be sent
+     * @return (CompletableFuture) The future of the answer
+     */
+    private CompletableFuture<Message> request(MessageType messageType, String body) {
+        int correlationId = pendingRequests.nextCorrelationId();
+        CompletableFuture<Message> response = pendingRequests.add(correlationId, messageType);
+        queueAndSend(new Message(messageType, body, correlationId));
+        return response;
+    }
+
+    /**
+     * @return (CompletableFuture) A failed future, for a request made without a connection
+     */
+    private CompletableFuture<Message> notConnected() {
+        viewObserver.print("Not connected to any server...");
+        return CompletableFuture.failedFuture(new IOException("Not connected to any server"));
+    }
+
     /**
      *  queues the message and wakes up the selector for sending
      * @param messageType (MessageType) The message type to be sent
      * @param body (String) The message to be sent
      */
     private void queueAndSend(MessageType messageType, String body) {
-        Message message = new Message(messageType, body);
+        queueAndSend(new Message(messageType, body));
+    }
+
+    /**
+     *  queues the message and wakes up the selector for sending
+     * @param message (Message) The message to be sent
+     */
+    private void queueAndSend(Message message) {
         synchronized (sendingQueue) {
             sendingQueue.add(message);
         }
@@ -107,9 +196,9 @@ public class ServerConnection implements Runnable {
         try {
             initSelector();
             while (connected) {
-                if (timeToSend) {
-                    socketChannel.keyFor(selector).interestOps(SelectionKey.OP_WRITE);
+                if (timeToSend && socketChannel.isConnected()) {
                     timeToSend = false;
+                    socketChannel.keyFor(selector).interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
                 }
                 this.selector.select();
                 for (SelectionKey key : this.selector.selectedKeys()) {
@@ -119,18 +208,23 @@ public class ServerConnection implements Runnable {
                 }
             }
         } catch (IOException e) {
+            connected = false;
+            pendingRequests.failAll(e);
             viewObserver.print(e.getMessage());
         }
     }
 
     /**
-     * Checks what operation should be done
+     * Checks what operation should be done, a connection may be both readable and writable
      * @param key (SelectionKey) The key that we should operate with
      */
     private void checkKey(SelectionKey key) throws IOException{
-        if (key.isConnectable()) makeConnection(key);
-        else if (key.isReadable()) readFromServer(key);
-        else if (key.isWritable()) sendToServer(key);
+        if (key.isConnectable()) {
+            makeConnection(key);
+            return;
+        }
+        if (key.isReadable()) readFromServer(key);
+        if (key.isValid() && key.isWritable()) sendToServer(key);
     }
 
     /**
@@ -139,6 +233,10 @@ public class ServerConnection implements Runnable {
      */
     private void initSelector() throws IOException {
         selector = SelectorProvider.provider().openSelector();
+        sendingQueue.clear();
+        partiallyWritten = null;
+        quitting = false;
+        messageCodec.release();
         socketChannel = SocketChannel.open();
         socketChannel.configureBlocking(false);
         socketChannel.connect(serverAddress);
@@ -148,12 +246,19 @@ public class ServerConnection implements Runnable {
 
     /**
      *  Establishes a connection with the server.
+     *  The first message asks the server for game states in binary form and guess responses as deltas.
+     *  If the last connection was lost during a game, the game is resumed with the session token.
      * @param selectionKey (SelectionKey) The channel we establish a connection with
      */
     private void makeConnection(SelectionKey selectionKey) {
         try{
             socketChannel.finishConnect();
-            selectionKey.interestOps(SelectionKey.OP_WRITE);
+            String features = MessageCodec.BINARY_FEATURE + "," + MessageCodec.DELTA_FEATURE;
+            sendingQueue.add(new Message(MessageType.HELLO, features));
+            if (responseFormatter.getSessionToken() != null){
+                sendingQueue.add(new Message(MessageType.RESUME, responseFormatter.getSessionToken()));
+            }
+            selectionKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
             viewObserver.print("Connected to server");
         }catch (IOException exception){
             viewObserver.print("Couldn't establish connection, try again and check IP and PORT.");
@@ -161,19 +266,25 @@ public class ServerConnection implements Runnable {
     }
 
     /**
-     *  Will send the a message to the server.
-     *  It makes a message object which consists of a message type and the message to be sent
+     *  Will send the queued messages to the server.
+     *  A message the channel doesn't take completely is finished on the next write,
+     *  when the queue is empty only reads are waited for. Once the QUIT has been written the connection
+     *  stops, disconnect closes it.
      * @param selectionKey (SelectionKey) The key
      * @throws IOException - Is thrown when we can't write to server
      */
     private void sendToServer(SelectionKey selectionKey) throws IOException{
         if (connected) {
             synchronized (sendingQueue) {
-                while (sendingQueue.size() > 0) {
-                    byte[] message = serialize(sendingQueue.poll()).getBytes();
-                    ByteBuffer messageBuffer = ByteBuffer.wrap(message);
+                while (partiallyWritten != null || sendingQueue.size() > 0) {
+                    ByteBuffer messageBuffer = partiallyWritten != null ? partiallyWritten : MessageCodec.encode(sendingQueue.poll());
                     socketChannel.write(messageBuffer);
-                    if (messageBuffer.hasRemaining()) return;
+                    partiallyWritten = messageBuffer.hasRemaining() ? messageBuffer : null;
+                    if (partiallyWritten != null) return;
+                }
+                if (quitting) {
+                    connected = false;
+                    return;
                 }
             }
             selectionKey.interestOps(SelectionKey.OP_READ);
@@ -181,50 +292,41 @@ public class ServerConnection implements Runnable {
     }
 
     /**
-     *  Reads the messages from the server and prints them.
+     *  Reads the messages from the server, prints them and completes the requests they answer.
+     *  A read may contain no, one or several messages, partial messages are completed on later reads.
      * @param selectionKey
      * @throws IOException
      */
     private void readFromServer(SelectionKey selectionKey) throws IOException{
-        serverMessage.clear();
-        int numOfReadBytes = socketChannel.read(serverMessage);
-        if (numOfReadBytes == -1){
-            connected = false;
-            throw new IOException("Server has closed connection!");
+        ByteBuffer serverMessage = BUFFER_POOL.acquire();
+        try {
+            int numOfReadBytes = socketChannel.read(serverMessage);
+            if (numOfReadBytes == -1){
+                throw new IOException("Server has closed connection!");
+            }
+            serverMessage.flip();
+            readingQueue.addAll(messageCodec.decode(serverMessage));
+        } finally {
+            BUFFER_POOL.release(serverMessage);
         }
-        Message message = deserialize(getMessageFromBuffer());
-        readingQueue.add(message);
 
         while (readingQueue.size() > 0) {
             Message messageToPrint = readingQueue.poll();
-            viewObserver.print(formatMessage(messageToPrint));
-        }
-        selectionKey.interestOps(SelectionKey.OP_WRITE);
-    }
-
-    /**
-     *  Gets the serialized message from the server message buffer
-     * @return (String) Serialized message
-     */
-    private String getMessageFromBuffer() {
-        serverMessage.flip();
-        byte[] bytes = new byte[serverMessage.remaining()];
-        serverMessage.get(bytes);
-        return new String(bytes);
-    }
-
-    /**
-     *  Will parse the message and format it for the view.
-     * @param message The message to be parsed.
-     * @return the message as a string.
-     */
-    private String formatMessage(Message message){
-        String returnMessage = "";
-        switch (message.getMessageType()){
-            case RESPONSE_GUESS:
-            case RESPONSE_START:
-                returnMessage =(String) message.getBody();
+            if (messageToPrint.getMessageType() == MessageType.PING){
+                sendingQueue.add(new Message(MessageType.PONG, messageToPrint.getBody()));
+                selectionKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                continue;
+            }
+            if (messageToPrint.getMessageType() != MessageType.RESPONSE_HELLO) {
+                String formattedMessage = responseFormatter.format(messageToPrint);
+                if (!formattedMessage.isEmpty()) viewObserver.print(formattedMessage);
+            }
+            pendingRequests.complete(messageToPrint);
+            Message snapshotRequest = responseFormatter.takeSnapshotRequest();
+            if (snapshotRequest != null){
+                sendingQueue.add(snapshotRequest);
+                selectionKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
         }
-        return returnMessage;
     }
 }
@@ -1,6 +1,7 @@
 package se.kth.client.startup;
 
 import se.kth.client.view.NonBlockingInterpreter;
+import java.util.Arrays;
 
 /**
  *  Start-up for client program.
@@ -9,9 +10,9 @@ class Main {
 
     /**
      *  Main function, starts the client program.
-     * @param args Arguments ignored.
+     * @param args --udp to talk to the server over datagrams, other arguments are ignored.
      */
     public static void main(String[] args) {
-        new NonBlockingInterpreter().start();
+        new NonBlockingInterpreter().start(Arrays.asList(args).contains("--udp"));
     }
 }
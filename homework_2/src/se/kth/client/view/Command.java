@@ -15,6 +15,11 @@ public enum Command {
      */
     GUESS,
 
+    /**
+     *  Makes several guesses for the current game at once, they are made in order until the game ends.
+     */
+    GUESSES,
+
     /**
      *  Used when user input doesn't match any of the above.
      */
@@ -26,8 +31,13 @@ public enum Command {
     QUIT,
 
     /**
-     *  Starts a new game of Hangman.
+     *  Starts a new game of Hangman, optionally of a difficulty or a word length.
+     */
+    START,
+
+    /**
+     *  Shows the metrics of the connected server.
      */
-    START
+    STATS
 
 }
@@ -1,6 +1,9 @@
 package se.kth.client.view;
 
+import se.kth.common.Difficulty;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.regex.Pattern;
 
 /**
@@ -43,6 +46,17 @@ class CommandLine {
         return null;
     }
 
+    /**
+     *  Gets all the parameters.
+     * @return returns the parameters, empty if there are none.
+     */
+    List<String> getParameters(){
+        if (params != null){
+            return Arrays.asList(params);
+        }
+        return List.of();
+    }
+
     /**
      *  Checks if the given string is alphanumeric.
      * @param line (STRING)
@@ -93,11 +107,20 @@ class CommandLine {
         command = parseCommand(enteredParams[0]);
         switch (command){
             case GUESS:
+            case GUESSES:
                 if (parsedParams.length == 0){
                     throw new IllegalArgumentException("Missing guessed letter/word");
                 }
                 params = parsedParams;
                 break;
+            case START:
+                if (parsedParams.length > 0){
+                    if (Difficulty.parse(parsedParams[0]) == null && !parsedParams[0].matches("[1-9][0-9]?")){
+                        throw new IllegalArgumentException("Start with easy, medium, hard or a word length");
+                    }
+                    params = new String[] {parsedParams[0]};
+                }
+                break;
             case CONNECT:
                 if (parsedParams.length == 0){
                     params = new String[] {"127.0.0.0", "4444"};
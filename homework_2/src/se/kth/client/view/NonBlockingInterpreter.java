@@ -17,12 +17,20 @@ public class NonBlockingInterpreter implements Runnable {
     private Controller controller;
 
     /**
-     *  Starts the interpreter.
+     *  Starts the interpreter, talking to the server over TCP.
      */
     public void start(){
+        start(false);
+    }
+
+    /**
+     *  Starts the interpreter.
+     * @param datagram True to talk to the server over datagrams instead of TCP
+     */
+    public void start(boolean datagram){
         if (running) return;
         running = true;
-        controller = new Controller();
+        controller = new Controller(datagram);
         controller.setViewObserver(interpreterOutput);
         new Thread(this).start();
     }
@@ -40,7 +48,8 @@ public class NonBlockingInterpreter implements Runnable {
                 CommandLine commandLine = new CommandLine(readNextLine());
                 switch (commandLine.getCommand()){
                     case START:
-                        controller.startNewGame();
+                        String wordRequest = commandLine.getParameter();
+                        controller.startNewGame(wordRequest != null ? wordRequest : "");
                         break;
                     case CONNECT:
                         controller.connect();
@@ -48,6 +57,12 @@ public class NonBlockingInterpreter implements Runnable {
                     case GUESS:
                         controller.submitGuess(commandLine.getParameter());
                         break;
+                    case GUESSES:
+                        controller.submitGuesses(commandLine.getParameters());
+                        break;
+                    case STATS:
+                        controller.requestStats();
+                        break;
                     case QUIT:
                         controller.disconnect();
                         printer.println("You are now disconnected from the server!\n");
@@ -77,8 +92,12 @@ public class NonBlockingInterpreter implements Runnable {
         String stars = "******";
         String titleMessage = border + " WELCOME TO HANGMAN " + border;
         String infoMessagePartOne = stars + " To connect use: connect, To start game or get new word use: start " + stars;
+        String infoMessagePartDifficulty = stars + " \tTo choose the word use: start [easy/medium/hard/length] \t " + stars;
         String infoMessagePartTwo = stars + " \tTo guess use: guess [word/letter], and to quit use: quit \t\t " + stars;
-        return "\n" + titleMessage + "\n\n" + infoMessagePartOne + "\n" + infoMessagePartTwo + "\n\n";
+        String infoMessagePartThree = stars + " \t\t\tTo see the metrics of the server use: stats \t\t\t " + stars;
+        String infoMessagePartFour = stars + " \tTo make several guesses at once use: guesses [word/letter]... \t " + stars;
+        return "\n" + titleMessage + "\n\n" + infoMessagePartOne + "\n" + infoMessagePartDifficulty + "\n" + infoMessagePartTwo + "\n"
+                + infoMessagePartThree + "\n" + infoMessagePartFour + "\n\n";
     }
 
     /**
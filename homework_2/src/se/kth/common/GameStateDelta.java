@@ -0,0 +1,121 @@
+package se.kth.common;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ *  Is a DTO with the changes a guess made to the game state, when the guess didn't start a new word.
+ *  It carries the newly revealed positions of the guessed letter and the change of attempts and score,
+ *  so its size doesn't depend on the length of the word.
+ */
+public class GameStateDelta implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private final int scoreDelta;
+    private final int remainingAttemptsDelta;
+    private final char revealedCharacter;
+    private final int[] revealedPositions;
+
+    /**
+     *  Makes an instance of game state delta.
+     * @param scoreDelta (Int) - The change of the score
+     * @param remainingAttemptsDelta (Int) - The change of the remaining attempts
+     * @param revealedCharacter (Char) - The character that was revealed
+     * @param revealedPositions (Int[]) - The positions where the character was revealed, may be empty
+     */
+    public GameStateDelta(int scoreDelta, int remainingAttemptsDelta, char revealedCharacter, int[] revealedPositions) {
+        this.scoreDelta = scoreDelta;
+        this.remainingAttemptsDelta = remainingAttemptsDelta;
+        this.revealedCharacter = revealedCharacter;
+        this.revealedPositions = revealedPositions;
+    }
+
+    /**
+     *  Computes the changes between two states of the same word.
+     * @param previousScore (Int) - The score before the guess
+     * @param previousRemainingAttempts (Int) - The remaining attempts before the guess
+     * @param previousSecretWordState (Char[]) - A copy of the secret version of the word before the guess
+     * @param gameState (GameState) - The state after the guess
+     * @return (GameStateDelta) - The changes
+     */
+    public static GameStateDelta between(int previousScore, int previousRemainingAttempts,
+                                         char[] previousSecretWordState, GameState gameState) {
+        char[] secretWordState = gameState.getSecretWordState();
+        char revealedCharacter = 0;
+        int[] revealedPositions = new int[secretWordState.length];
+        int revealedCount = 0;
+        for (int i = 0; i < secretWordState.length; i++) {
+            if (secretWordState[i] != previousSecretWordState[i]) {
+                revealedCharacter = secretWordState[i];
+                revealedPositions[revealedCount++] = i;
+            }
+        }
+        return new GameStateDelta(gameState.getScore() - previousScore,
+                gameState.getRemainingAttempts() - previousRemainingAttempts,
+                revealedCharacter, Arrays.copyOf(revealedPositions, revealedCount));
+    }
+
+    /**
+     * @return (INT) The change of the score.
+     */
+    public int getScoreDelta() {
+        return scoreDelta;
+    }
+
+    /**
+     * @return (INT) The change of the remaining attempts.
+     */
+    public int getRemainingAttemptsDelta() {
+        return remainingAttemptsDelta;
+    }
+
+    /**
+     * @return (CHAR) The character that was revealed, only meaningful if there are revealed positions.
+     */
+    public char getRevealedCharacter() {
+        return revealedCharacter;
+    }
+
+    /**
+     * @return (INT[]) The positions where the character was revealed.
+     */
+    public int[] getRevealedPositions() {
+        return revealedPositions;
+    }
+
+    /**
+     *  Checks that the revealed positions are within the word of a game state, a delta from the server
+     *  may not fit the state the client has if a response was lost.
+     * @param gameState (GameState) - The state before the guess
+     * @return (boolean) - True if the delta can be applied to the state
+     */
+    public boolean appliesTo(GameState gameState) {
+        int wordLength = gameState.getSecretWordState().length;
+        for (int position : revealedPositions) {
+            if (position < 0 || position >= wordLength) return false;
+        }
+        return true;
+    }
+
+    /**
+     *  Applies the changes to a game state of the same word.
+     * @param gameState (GameState) - The state before the guess
+     * @return (GameState) - A new state with the changes applied
+     * @throws IllegalArgumentException If a revealed position is outside the word of the state
+     */
+    public GameState applyTo(GameState gameState) {
+        if (!appliesTo(gameState)) throw new IllegalArgumentException("The delta doesn't fit the game state");
+        char[] secretWordState = gameState.getSecretWordState().clone();
+        for (int position : revealedPositions) {
+            secretWordState[position] = revealedCharacter;
+        }
+        return new GameState(gameState.getScore() + scoreDelta,
+                gameState.getRemainingAttempts() + remainingAttemptsDelta, secretWordState, gameState.getWord());
+    }
+
+    @Override
+    public String toString() {
+        String revealed = revealedPositions.length == 0 ? "nothing" : revealedCharacter + Arrays.toString(revealedPositions);
+        return "GameStateDelta{" + "score=" + scoreDelta + ", attempts=" + remainingAttemptsDelta
+                + ", revealed=" + revealed + '}';
+    }
+}
@@ -0,0 +1,287 @@
+package se.kth.common;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+
+/**
+ *  A message decoded in place from the bytes of its frame, for readers that decode every message of a
+ *  connection and shouldn't allocate for each of them. The instance is reused, every decode overwrites
+ *  the message type and copies the body into character storage of the instance, which only grows for
+ *  a body longer than any before.
+ *  The message type is the opcode byte of a binary body, or the prefix of a text body up to ## matched
+ *  against the type names byte by byte, ignoring case. Text after a second ## is ignored, like
+ *  Message.deserialize does. Bodies are UTF-8, ASCII bodies are copied without a decoder.
+ *  The correlation id is read after the opcode or after the colon that follows the type name.
+ *  decode(ByteBuffer, int, int)  -   Decodes a frame body that lies in a buffer.
+ *  getMessageType()              -   The type of the last decoded message.
+ *  getCorrelationId()            -   The correlation id of the last decoded message, 0 if it has none.
+ *  getBody()                     -   The body of the last decoded message, valid until the next decode.
+ *  toMessage()                   -   Copies the last decoded message into a Message.
+ */
+public class InboundMessage {
+    private static final MessageType[] TYPES = MessageType.values();
+    private static final byte[][] TYPE_NAMES = typeNames();
+    private static final byte SEPARATOR = '#';
+    private static final byte CORRELATION_ID_SEPARATOR = ':';
+    private static final int INITIAL_BODY_CAPACITY = 32;
+    private final Body body = new Body();
+    private char[] characters = new char[INITIAL_BODY_CAPACITY];
+    private int length;
+    private MessageType messageType;
+    private int correlationId;
+    private CharsetDecoder utf8Decoder;
+    private CharBuffer characterBuffer;
+
+    /**
+     *  Decodes the body of a frame. The position and limit of the buffer are left as they are.
+     * @param buffer (ByteBuffer) The buffer holding the frame
+     * @param offset (int) Index of the first byte of the frame body
+     * @param frameLength (int) Number of bytes in the frame body
+     * @throws ProtocolException If the message type is unknown, the correlation id is malformed
+     *                           or the body isn't valid UTF-8
+     */
+    public void decode(ByteBuffer buffer, int offset, int frameLength) throws ProtocolException {
+        int end = offset + frameLength;
+        int bodyStart;
+        int bodyEnd = end;
+        correlationId = 0;
+        if (frameLength > 0 && buffer.get(offset) == BinaryEncoding.MARKER) {
+            if (frameLength < 2) throw new ProtocolException("Truncated binary message");
+            int type = buffer.get(offset + 1) & 0xFF;
+            bodyStart = offset + 2;
+            if ((type & BinaryEncoding.CORRELATION_ID_FLAG) != 0) {
+                bodyStart = readVarIntCorrelationId(buffer, bodyStart, end);
+                type &= ~BinaryEncoding.CORRELATION_ID_FLAG;
+            }
+            messageType = MessageType.fromOpcode(type);
+            if (messageType == null) throw new ProtocolException("Unknown message type");
+        } else {
+            int typeEnd = indexOfSeparator(buffer, offset, end);
+            int nameEnd = offset;
+            while (nameEnd < typeEnd && buffer.get(nameEnd) != CORRELATION_ID_SEPARATOR) {
+                nameEnd++;
+            }
+            messageType = matchType(buffer, offset, nameEnd);
+            if (nameEnd < typeEnd) readTextCorrelationId(buffer, nameEnd + 1, typeEnd);
+            bodyStart = Math.min(typeEnd + 2, end);
+            bodyEnd = indexOfSeparator(buffer, bodyStart, end);
+        }
+        readBody(buffer, bodyStart, bodyEnd);
+    }
+
+    /**
+     * @return (MessageType) The type of the last decoded message.
+     */
+    public MessageType getMessageType() {
+        return messageType;
+    }
+
+    /**
+     * @return (int) The correlation id of the last decoded message, 0 if it has none.
+     */
+    public int getCorrelationId() {
+        return correlationId;
+    }
+
+    /**
+     * @return (CharSequence) The body of the last decoded message, it changes with the next decode.
+     */
+    public CharSequence getBody() {
+        return body;
+    }
+
+    /**
+     * @return (Message) A message with the type and a copy of the body of the last decoded message.
+     */
+    public Message toMessage() {
+        return new Message(messageType, body.toString(), correlationId);
+    }
+
+    @Override
+    public String toString() {
+        String id = correlationId == 0 ? "" : ", id=" + correlationId;
+        return "Message{" + "type=" + messageType + id + ", body=" + body + '}';
+    }
+
+    /**
+     *  Reads the correlation id of a binary body, a variable length integer with the lowest 7 bits first.
+     * @param buffer (ByteBuffer) The buffer
+     * @param start (int) Index of the first byte of the id
+     * @param end (int) Index after the frame body
+     * @return (int) Index after the id
+     * @throws ProtocolException If the id is cut off or longer than an int
+     */
+    private int readVarIntCorrelationId(ByteBuffer buffer, int start, int end) throws ProtocolException {
+        int value = 0;
+        int index = start;
+        for (int shift = 0; shift < Integer.SIZE && index < end; shift += 7) {
+            byte part = buffer.get(index++);
+            value |= (part & 0x7F) << shift;
+            if ((part & 0x80) == 0) {
+                correlationId = value;
+                return index;
+            }
+        }
+        throw new ProtocolException("Malformed correlation id");
+    }
+
+    /**
+     *  Reads the correlation id of a text body, a decimal number that may be negative.
+     * @param buffer (ByteBuffer) The buffer
+     * @param start (int) Index of the first character of the id
+     * @param end (int) Index after the id
+     * @throws ProtocolException If the id isn't a number that fits in an int
+     */
+    private void readTextCorrelationId(ByteBuffer buffer, int start, int end) throws ProtocolException {
+        boolean negative = start < end && buffer.get(start) == '-';
+        int index = negative ? start + 1 : start;
+        if (index == end) throw new ProtocolException("Malformed correlation id");
+        long value = 0;
+        for (; index < end; index++) {
+            byte digit = buffer.get(index);
+            if (digit < '0' || digit > '9' || value > Integer.MAX_VALUE + 1L) {
+                throw new ProtocolException("Malformed correlation id");
+            }
+            value = value * 10 + (digit - '0');
+        }
+        value = negative ? -value : value;
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) throw new ProtocolException("Malformed correlation id");
+        correlationId = (int) value;
+    }
+
+    /**
+     *  Finds the next ## in a range of the buffer.
+     * @param buffer (ByteBuffer) The buffer
+     * @param start (int) Index where the search starts
+     * @param end (int) Index after the range
+     * @return (int) Index of the first # of the separator, or end if there is none
+     */
+    private static int indexOfSeparator(ByteBuffer buffer, int start, int end) {
+        for (int i = start; i < end - 1; i++) {
+            if (buffer.get(i) == SEPARATOR && buffer.get(i + 1) == SEPARATOR) return i;
+        }
+        return end;
+    }
+
+    /**
+     *  Finds the message type whose name is in a range of the buffer, ignoring case.
+     * @param buffer (ByteBuffer) The buffer
+     * @param start (int) Index of the first byte of the name
+     * @param end (int) Index after the name
+     * @return (MessageType) The message type
+     * @throws ProtocolException If no message type has the name
+     */
+    private static MessageType matchType(ByteBuffer buffer, int start, int end) throws ProtocolException {
+        for (int type = 0; type < TYPES.length; type++) {
+            byte[] name = TYPE_NAMES[type];
+            if (name.length != end - start) continue;
+            int i = 0;
+            while (i < name.length && toUpperCase(buffer.get(start + i)) == name[i]) {
+                i++;
+            }
+            if (i == name.length) return TYPES[type];
+        }
+        throw new ProtocolException("Unknown message type");
+    }
+
+    /**
+     * @param character (byte) An ASCII character
+     * @return (byte) The character in upper case if it is a lower case letter, otherwise the same character
+     */
+    private static byte toUpperCase(byte character) {
+        return character >= 'a' && character <= 'z' ? (byte) (character - ('a' - 'A')) : character;
+    }
+
+    /**
+     *  Copies the body into the character storage.
+     *  ASCII is copied byte by byte, a body with other characters is decoded as UTF-8.
+     * @param buffer (ByteBuffer) The buffer
+     * @param start (int) Index of the first byte of the body
+     * @param end (int) Index after the body
+     * @throws ProtocolException If the body isn't valid UTF-8
+     */
+    private void readBody(ByteBuffer buffer, int start, int end) throws ProtocolException {
+        int byteCount = end - start;
+        if (characters.length < byteCount) {
+            characters = new char[Math.max(byteCount, characters.length * 2)];
+            characterBuffer = null;
+        }
+        for (int i = 0; i < byteCount; i++) {
+            byte character = buffer.get(start + i);
+            if (character < 0) {
+                decodeUtf8(buffer, start, end);
+                return;
+            }
+            characters[i] = (char) character;
+        }
+        length = byteCount;
+    }
+
+    /**
+     *  Decodes a UTF-8 body into the character storage, a body never has more characters than bytes.
+     * @param buffer (ByteBuffer) The buffer, its position and limit are restored afterwards
+     * @param start (int) Index of the first byte of the body
+     * @param end (int) Index after the body
+     * @throws ProtocolException If the body isn't valid UTF-8
+     */
+    private void decodeUtf8(ByteBuffer buffer, int start, int end) throws ProtocolException {
+        if (utf8Decoder == null) utf8Decoder = StandardCharsets.UTF_8.newDecoder();
+        if (characterBuffer == null) characterBuffer = CharBuffer.wrap(characters);
+        int position = buffer.position();
+        int limit = buffer.limit();
+        try {
+            buffer.limit(end).position(start);
+            characterBuffer.clear();
+            utf8Decoder.reset();
+            CoderResult result = utf8Decoder.decode(buffer, characterBuffer, true);
+            if (result.isError()) throw new ProtocolException("Malformed message body");
+            utf8Decoder.flush(characterBuffer);
+            length = characterBuffer.position();
+        } finally {
+            buffer.limit(limit).position(position);
+        }
+    }
+
+    /**
+     * @return (byte[][]) The names of the message types as ASCII, indexed by ordinal.
+     */
+    private static byte[][] typeNames() {
+        byte[][] typeNames = new byte[TYPES.length][];
+        for (MessageType type : TYPES) {
+            typeNames[type.ordinal()] = type.name().getBytes(StandardCharsets.US_ASCII);
+        }
+        return typeNames;
+    }
+
+    /**
+     *  The body of the last decoded message, a view of the character storage.
+     */
+    private class Body implements CharSequence {
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            if (index < 0 || index >= length) throw new IndexOutOfBoundsException(index);
+            return characters[index];
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            if (start < 0 || start > end || end > length) throw new IndexOutOfBoundsException(start);
+            return new String(characters, start, end - start);
+        }
+
+        @Override
+        public String toString() {
+            return new String(characters, 0, length);
+        }
+    }
+}
@@ -4,10 +4,15 @@ import java.io.Serializable;
 
 /**
  *  Class for making messages between client and server
+ *  A request may carry a correlation id, the server echoes it on every response to the request,
+ *  so a client can have several requests in flight. The id 0 means none, it isn't written.
+ *  In text form the id follows the message type after a colon, e.g. GUESS:17##e.
  */
 public class Message implements Serializable {
+    private static final char CORRELATION_ID_SEPARATOR = ':';
     private final MessageType messageType;
     private final Object body;
+    private final int correlationId;
 
     /**
      *  Creates a message
@@ -15,8 +20,19 @@ public class Message implements Serializable {
      * @param body The message
      */
     public Message(MessageType messageType, Object body){
+        this(messageType, body, 0);
+    }
+
+    /**
+     *  Creates a message with a correlation id
+     * @param messageType The message type to be made
+     * @param body The message
+     * @param correlationId The id of the request the message is or answers, 0 for none
+     */
+    public Message(MessageType messageType, Object body, int correlationId){
         this.messageType = messageType;
         this.body = body;
+        this.correlationId = correlationId;
     }
 
     public Object getBody(){
@@ -27,9 +43,26 @@ public class Message implements Serializable {
         return this.messageType;
     }
 
+    /**
+     * @return The id of the request the message is or answers, 0 if it has none.
+     */
+    public int getCorrelationId(){
+        return this.correlationId;
+    }
+
+    /**
+     * @param correlationId The id of a request
+     * @return This message if it has the id already, otherwise a copy with the id.
+     */
+    public Message withCorrelationId(int correlationId){
+        if (correlationId == this.correlationId) return this;
+        return new Message(messageType, body, correlationId);
+    }
+
     @Override
     public String toString() {
-        return "Message{" + "type=" + messageType + ", body=" + body + '}';
+        String id = correlationId == 0 ? "" : ", id=" + correlationId;
+        return "Message{" + "type=" + messageType + id + ", body=" + body + '}';
     }
 
     /**
@@ -38,7 +71,8 @@ public class Message implements Serializable {
      * @return (String) The serialized message
      */
     public static String serialize(Message message) {
-        return message.messageType.toString() + "##" + message.body;
+        String id = message.correlationId == 0 ? "" : CORRELATION_ID_SEPARATOR + Integer.toString(message.correlationId);
+        return message.messageType.toString() + id + "##" + message.body;
     }
 
     /**
@@ -48,8 +82,10 @@ public class Message implements Serializable {
      */
     public static Message deserialize(String message) {
         String[] parts = message.split("##");
-        MessageType type = MessageType.valueOf(parts[0].toUpperCase());
+        String[] typeAndId = parts[0].split(String.valueOf(CORRELATION_ID_SEPARATOR), 2);
+        MessageType type = MessageType.valueOf(typeAndId[0].toUpperCase());
+        int correlationId = typeAndId.length > 1 ? Integer.parseInt(typeAndId[1]) : 0;
         String body = parts.length > 1 ? parts[1] : "";
-        return new Message(type, body);
+        return new Message(type, body, correlationId);
     }
 }
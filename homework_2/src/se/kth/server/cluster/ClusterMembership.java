@@ -0,0 +1,190 @@
+package se.kth.server.cluster;
+
+import se.kth.server.log.Logger;
+import se.kth.server.log.Log;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *  The nodes of a cluster and the hash ring of the nodes that are up.
+ *  The nodes are given when the router starts and may be read from a file that is read again when it changes,
+ *  so nodes can join and leave while the router runs. A node is taken off the ring when the router can't
+ *  connect to it and put back when a probe connects again. Every change makes a new ring.
+ *  The last rings are kept, a session that was started under an older ring is looked for on the node
+ *  it belonged to then, so sessions can still be resumed after the nodes change.
+ *  getRing()           -   The ring of the nodes that are up.
+ *  ownersOf(key)       -   The nodes a key belongs to, under the current ring and the ones before it.
+ *  markDown(node)      -   Takes a node off the ring after a failed connect.
+ *  start()             -   Starts probing the nodes that are down and watching the node file.
+ */
+class ClusterMembership {
+    private static final Logger LOG = Log.getLogger("cluster");
+    private static final int RING_HISTORY = 4;
+    private static final int PROBE_TIMEOUT_MILLIS = 500;
+    private final Set<InetSocketAddress> givenNodes;
+    private final Set<InetSocketAddress> downNodes = new LinkedHashSet<>();
+    private final Path nodeFile;
+    private Set<InetSocketAddress> nodes;
+    private long nodeFileModified = -1;
+    private volatile List<HashRing> rings = Collections.singletonList(new HashRing(Collections.emptyList()));
+
+    /**
+     *  Creates the membership with every node up.
+     * @param givenNodes (List) The nodes given when the router starts
+     * @param nodeFile (Path) A file with one host:port per line, or null
+     */
+    ClusterMembership(List<InetSocketAddress> givenNodes, Path nodeFile) {
+        this.givenNodes = new LinkedHashSet<>(givenNodes);
+        this.nodeFile = nodeFile;
+        this.nodes = new LinkedHashSet<>(givenNodes);
+        readNodeFile();
+        updateRing();
+    }
+
+    /**
+     *  Starts a thread that probes the nodes that are down and reads the node file again, once a second.
+     */
+    void start() {
+        ScheduledExecutorService prober = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "cluster-prober");
+            thread.setDaemon(true);
+            return thread;
+        });
+        prober.scheduleWithFixedDelay(this::probe, 1, 1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @return (HashRing) The ring of the nodes that are up.
+     */
+    HashRing getRing() {
+        return rings.get(0);
+    }
+
+    /**
+     *  The nodes a key belongs to under the current ring and the rings before it, newest first.
+     * @param key (String) The session id
+     * @return (List) The nodes, without repeats
+     */
+    List<InetSocketAddress> ownersOf(String key) {
+        Set<InetSocketAddress> owners = new LinkedHashSet<>();
+        for (HashRing ring : rings) {
+            InetSocketAddress owner = ring.nodeFor(key);
+            if (owner != null) owners.add(owner);
+        }
+        return new ArrayList<>(owners);
+    }
+
+    /**
+     *  Takes a node off the ring, the router couldn't connect to it.
+     * @param node (InetSocketAddress) The node
+     */
+    synchronized void markDown(InetSocketAddress node) {
+        if (nodes.contains(node) && downNodes.add(node)) {
+            LOG.warn("Node {} is down.", node);
+            updateRing();
+        }
+    }
+
+    /**
+     *  Reads the node file if it changed and puts the nodes that accept connections again back on the ring.
+     */
+    private void probe() {
+        List<InetSocketAddress> probed;
+        synchronized (this) {
+            if (readNodeFile()) updateRing();
+            probed = new ArrayList<>(downNodes);
+        }
+        for (InetSocketAddress node : probed) {
+            if (accepts(node)) {
+                synchronized (this) {
+                    if (downNodes.remove(node)) {
+                        LOG.info("Node {} is up.", node);
+                        updateRing();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @param node (InetSocketAddress) A node
+     * @return (boolean) True if the node accepts a connection.
+     */
+    private static boolean accepts(InetSocketAddress node) {
+        try (Socket socket = new Socket()) {
+            socket.connect(node, PROBE_TIMEOUT_MILLIS);
+            return true;
+        } catch (IOException exception) {
+            return false;
+        }
+    }
+
+    /**
+     *  Reads the node file if it has changed since it was read. The nodes are the given nodes and the nodes in the file.
+     * @return (boolean) True if the nodes changed
+     */
+    private boolean readNodeFile() {
+        if (nodeFile == null) return false;
+        try {
+            long modified = Files.getLastModifiedTime(nodeFile).toMillis();
+            if (modified == nodeFileModified) return false;
+            nodeFileModified = modified;
+            Set<InetSocketAddress> readNodes = new LinkedHashSet<>(givenNodes);
+            for (String line : Files.readAllLines(nodeFile)) {
+                if (!line.isBlank() && !line.startsWith("#")) {
+                    InetSocketAddress node = parseNode(line.trim());
+                    if (node != null) readNodes.add(node);
+                }
+            }
+            if (readNodes.equals(nodes)) return false;
+            nodes = readNodes;
+            downNodes.retainAll(nodes);
+            return true;
+        } catch (IOException exception) {
+            LOG.warn("Unable to read the node file {}: {}", nodeFile, exception.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     *  Makes a new ring of the nodes that are up, the oldest ring is dropped.
+     */
+    private void updateRing() {
+        List<InetSocketAddress> upNodes = new ArrayList<>(nodes);
+        upNodes.removeAll(downNodes);
+        if (upNodes.equals(getRing().getNodes())) return;
+        List<HashRing> updated = new ArrayList<>(RING_HISTORY);
+        updated.add(new HashRing(upNodes));
+        for (HashRing ring : rings) {
+            if (updated.size() == RING_HISTORY) break;
+            if (!ring.getNodes().isEmpty()) updated.add(ring);
+        }
+        rings = updated;
+        LOG.info("Nodes on the ring: {}", upNodes);
+    }
+
+    /**
+     * @param node (String) A node as host:port
+     * @return (InetSocketAddress) The node, or null if it isn't valid
+     */
+    static InetSocketAddress parseNode(String node) {
+        int separator = node.lastIndexOf(':');
+        try {
+            return new InetSocketAddress(node.substring(0, separator), Integer.parseInt(node.substring(separator + 1)));
+        } catch (RuntimeException exception) {
+            LOG.warn("Not a valid node: {}", node);
+            return null;
+        }
+    }
+}
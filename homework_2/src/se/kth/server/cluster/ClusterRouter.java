@@ -0,0 +1,226 @@
+package se.kth.server.cluster;
+
+import se.kth.common.BufferPool;
+import se.kth.common.MessageCodec;
+import se.kth.server.log.Logger;
+import se.kth.server.log.Log;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Paths;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ *  A thin router in front of several hangman servers, the nodes of a cluster.
+ *  Clients connect to the router, which passes their messages on over the framed protocol to the node
+ *  their session belongs to by consistent hashing of the session id. The router chooses the session id of
+ *  a new client and the node uses it as the token of the session, so a client that reconnects and resumes
+ *  is routed to the node that has its game, through any router.
+ *  Nodes that can't be reached leave the ring and join it again when they accept connections,
+ *  nodes can also be added and removed in a node file while the router runs.
+ *  Everything runs on one thread with one selector.
+ *  parsePort(String)       -   Sets the port if it is valid.
+ *  setNodeFile(String)     -   Reads more nodes from a file that is watched for changes.
+ *  setClusterSecret(String) -  The secret the nodes take session ids from.
+ *  serve()                 -   Starts the router, does not return while it is running.
+ */
+public class ClusterRouter {
+    private static final Logger LOG = Log.getLogger("cluster");
+    private static final int SESSION_ID_BYTES = 16;
+    private static final int MAX_SESSION_ID_ATTEMPTS = 64;
+    private final BufferPool bufferPool = new BufferPool(MessageCodec.FRAME_BUFFER_SIZE, 16L * 1024 * 1024);
+    private final SecureRandom random = new SecureRandom();
+    private final List<InetSocketAddress> nodes = new ArrayList<>();
+    private ClusterMembership membership;
+    private String nodeFile;
+    private String clusterSecret;
+    private Selector selector;
+    private boolean reusePort;
+    private int port;
+
+    /**
+     *  Creates a router on port 4444.
+     * @param nodes (String) The nodes as a comma separated list of host:port
+     */
+    public ClusterRouter(String nodes) {
+        this.port = 4444;
+        for (String node : nodes.split(",")) {
+            if (node.isBlank()) continue;
+            InetSocketAddress address = ClusterMembership.parseNode(node.trim());
+            if (address != null) this.nodes.add(address);
+        }
+    }
+
+    /**
+     * Parses a given port. If not valid 4444 will be used.
+     * @param port The port to be used for the router.
+     */
+    public void parsePort(String port) {
+        final String PORT_REGEX =
+                "(6553[0-5]|655[0-2][0-9]\\d|65[0-4](\\d){2}|6[0-4](\\d){3}|[1-5](\\d){4}|[1-9](\\d){0,3})";
+        if (Pattern.matches(PORT_REGEX, port)) {
+            this.port = Integer.valueOf(port);
+        }
+    }
+
+    /**
+     * @param nodeFile (String) Path of a file with one host:port per line, read again when it changes
+     */
+    public void setNodeFile(String nodeFile) {
+        this.nodeFile = nodeFile;
+    }
+
+    /**
+     * @param clusterSecret (String) The secret the nodes are started with, sent with the session id of a new client
+     */
+    public void setClusterSecret(String clusterSecret) {
+        this.clusterSecret = clusterSecret;
+    }
+
+    /**
+     * @return (String) The secret of the cluster.
+     */
+    String getClusterSecret() {
+        return clusterSecret;
+    }
+
+    /**
+     * @param reusePort (boolean) True to bind with SO_REUSEPORT, so several routers can share the port
+     */
+    public void setReusePort(boolean reusePort) {
+        this.reusePort = reusePort;
+    }
+
+    /**
+     *  Starts the router.
+     */
+    public void serve() {
+        ServerSocketChannel serverSocketChannel;
+        try {
+            LOG.info("Starting cluster router...");
+            membership = new ClusterMembership(nodes, nodeFile == null ? null : Paths.get(nodeFile));
+            membership.start();
+            selector = Selector.open();
+            serverSocketChannel = ServerSocketChannel.open();
+            serverSocketChannel.configureBlocking(false);
+            if (reusePort) {
+                if (serverSocketChannel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                    serverSocketChannel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                } else {
+                    LOG.warn("SO_REUSEPORT is not supported on this platform.");
+                }
+            }
+            serverSocketChannel.bind(new InetSocketAddress(port));
+            serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException exception) {
+            LOG.error("Unable to start router on given port: {}", exception.getMessage());
+            System.exit(1);
+            return;
+        }
+        LOG.info("Routing connections on port {}!", port);
+        while (true) {
+            try {
+                selector.select();
+                for (SelectionKey key : selector.selectedKeys()) {
+                    if (!key.isValid()) continue;
+                    if (key.isAcceptable()) {
+                        accept(serverSocketChannel);
+                    } else if (key.attachment() instanceof RoutedConnection) {
+                        handleClient(key, (RoutedConnection) key.attachment());
+                    } else {
+                        handleNode(key, (NodeConnection) key.attachment());
+                    }
+                }
+                selector.selectedKeys().clear();
+            } catch (IOException exception) {
+                LOG.error("Router failed: {}", exception.getMessage());
+            }
+        }
+    }
+
+    /**
+     *  Accepts a client and connects it to a node.
+     * @param serverSocketChannel (ServerSocketChannel) The listening channel
+     * @throws IOException If the client can't be registered
+     */
+    private void accept(ServerSocketChannel serverSocketChannel) throws IOException {
+        SocketChannel client = serverSocketChannel.accept();
+        if (client == null) return;
+        client.configureBlocking(false);
+        client.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        LOG.info("Connection from {}.", client.socket().getRemoteSocketAddress());
+        RoutedConnection routedConnection = new RoutedConnection(this, client, bufferPool);
+        routedConnection.start(client.register(selector, SelectionKey.OP_READ, routedConnection));
+        routedConnection.flush();
+    }
+
+    private void handleClient(SelectionKey key, RoutedConnection routedConnection) {
+        try {
+            if (key.isReadable()) routedConnection.readFromClient();
+            routedConnection.flush();
+        } catch (IOException exception) {
+            routedConnection.close();
+        } catch (RuntimeException exception) {
+            LOG.error("Closing client after an unexpected error: {}", exception.toString());
+            routedConnection.close();
+        }
+    }
+
+    private void handleNode(SelectionKey key, NodeConnection nodeConnection) {
+        RoutedConnection routedConnection = nodeConnection.routedConnection;
+        if (routedConnection.isClosed()) {
+            nodeConnection.close();
+            return;
+        }
+        try {
+            try {
+                if (key.isConnectable()) nodeConnection.finishConnect();
+                if (key.isReadable()) routedConnection.readFromNode(nodeConnection);
+            } catch (IOException exception) {
+                routedConnection.nodeClosed(nodeConnection);
+            }
+            routedConnection.flush();
+        } catch (RuntimeException exception) {
+            LOG.error("Closing client after an unexpected error from {}: {}", nodeConnection.node, exception.toString());
+            routedConnection.close();
+        }
+    }
+
+    /**
+     * @return (String) A new random session id, in the form of a session token.
+     */
+    String newSessionId() {
+        byte[] bytes = new byte[SESSION_ID_BYTES];
+        random.nextBytes(bytes);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    }
+
+    /**
+     *  Makes a new session id that belongs to the node, for a client that moves to a node it didn't choose by a new id.
+     * @param node (InetSocketAddress) The node
+     * @return (String) The session id
+     */
+    String newSessionIdFor(InetSocketAddress node) {
+        String sessionId = newSessionId();
+        for (int attempt = 1; attempt < MAX_SESSION_ID_ATTEMPTS && !node.equals(membership.getRing().nodeFor(sessionId)); attempt++) {
+            sessionId = newSessionId();
+        }
+        return sessionId;
+    }
+
+    ClusterMembership getMembership() {
+        return membership;
+    }
+
+    Selector getSelector() {
+        return selector;
+    }
+}
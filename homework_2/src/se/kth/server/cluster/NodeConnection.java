@@ -0,0 +1,190 @@
+package se.kth.server.cluster;
+
+import se.kth.common.BufferPool;
+import se.kth.common.Message;
+import se.kth.common.MessageCodec;
+import se.kth.common.MessageType;
+import se.kth.server.log.Logger;
+import se.kth.server.log.Log;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ *  The connection of the router to a node, on behalf of one client.
+ *  The first message on the connection is the HELLO of the router, which carries the features
+ *  of the client and the session id the node gives the next new session. Its response is swallowed.
+ *  Messages sent before the connection is established are queued.
+ *  connect(selector)   -   Starts connecting and registers the connection.
+ *  send(message)       -   Queues a message to the node.
+ *  read(bufferPool)    -   Reads the messages available from the node.
+ *  write()             -   Writes the queued messages until the channel doesn't accept more.
+ */
+class NodeConnection {
+    private static final Logger LOG = Log.getLogger("cluster");
+    final InetSocketAddress node;
+    final RoutedConnection routedConnection;
+    final List<Message> heldForClient = new ArrayList<>();
+    private final ArrayDeque<Message> outbound = new ArrayDeque<>();
+    private final MessageCodec messageCodec;
+    private final Message hello;
+    private SocketChannel channel;
+    private SelectionKey selectionKey;
+    private ByteBuffer writing;
+    private boolean helloWritten;
+    private boolean connected;
+    private boolean quitting;
+    private boolean helloAnswered;
+
+    /**
+     * @param node (InetSocketAddress) The node
+     * @param routedConnection (RoutedConnection) The client the connection is for
+     * @param hello (Message) The HELLO of the router
+     * @param bufferPool (BufferPool) Pool for partial frames
+     */
+    NodeConnection(InetSocketAddress node, RoutedConnection routedConnection, Message hello, BufferPool bufferPool) {
+        this.node = node;
+        this.routedConnection = routedConnection;
+        this.hello = hello;
+        this.messageCodec = new MessageCodec(bufferPool);
+    }
+
+    /**
+     *  Starts connecting to the node and registers the connection with the selector.
+     * @param selector (Selector) The selector of the router
+     * @throws IOException If the connection can't be started
+     */
+    void connect(Selector selector) throws IOException {
+        channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        connected = channel.connect(node);
+        selectionKey = channel.register(selector, connected ? SelectionKey.OP_WRITE : SelectionKey.OP_CONNECT, this);
+    }
+
+    /**
+     *  Completes the connection when the selector reports it.
+     * @throws IOException If the node refused the connection
+     */
+    void finishConnect() throws IOException {
+        connected = channel.finishConnect();
+    }
+
+    /**
+     * @param message (Message) A message to the node
+     */
+    void send(Message message) {
+        outbound.add(message);
+    }
+
+    /**
+     *  Reads the messages available from the node. The response to the HELLO of the router is dropped.
+     * @param bufferPool (BufferPool) The pool the read buffer is borrowed from
+     * @return (List) The messages
+     * @throws IOException When the node has closed the connection
+     */
+    List<Message> read(BufferPool bufferPool) throws IOException {
+        List<Message> messages;
+        ByteBuffer readBuffer = bufferPool.acquire();
+        try {
+            if (channel.read(readBuffer) == -1) throw new IOException("Node has closed connection.");
+            readBuffer.flip();
+            messages = messageCodec.decode(readBuffer);
+        } finally {
+            bufferPool.release(readBuffer);
+        }
+        for (int i = 0; !helloAnswered && i < messages.size(); i++) {
+            if (messages.get(i).getMessageType() == MessageType.RESPONSE_HELLO) {
+                messages.remove(i);
+                helloAnswered = true;
+            }
+        }
+        return messages;
+    }
+
+    /**
+     *  Writes the queued messages, the HELLO of the router first.
+     * @throws IOException When something is wrong on the channel while writing
+     */
+    void write() throws IOException {
+        if (!connected) return;
+        while (true) {
+            if (writing == null) {
+                if (!helloWritten) {
+                    writing = MessageCodec.encode(hello);
+                    helloWritten = true;
+                } else if (!outbound.isEmpty()) {
+                    writing = MessageCodec.encode(outbound.poll());
+                } else {
+                    return;
+                }
+            }
+            channel.write(writing);
+            if (writing.hasRemaining()) return;
+            writing = null;
+        }
+    }
+
+    /**
+     * @param readFromNode (boolean) True to read from the node
+     */
+    void updateInterest(boolean readFromNode) {
+        if (selectionKey == null || !selectionKey.isValid()) return;
+        if (!connected) {
+            selectionKey.interestOps(SelectionKey.OP_CONNECT);
+            return;
+        }
+        boolean pendingWrites = writing != null || !helloWritten || !outbound.isEmpty();
+        selectionKey.interestOps((readFromNode ? SelectionKey.OP_READ : 0) | (pendingWrites ? SelectionKey.OP_WRITE : 0));
+    }
+
+    /**
+     * @return (List) The messages that were never written, without the HELLO of the router.
+     */
+    List<Message> takeUnwritten() {
+        List<Message> unwritten = new ArrayList<>(outbound);
+        outbound.clear();
+        return unwritten;
+    }
+
+    /**
+     * @return (int) Number of queued messages.
+     */
+    int getQueuedCount() {
+        return outbound.size();
+    }
+
+    boolean isConnected() {
+        return connected;
+    }
+
+    /**
+     *  Marks the connection as one that is closed by the node after a QUIT, its responses are still passed on.
+     */
+    void setQuitting() {
+        quitting = true;
+    }
+
+    boolean isQuitting() {
+        return quitting;
+    }
+
+    /**
+     *  Closes the connection, the node parks the session if the client didn't quit.
+     */
+    void close() {
+        try {
+            if (channel != null) channel.close();
+        } catch (IOException exception) {
+            LOG.debug("Unable to close the connection to {}: {}", node, exception.getMessage());
+        }
+        messageCodec.release();
+    }
+}
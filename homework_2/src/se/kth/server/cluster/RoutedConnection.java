@@ -0,0 +1,356 @@
+package se.kth.server.cluster;
+
+import se.kth.common.BufferPool;
+import se.kth.common.Message;
+import se.kth.common.MessageCodec;
+import se.kth.common.MessageType;
+import se.kth.server.log.Logger;
+import se.kth.server.log.Log;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ *  One client of the router and its connections to the nodes.
+ *  A client is connected to the node of a new session id when it connects, the node uses the id as the
+ *  token if the client starts a game. A RESUME is sent to the node the token belongs to, and if that node
+ *  doesn't have the session, to the nodes it belonged to under the earlier rings. Messages from the client
+ *  are held while a RESUME is looked up, the RESUME sent to the nodes keeps the correlation id of the client.
+ *  When the client moves to another node the old connection is sent a QUIT and is closed by the node.
+ *  Responses are passed on in order: the responses of a newer connection are held until the older ones are closed.
+ *  readFromClient()        -   Reads and routes the messages from the client.
+ *  readFromNode(node)      -   Reads and passes on the messages from a node.
+ *  nodeClosed(node)        -   Moves the client on when a node closes or can't be reached.
+ *  flush()                 -   Writes what can be written in both directions.
+ */
+class RoutedConnection {
+    private static final Logger LOG = Log.getLogger("cluster");
+    private static final int MAX_UNWRITTEN_CLIENT_BYTES = 64 * 1024;
+    private static final int MAX_QUEUED_NODE_MESSAGES = 256;
+    private final ArrayDeque<NodeConnection> nodeConnections = new ArrayDeque<>();
+    private final ArrayDeque<ByteBuffer> toClient = new ArrayDeque<>();
+    private final ClusterRouter router;
+    private final SocketChannel client;
+    private final MessageCodec clientCodec;
+    private final BufferPool bufferPool;
+    private SelectionKey clientKey;
+    private long unwrittenClientBytes;
+    private String clientFeatures;
+    private String resumeToken;
+    private int resumeCorrelationId;
+    private ArrayDeque<InetSocketAddress> resumeCandidates;
+    private List<Message> heldFromClient = new ArrayList<>();
+    private boolean closed;
+
+    /**
+     * @param router (ClusterRouter) The router
+     * @param client (SocketChannel) The connection to the client
+     * @param bufferPool (BufferPool) Pool of read buffers
+     */
+    RoutedConnection(ClusterRouter router, SocketChannel client, BufferPool bufferPool) {
+        this.router = router;
+        this.client = client;
+        this.bufferPool = bufferPool;
+        this.clientCodec = new MessageCodec(bufferPool);
+    }
+
+    /**
+     *  Connects the client to the node of a new session id.
+     * @param clientKey (SelectionKey) The key of the client
+     */
+    void start(SelectionKey clientKey) {
+        this.clientKey = clientKey;
+        connectToNewSession(new ArrayList<>());
+    }
+
+    /**
+     *  Reads the messages available from the client and routes them.
+     * @throws IOException When the client has closed the connection or sent a message the router can't route
+     */
+    void readFromClient() throws IOException {
+        List<Message> messages;
+        ByteBuffer readBuffer = bufferPool.acquire();
+        try {
+            if (client.read(readBuffer) == -1) throw new IOException("Client has closed connection.");
+            readBuffer.flip();
+            messages = clientCodec.decode(readBuffer);
+        } finally {
+            bufferPool.release(readBuffer);
+        }
+        checkTextBodies(messages);
+        route(messages);
+    }
+
+    /**
+     *  Checks that the messages the router reads the body of carry text, a binary body decodes to a game state.
+     * @param messages (List) Messages from the client
+     * @throws ProtocolException If a HELLO or RESUME doesn't carry text
+     */
+    private static void checkTextBodies(List<Message> messages) throws ProtocolException {
+        for (Message message : messages) {
+            MessageType messageType = message.getMessageType();
+            if ((messageType == MessageType.HELLO || messageType == MessageType.RESUME) && !(message.getBody() instanceof String)) {
+                throw new ProtocolException("Binary body in " + messageType);
+            }
+        }
+    }
+
+    /**
+     *  Reads the messages available from a node and passes them on.
+     *  A response that the session to resume isn't on the node moves the RESUME on to the next node.
+     * @param nodeConnection (NodeConnection) The connection to the node
+     * @throws IOException When the node has closed the connection
+     */
+    void readFromNode(NodeConnection nodeConnection) throws IOException {
+        for (Message message : nodeConnection.read(bufferPool)) {
+            if (resumeToken != null && nodeConnection == activeNode() && message.getMessageType() == MessageType.RESPONSE_SESSION) {
+                if (message.getBody().equals(resumeToken) || resumeCandidates.isEmpty()) {
+                    deliver(nodeConnection, message);
+                    finishResume();
+                } else {
+                    resumeOnNextCandidate();
+                }
+            } else {
+                deliver(nodeConnection, message);
+            }
+        }
+    }
+
+    /**
+     *  Handles a node connection that was closed or couldn't be established.
+     *  A node that couldn't be reached is taken off the ring and the messages for it go to another node.
+     *  If the node the client is on closes the connection, the client is closed as well.
+     * @param nodeConnection (NodeConnection) The connection to the node
+     */
+    void nodeClosed(NodeConnection nodeConnection) {
+        boolean unreachable = !nodeConnection.isConnected();
+        boolean active = nodeConnection == activeNode();
+        if (unreachable) router.getMembership().markDown(nodeConnection.node);
+        nodeConnections.remove(nodeConnection);
+        nodeConnection.close();
+        if (active) {
+            if (resumeToken != null) {
+                resumeOnNextCandidate();
+            } else if (unreachable) {
+                connectToNewSession(nodeConnection.takeUnwritten());
+            } else {
+                close();
+                return;
+            }
+        }
+        passOnHeldResponses();
+    }
+
+    /**
+     *  Writes what the client and the nodes accept and updates what the selector waits for.
+     */
+    void flush() {
+        if (closed) return;
+        try {
+            while (!toClient.isEmpty()) {
+                ByteBuffer frame = toClient.peekFirst();
+                client.write(frame);
+                if (frame.hasRemaining()) break;
+                unwrittenClientBytes -= frame.capacity();
+                toClient.pollFirst();
+            }
+        } catch (IOException exception) {
+            close();
+            return;
+        }
+        for (NodeConnection nodeConnection : new ArrayList<>(nodeConnections)) {
+            try {
+                nodeConnection.write();
+            } catch (IOException exception) {
+                nodeClosed(nodeConnection);
+                if (closed) return;
+            }
+        }
+        updateInterest();
+    }
+
+    /**
+     *  Closes the client and its node connections, the nodes park the sessions.
+     */
+    void close() {
+        if (closed) return;
+        closed = true;
+        for (NodeConnection nodeConnection : nodeConnections) {
+            nodeConnection.close();
+        }
+        nodeConnections.clear();
+        clientCodec.release();
+        try {
+            LOG.info("Closing connection to {}.", client.getRemoteAddress());
+            client.close();
+        } catch (IOException exception) {
+            LOG.debug("Unable to close the client: {}", exception.getMessage());
+        }
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     *  Routes messages from the client to the node it is on. HELLO is remembered, so it can be repeated
+     *  to the nodes the client moves to, and RESUME looks up the node of the session.
+     * @param messages (List) Messages from the client
+     */
+    private void route(List<Message> messages) {
+        for (Message message : messages) {
+            if (closed) return;
+            if (resumeToken != null) {
+                heldFromClient.add(message);
+            } else if (message.getMessageType() == MessageType.RESUME) {
+                resumeToken = (String) message.getBody();
+                resumeCorrelationId = message.getCorrelationId();
+                resumeCandidates = new ArrayDeque<>(router.getMembership().ownersOf(resumeToken));
+                resumeOnNextCandidate();
+            } else {
+                if (message.getMessageType() == MessageType.HELLO) {
+                    clientFeatures = (String) message.getBody();
+                }
+                activeNode().send(message);
+            }
+        }
+    }
+
+    /**
+     *  Sends the RESUME to the next node the session may be on. When there are no more nodes to try,
+     *  the client is told that the session couldn't be resumed and stays on a node of a new session.
+     */
+    private void resumeOnNextCandidate() {
+        InetSocketAddress node = resumeCandidates.poll();
+        if (node == null) {
+            NodeConnection current = activeNode();
+            if ((current == null || current.isQuitting()) && !connectToNewSession(new ArrayList<>())) return;
+            deliver(activeNode(), new Message(MessageType.RESPONSE_SESSION, "", resumeCorrelationId));
+            finishResume();
+            return;
+        }
+        NodeConnection current = activeNode();
+        if (current == null || !current.node.equals(node)) {
+            moveTo(node, router.newSessionIdFor(node));
+        }
+        activeNode().send(new Message(MessageType.RESUME, resumeToken, resumeCorrelationId));
+    }
+
+    /**
+     *  Stops holding the messages from the client and routes the held ones.
+     */
+    private void finishResume() {
+        resumeToken = null;
+        resumeCandidates = null;
+        List<Message> held = heldFromClient;
+        heldFromClient = new ArrayList<>();
+        route(held);
+    }
+
+    /**
+     *  Moves the client to the node of a new session id, when it connects or after a node couldn't be reached.
+     * @param unwritten (List) Messages that were meant for the old node
+     * @return (boolean) False if no node is up and the client was closed
+     */
+    private boolean connectToNewSession(List<Message> unwritten) {
+        String sessionId = router.newSessionId();
+        InetSocketAddress node = router.getMembership().getRing().nodeFor(sessionId);
+        if (node == null) {
+            LOG.warn("No node is up, closing {}.", client.socket().getRemoteSocketAddress());
+            close();
+            return false;
+        }
+        moveTo(node, sessionId);
+        for (Message message : unwritten) {
+            activeNode().send(message);
+        }
+        return !closed;
+    }
+
+    /**
+     *  Opens a connection to a node and makes it the node the client is on. The node the client was on is sent a QUIT.
+     * @param node (InetSocketAddress) The node
+     * @param sessionId (String) The id the node gives a new session
+     */
+    private void moveTo(InetSocketAddress node, String sessionId) {
+        NodeConnection current = activeNode();
+        if (current != null && !current.isQuitting()) {
+            current.send(new Message(MessageType.QUIT, ""));
+            current.setQuitting();
+        }
+        String features = clientFeatures == null ? "" : clientFeatures + ",";
+        Message hello = new Message(MessageType.HELLO, features + MessageCodec.SECRET_FEATURE + router.getClusterSecret()
+                + "," + MessageCodec.SESSION_FEATURE + sessionId);
+        NodeConnection nodeConnection = new NodeConnection(node, this, hello, bufferPool);
+        nodeConnections.addLast(nodeConnection);
+        LOG.debug("Routing {} to {}.", client.socket().getRemoteSocketAddress(), node);
+        try {
+            nodeConnection.connect(router.getSelector());
+        } catch (IOException exception) {
+            nodeClosed(nodeConnection);
+        }
+    }
+
+    /**
+     *  Passes a message on to the client, or holds it if older node connections haven't closed yet.
+     * @param nodeConnection (NodeConnection) The connection the message came from
+     * @param message (Message) The message
+     */
+    private void deliver(NodeConnection nodeConnection, Message message) {
+        if (nodeConnection == nodeConnections.peekFirst()) {
+            queueToClient(message);
+        } else {
+            nodeConnection.heldForClient.add(message);
+        }
+    }
+
+    /**
+     *  Passes on the held responses of the oldest node connection, after the ones before it have closed.
+     */
+    private void passOnHeldResponses() {
+        NodeConnection oldest = nodeConnections.peekFirst();
+        if (oldest == null) return;
+        for (Message message : oldest.heldForClient) {
+            queueToClient(message);
+        }
+        oldest.heldForClient.clear();
+    }
+
+    /**
+     *  Frames a message for the client. Game states stay in the form they came in, text or binary.
+     * @param message (Message) The message
+     */
+    private void queueToClient(Message message) {
+        byte[] body = MessageCodec.encodeBody(message, true);
+        ByteBuffer frame = ByteBuffer.allocate(MessageCodec.LENGTH_FIELD_SIZE + body.length);
+        frame.putInt(body.length).put(body).flip();
+        toClient.add(frame);
+        unwrittenClientBytes += frame.capacity();
+    }
+
+    /**
+     *  Stops reading from a side while the other side has too much unwritten.
+     */
+    private void updateInterest() {
+        if (!clientKey.isValid()) return;
+        NodeConnection active = activeNode();
+        boolean readFromClient = active == null || active.getQueuedCount() < MAX_QUEUED_NODE_MESSAGES;
+        clientKey.interestOps((readFromClient ? SelectionKey.OP_READ : 0) | (toClient.isEmpty() ? 0 : SelectionKey.OP_WRITE));
+        for (NodeConnection nodeConnection : nodeConnections) {
+            nodeConnection.updateInterest(unwrittenClientBytes < MAX_UNWRITTEN_CLIENT_BYTES);
+        }
+    }
+
+    /**
+     * @return (NodeConnection) The connection of the node the client is on, or null if there is none.
+     */
+    private NodeConnection activeNode() {
+        return nodeConnections.peekLast();
+    }
+}
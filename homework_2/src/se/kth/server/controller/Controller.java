@@ -1,14 +1,18 @@
 package se.kth.server.controller;
 
+import se.kth.common.Difficulty;
 import se.kth.common.GameState;
 import se.kth.common.NotValidGuessException;
 import se.kth.server.model.GameHandler;
+import se.kth.server.log.Logger;
+import se.kth.server.log.Log;
 
 /**
  *  This controller takes care of the state of the game through the model.
  *  All the methods are done with the GameHandler class.
  */
 public class Controller {
+    private static final Logger LOG = Log.getLogger("game");
     private final GameHandler gameHandler;
 
     /**
@@ -24,13 +28,30 @@ public class Controller {
      * @param currentState  The current game state
      * @return New State
      */
-    public GameState guess(String characters, GameState currentState){
+    public GameState guess(CharSequence characters, GameState currentState){
         GameState newState;
         try {
             newState = gameHandler.guess(characters, currentState);
         }catch (NotValidGuessException exception){
             newState = currentState;
-            System.err.println("*** Got a not valid guess ***");
+            LOG.warn("*** Got a not valid guess: {} ***", characters.toString());
+        }
+        return newState;
+    }
+
+    /**
+     * Will submit several guesses, until one of them ends the game.
+     * @param guesses Guessed words and characters, separated by commas
+     * @param currentState  The current game state
+     * @return New State, after the guesses before a not valid one if there is one
+     */
+    public GameState guessBatch(CharSequence guesses, GameState currentState){
+        GameState newState;
+        try {
+            newState = gameHandler.guessBatch(guesses, currentState);
+        }catch (NotValidGuessException exception){
+            newState = currentState;
+            LOG.warn("*** Got a not valid guess in the batch: {} ***", guesses.toString());
         }
         return newState;
     }
@@ -43,6 +64,16 @@ public class Controller {
         return gameHandler.startGame();
     }
 
+    /**
+     * Starts a new game with the word a client asked for.
+     * @param wordRequest A difficulty, a word length or empty for the first word, see newGame
+     * @return Game state
+     */
+    public GameState startGame(String wordRequest){
+        GameState gameState = gameHandler.startGame();
+        return wordRequest.isBlank() ? gameState : newGame(gameState, wordRequest);
+    }
+
     /**
      * Will make a new word and the other stuff needed for a new hangman game.
      * Score is remained.
@@ -52,4 +83,43 @@ public class Controller {
     public GameState newGame(GameState currentGameState){
         return gameHandler.newGame(currentGameState);
     }
+
+    /**
+     * Will make a new game with the word a client asked for.
+     * Score is remained.
+     * @param currentGameState Current game state.
+     * @param wordRequest A difficulty like hard, a word length, or empty for any word
+     * @return New game state, with any word if the request isn't understood.
+     */
+    public GameState newGame(GameState currentGameState, String wordRequest){
+        if (wordRequest.isBlank()){
+            return gameHandler.newGame(currentGameState);
+        }
+        Difficulty difficulty = Difficulty.parse(wordRequest);
+        if (difficulty != null){
+            return gameHandler.newGame(currentGameState, difficulty);
+        }
+        try {
+            return gameHandler.newGame(currentGameState, Integer.parseInt(wordRequest.trim()));
+        } catch (NumberFormatException exception){
+            LOG.warn("*** Got a not valid word request: {} ***", wordRequest);
+            return gameHandler.newGame(currentGameState);
+        }
+    }
+
+    /**
+     * @param word The word of a game.
+     * @return The index of the word, or -1 if it isn't one of the words.
+     */
+    public int wordIndexOf(String word){
+        return gameHandler.wordIndexOf(word);
+    }
+
+    /**
+     * @param wordIndex The index of a word.
+     * @return The word.
+     */
+    public String wordAt(int wordIndex){
+        return gameHandler.wordAt(wordIndex);
+    }
 }
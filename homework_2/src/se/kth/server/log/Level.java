@@ -0,0 +1,39 @@
+package se.kth.server.log;
+
+/**
+ *  The levels of log records, from the most to the least detailed.
+ *  A logger writes the records at its level and above.
+ */
+public enum Level {
+
+    /**
+     *  Every read and write on the sockets.
+     */
+    TRACE,
+
+    /**
+     *  Every message to and from the clients.
+     */
+    DEBUG,
+
+    /**
+     *  The life of the server and of its connections.
+     */
+    INFO,
+
+    /**
+     *  Something went wrong with one client.
+     */
+    WARN,
+
+    /**
+     *  Something went wrong with the server.
+     */
+    ERROR,
+
+    /**
+     *  Nothing is written.
+     */
+    OFF
+
+}
@@ -0,0 +1,171 @@
+package se.kth.server.log;
+
+import java.io.BufferedOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ *  The logging of the server. All loggers hand their records to one lock-free ring, a background
+ *  thread drains the ring and writes the records, WARN and above to standard error and the rest
+ *  to standard output. The drain thread flushes whenever the ring is empty and when the JVM exits.
+ *  getLogger(category)     -   The logger of a category, created on first use.
+ *  configure(spec)         -   Sets levels and sampling, e.g. info,net.messages=debug/100
+ *  getDroppedRecords()     -   Number of records dropped because the ring was full.
+ *  A category without a level of its own uses the level of the closest parent category, e.g. net
+ *  for net.messages, and the default level, INFO, if no parent has one.
+ */
+public final class Log {
+    private static final int RING_CAPACITY = 8192;
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final DateTimeFormatter TIME_FORMAT =
+            DateTimeFormatter.ofPattern("HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+    private static final LogRing LOG_RING = new LogRing(RING_CAPACITY);
+    private static final Map<String, Logger> LOGGERS = new ConcurrentHashMap<>();
+    private static final Map<String, Level> LEVELS = new ConcurrentHashMap<>();
+    private static final Map<String, Integer> SAMPLING = new ConcurrentHashMap<>();
+    private static final PrintStream OUT = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out)), false);
+    private static final PrintStream ERR = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.err)), false);
+    private static volatile Level defaultLevel = Level.INFO;
+    private static volatile boolean stopping;
+
+    static {
+        startDrainThread();
+    }
+
+    private Log() {
+    }
+
+    /**
+     * @param category (String) Dot separated category, e.g. net.messages
+     * @return (Logger) The logger of the category.
+     */
+    public static Logger getLogger(String category) {
+        return LOGGERS.computeIfAbsent(category, name -> new Logger(name, LOG_RING, levelOf(name)));
+    }
+
+    /**
+     *  Sets levels and sampling from a comma separated list. An entry without a category sets the
+     *  default level, CATEGORY=LEVEL sets the level of a category and its children, and
+     *  CATEGORY=LEVEL/N also writes only one of every N records of the category.
+     * @param spec (String) The list, e.g. info,net.messages=debug/100
+     * @throws IllegalArgumentException When a level is not valid
+     */
+    public static void configure(String spec) {
+        for (String entry : spec.split(",")) {
+            entry = entry.trim();
+            if (entry.isEmpty()) continue;
+            int equals = entry.indexOf('=');
+            if (equals < 0) {
+                defaultLevel = Level.valueOf(entry.toUpperCase());
+                continue;
+            }
+            String category = entry.substring(0, equals);
+            String setting = entry.substring(equals + 1);
+            int slash = setting.indexOf('/');
+            LEVELS.put(category, Level.valueOf((slash < 0 ? setting : setting.substring(0, slash)).toUpperCase()));
+            if (slash >= 0) SAMPLING.put(category, Integer.parseInt(setting.substring(slash + 1)));
+        }
+        for (Logger logger : LOGGERS.values()) {
+            logger.configure(levelOf(logger.getCategory()), samplingOf(logger.getCategory()));
+        }
+    }
+
+    /**
+     * @return (long) Number of records dropped because the ring was full.
+     */
+    public static long getDroppedRecords() {
+        return LOG_RING.getDroppedRecords();
+    }
+
+    /**
+     * @param category A category
+     * @return The level of the category or of its closest parent, or the default level.
+     */
+    private static Level levelOf(String category) {
+        for (String name = category; name != null; name = parentOf(name)) {
+            Level level = LEVELS.get(name);
+            if (level != null) return level;
+        }
+        return defaultLevel;
+    }
+
+    /**
+     * @param category A category
+     * @return How many records of the category share one written record, only set on the category itself.
+     */
+    private static int samplingOf(String category) {
+        return SAMPLING.getOrDefault(category, 1);
+    }
+
+    /**
+     * @return The parent of a category, or null for a top category.
+     */
+    private static String parentOf(String category) {
+        int dot = category.lastIndexOf('.');
+        return dot < 0 ? null : category.substring(0, dot);
+    }
+
+    /**
+     *  Starts the drain thread and a shutdown hook that lets it write the last records.
+     */
+    private static void startDrainThread() {
+        Thread drainThread = new Thread(Log::drain, "log-drain");
+        drainThread.setDaemon(true);
+        drainThread.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            stopping = true;
+            LockSupport.unpark(drainThread);
+            try {
+                drainThread.join(TimeUnit.SECONDS.toMillis(1));
+            } catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+            }
+        }, "log-shutdown"));
+    }
+
+    /**
+     *  Writes records until the JVM exits. When the ring is empty the streams are flushed and
+     *  the thread parks for a short while.
+     */
+    private static void drain() {
+        while (true) {
+            LogRecord record;
+            boolean written = false;
+            while ((record = LOG_RING.peek()) != null) {
+                try {
+                    write(record);
+                } catch (RuntimeException exception) {
+                    ERR.println("Unable to write log record: " + exception);
+                }
+                LOG_RING.advance();
+                written = true;
+            }
+            if (written) {
+                OUT.flush();
+                ERR.flush();
+            } else if (stopping) {
+                return;
+            } else {
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+        }
+    }
+
+    /**
+     * @param record The record to write
+     */
+    private static void write(LogRecord record) {
+        PrintStream stream = record.level.compareTo(Level.WARN) >= 0 ? ERR : OUT;
+        stream.append(TIME_FORMAT.format(Instant.ofEpochMilli(record.timeMillis))).append(' ')
+                .append(record.level.name()).append(" [").append(record.threadName).append("] ")
+                .append(record.category).append(" - ").append(record.formatMessage()).append('\n');
+    }
+}
@@ -0,0 +1,43 @@
+package se.kth.server.log;
+
+/**
+ *  One slot of the log ring. It is filled by the thread that logs and read by the drain thread,
+ *  the ring makes sure they never use the same slot at the same time.
+ */
+final class LogRecord {
+    long timeMillis;
+    Level level;
+    String category;
+    String threadName;
+    String template;
+    Object firstArgument;
+    Object secondArgument;
+
+    /**
+     *  Drops the references of the record, so the arguments can be collected while the slot is free.
+     */
+    void clear() {
+        template = null;
+        firstArgument = null;
+        secondArgument = null;
+    }
+
+    /**
+     *  Replaces the placeholders {} of the template with the arguments, in order.
+     * @return (String) The message of the record
+     */
+    String formatMessage() {
+        if (firstArgument == null && secondArgument == null && template.indexOf('{') < 0) return template;
+        StringBuilder message = new StringBuilder(template.length() + 32);
+        int argumentIndex = 0;
+        int start = 0;
+        int placeholder;
+        while ((placeholder = template.indexOf("{}", start)) >= 0 && argumentIndex < 2) {
+            message.append(template, start, placeholder);
+            message.append(argumentIndex++ == 0 ? firstArgument : secondArgument);
+            start = placeholder + 2;
+        }
+        message.append(template, start, template.length());
+        return message.toString();
+    }
+}
@@ -0,0 +1,138 @@
+package se.kth.server.log;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *  Logs the records of one category. Records are handed to the log ring and written by the
+ *  drain thread, so logging costs the thread that logs a few stores.
+ *  A disabled level costs one read of the threshold: the message is a template with {} placeholders
+ *  that is only formatted on the drain thread, so nothing is built or allocated for records that are not written.
+ *  With sampling only one of every N enabled records is written.
+ *  Loggers are created with Log.getLogger(category).
+ */
+public final class Logger {
+    private final AtomicLong sampleCounter = new AtomicLong();
+    private final String category;
+    private final LogRing logRing;
+    private volatile int threshold;
+    private volatile int sampleEvery = 1;
+
+    /**
+     *  Creates a logger, called by Log.
+     * @param category (String) Dot separated category, e.g. net.messages
+     * @param logRing (LogRing) The ring records are handed to
+     * @param level (Level) The lowest level that is written
+     */
+    Logger(String category, LogRing logRing, Level level) {
+        this.category = category;
+        this.logRing = logRing;
+        this.threshold = level.ordinal();
+    }
+
+    /**
+     * @return (String) The category of the logger.
+     */
+    public String getCategory() {
+        return category;
+    }
+
+    /**
+     *  Sets which records are written.
+     * @param level (Level) The lowest level that is written
+     * @param sampleEvery (int) Only one of this many enabled records is written, 1 writes all of them
+     */
+    void configure(Level level, int sampleEvery) {
+        this.sampleEvery = Math.max(1, sampleEvery);
+        this.threshold = level.ordinal();
+    }
+
+    /**
+     * @param level (Level) A level
+     * @return (boolean) True if records at the level are written.
+     */
+    public boolean isEnabled(Level level) {
+        return level.ordinal() >= threshold;
+    }
+
+    public boolean isTraceEnabled() {
+        return isEnabled(Level.TRACE);
+    }
+
+    public boolean isDebugEnabled() {
+        return isEnabled(Level.DEBUG);
+    }
+
+    /**
+     *  Logs a record at a level.
+     * @param level (Level) The level of the record
+     * @param template (String) The message, each {} is replaced by the next argument
+     * @param firstArgument (Object) The first argument, or null
+     * @param secondArgument (Object) The second argument, or null
+     */
+    public void log(Level level, String template, Object firstArgument, Object secondArgument) {
+        if (level.ordinal() < threshold) return;
+        int every = sampleEvery;
+        if (every > 1 && sampleCounter.getAndIncrement() % every != 0) return;
+        logRing.offer(level, category, template, firstArgument, secondArgument);
+    }
+
+    public void trace(String template) {
+        log(Level.TRACE, template, null, null);
+    }
+
+    public void trace(String template, Object argument) {
+        log(Level.TRACE, template, argument, null);
+    }
+
+    public void trace(String template, Object firstArgument, Object secondArgument) {
+        log(Level.TRACE, template, firstArgument, secondArgument);
+    }
+
+    public void debug(String template) {
+        log(Level.DEBUG, template, null, null);
+    }
+
+    public void debug(String template, Object argument) {
+        log(Level.DEBUG, template, argument, null);
+    }
+
+    public void debug(String template, Object firstArgument, Object secondArgument) {
+        log(Level.DEBUG, template, firstArgument, secondArgument);
+    }
+
+    public void info(String template) {
+        log(Level.INFO, template, null, null);
+    }
+
+    public void info(String template, Object argument) {
+        log(Level.INFO, template, argument, null);
+    }
+
+    public void info(String template, Object firstArgument, Object secondArgument) {
+        log(Level.INFO, template, firstArgument, secondArgument);
+    }
+
+    public void warn(String template) {
+        log(Level.WARN, template, null, null);
+    }
+
+    public void warn(String template, Object argument) {
+        log(Level.WARN, template, argument, null);
+    }
+
+    public void warn(String template, Object firstArgument, Object secondArgument) {
+        log(Level.WARN, template, firstArgument, secondArgument);
+    }
+
+    public void error(String template) {
+        log(Level.ERROR, template, null, null);
+    }
+
+    public void error(String template, Object argument) {
+        log(Level.ERROR, template, argument, null);
+    }
+
+    public void error(String template, Object firstArgument, Object secondArgument) {
+        log(Level.ERROR, template, firstArgument, secondArgument);
+    }
+}
@@ -0,0 +1,51 @@
+package se.kth.server.metrics;
+
+import java.util.Map;
+
+/**
+ *  The metrics of a server as they are shown over JMX.
+ *  Latencies are from the moment a message is decoded until its response has been written,
+ *  of all messages together and by the type of the message.
+ */
+public interface ServerMetricsMXBean {
+
+    long getAcceptedConnections();
+
+    double getAcceptRate();
+
+    long getActiveConnections();
+
+    long getBytesRead();
+
+    long getBytesWritten();
+
+    double getBytesReadPerSecond();
+
+    double getBytesWrittenPerSecond();
+
+    double getMessagesReceivedPerSecond();
+
+    Map<String, Long> getMessagesReceived();
+
+    Map<String, Long> getMessagesSent();
+
+    Map<String, Long> getGauges();
+
+    long getResponseLatencyCount();
+
+    double getResponseLatencyMeanMicros();
+
+    long getResponseLatencyP50Micros();
+
+    long getResponseLatencyP99Micros();
+
+    long getResponseLatencyP999Micros();
+
+    long getResponseLatencyMaxMicros();
+
+    Map<String, Long> getResponseLatencyCountByType();
+
+    Map<String, Long> getResponseLatencyP99MicrosByType();
+
+    String getReport();
+}
@@ -0,0 +1,156 @@
+package se.kth.server.net;
+
+import se.kth.server.controller.Controller;
+import se.kth.server.metrics.ServerMetrics;
+import se.kth.server.session.SessionTable;
+import se.kth.server.log.Logger;
+import se.kth.server.log.Log;
+import java.io.BufferedOutputStream;
+import java.io.BufferedInputStream;
+import java.io.FilterInputStream;
+import java.io.DataOutputStream;
+import java.io.DataInputStream;
+import java.io.InputStream;
+import se.kth.common.MessageCodec;
+import se.kth.common.MessageType;
+import se.kth.common.Message;
+import java.io.IOException;
+import java.net.Socket;
+
+/**
+ *  Client handler for the blocking server.
+ *  Reads a message, handles it and writes the response, all on the thread of the connection.
+ *  Responses are flushed when no more messages are waiting, the latency of every response is
+ *  recorded when it is flushed.
+ *  When the connection closes without a QUIT the game is parked in the session table for the client to resume.
+ */
+class BlockingClientHandler implements Runnable {
+    private static final Logger LOG = Log.getLogger("net");
+    private static final Logger MESSAGE_LOG = Log.getLogger("net.messages");
+    private final ServerMetrics serverMetrics;
+    private final GameSession gameSession;
+    private final Socket clientSocket;
+    private long[] unflushedReceivedAt = new long[16];
+    private MessageType[] unflushedRequestTypes = new MessageType[16];
+    private int unflushedCount;
+
+    /**
+     *  Makes an instance of a client handler on the client socket.
+     * @param controller The controller for the game operations.
+     * @param serverMetrics The metrics of the server.
+     * @param sessionTable The sessions of the server.
+     * @param clientSocket Connection to client.
+     */
+    BlockingClientHandler(Controller controller, ServerMetrics serverMetrics, SessionTable sessionTable,
+                          Socket clientSocket){
+        this.clientSocket = clientSocket;
+        this.serverMetrics = serverMetrics;
+        gameSession = new GameSession(controller, serverMetrics, sessionTable);
+    }
+
+    /**
+     *  Handles messages until the client quits or the connection is closed.
+     */
+    @Override
+    public void run() {
+        serverMetrics.connectionOpened();
+        try (Socket socket = clientSocket) {
+            CountingInputStream countingInput = new CountingInputStream(socket.getInputStream());
+            DataInputStream input = new DataInputStream(new BufferedInputStream(countingInput));
+            DataOutputStream output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            while (true) {
+                Message receivedMessage = MessageCodec.readFrame(input);
+                long receivedAt = System.nanoTime();
+                serverMetrics.bytesRead(countingInput.takeCount());
+                serverMetrics.messageReceived(receivedMessage.getMessageType());
+                MESSAGE_LOG.debug("Received {}", receivedMessage);
+                if (receivedMessage.getMessageType() == MessageType.QUIT) {
+                    gameSession.quit();
+                    flush(output);
+                    break;
+                }
+                for (Message response : gameSession.handle(receivedMessage)) {
+                    MESSAGE_LOG.debug("Sending {}", response);
+                    byte[] body = MessageCodec.encodeBody(response, gameSession.isBinaryEncoding());
+                    output.writeInt(body.length);
+                    output.write(body);
+                    serverMetrics.messageSent(response.getMessageType());
+                    serverMetrics.bytesWritten(MessageCodec.LENGTH_FIELD_SIZE + body.length);
+                    rememberUnflushed(receivedMessage.getMessageType(), receivedAt);
+                }
+                if (input.available() == 0) flush(output);
+            }
+        }catch (IOException exception){
+            LOG.info("Shutting down connection to {}...", clientSocket.getRemoteSocketAddress());
+        } finally {
+            gameSession.park();
+            serverMetrics.connectionClosed();
+        }
+    }
+
+    /**
+     *  Remembers the type of the message of a response that hasn't been flushed yet and when it was received.
+     * @param requestType The type of the message.
+     * @param receivedAt System.nanoTime() when the message was decoded.
+     */
+    private void rememberUnflushed(MessageType requestType, long receivedAt){
+        if (unflushedCount == unflushedReceivedAt.length){
+            long[] grown = new long[unflushedCount * 2];
+            System.arraycopy(unflushedReceivedAt, 0, grown, 0, unflushedCount);
+            unflushedReceivedAt = grown;
+            MessageType[] grownTypes = new MessageType[unflushedCount * 2];
+            System.arraycopy(unflushedRequestTypes, 0, grownTypes, 0, unflushedCount);
+            unflushedRequestTypes = grownTypes;
+        }
+        unflushedRequestTypes[unflushedCount] = requestType;
+        unflushedReceivedAt[unflushedCount++] = receivedAt;
+    }
+
+    /**
+     *  Flushes the written responses and records their latencies.
+     * @param output The stream to the client.
+     * @throws IOException When the responses can't be written.
+     */
+    private void flush(DataOutputStream output) throws IOException{
+        output.flush();
+        long now = System.nanoTime();
+        for (int i = 0; i < unflushedCount; i++) {
+            serverMetrics.responseWritten(unflushedRequestTypes[i], now - unflushedReceivedAt[i]);
+        }
+        unflushedCount = 0;
+    }
+
+    /**
+     *  Counts the bytes read from the socket, for the metrics.
+     */
+    private static class CountingInputStream extends FilterInputStream {
+        private long count;
+
+        CountingInputStream(InputStream in){
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException{
+            int read = super.read();
+            if (read != -1) count++;
+            return read;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException{
+            int read = super.read(bytes, offset, length);
+            if (read > 0) count += read;
+            return read;
+        }
+
+        /**
+         * @return The bytes read since the last call.
+         */
+        long takeCount(){
+            long taken = count;
+            count = 0;
+            return taken;
+        }
+    }
+}
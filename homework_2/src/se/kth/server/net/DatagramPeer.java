@@ -0,0 +1,205 @@
+package se.kth.server.net;
+
+import se.kth.server.metrics.ServerMetrics;
+import se.kth.server.log.Logger;
+import se.kth.server.log.Log;
+import se.kth.common.MessageType;
+import se.kth.common.MessageCodec;
+import se.kth.common.Message;
+import java.net.ProtocolException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ *  One conversation of a client over datagrams.
+ *  Requests are handled in order on the conversation's serial executor, like the messages of a connection.
+ *  The client sends one request at a time and repeats it until the response arrives, so only the
+ *  response to the last request is kept. A repeated request is answered with it again, without
+ *  touching the game, and requests older than the last are dropped.
+ *  Responses go to the address of the last request, so a client whose address changes keeps its game.
+ *  A response larger than its request is only sent to an address that has shown it receives the datagrams
+ *  sent to it, so the server can't be used to flood an address that a request was forged to come from.
+ *  Any other address gets a PING with a random cookie instead, the client sends the request again with a
+ *  PONG carrying the cookie, which confirms the address, and is answered from the last response.
+ *  The PING is at most three times the size of the request, like QUIC before it has validated an address.
+ */
+class DatagramPeer {
+    private static final Logger LOG = Log.getLogger("net");
+    private static final Logger MESSAGE_LOG = Log.getLogger("net.messages");
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static final long COOKIE_MASK = (1L << 48) - 1;
+    private static final int MAX_CHALLENGE_AMPLIFICATION = 3;
+    private final DatagramTransport datagramTransport;
+    private final ServerMetrics serverMetrics;
+    private final SerialExecutor sessionExecutor;
+    private final GameSession gameSession;
+    private final long conversationId;
+    private volatile long lastActivity;
+    private int lastSequence;
+    private ByteBuffer lastResponse;
+    private SocketAddress confirmedAddress;
+    private SocketAddress challengedAddress;
+    private String cookie;
+
+    /**
+     *  Creates a conversation without any handled request.
+     * @param conversationId The id the client chose for the conversation.
+     * @param datagramTransport The transport that sends the responses.
+     * @param gameSession The game of the client.
+     * @param sessionExecutor The executor that handles the requests in order.
+     * @param serverMetrics The metrics of the server.
+     */
+    DatagramPeer(long conversationId, DatagramTransport datagramTransport, GameSession gameSession,
+                 SerialExecutor sessionExecutor, ServerMetrics serverMetrics){
+        this.conversationId = conversationId;
+        this.datagramTransport = datagramTransport;
+        this.gameSession = gameSession;
+        this.sessionExecutor = sessionExecutor;
+        this.serverMetrics = serverMetrics;
+        lastActivity = System.nanoTime();
+    }
+
+    /**
+     * @param now System.nanoTime() of the check.
+     * @param idleTimeoutNanos How long a conversation may be silent.
+     * @return True if the client hasn't sent anything for the idle timeout.
+     */
+    boolean isIdle(long now, long idleTimeoutNanos){
+        return now - lastActivity >= idleTimeoutNanos;
+    }
+
+    /**
+     *  Queues a request on the conversation, called by the transport for every datagram.
+     * @param address The address the datagram came from.
+     * @param sequence The sequence number of the request.
+     * @param frames The frames of the request.
+     * @param receivedAt System.nanoTime() when the datagram was received.
+     */
+    void receive(SocketAddress address, int sequence, ByteBuffer frames, long receivedAt){
+        lastActivity = receivedAt;
+        sessionExecutor.execute(() -> handleRequest(address, sequence, frames, receivedAt));
+    }
+
+    /**
+     *  Parks the game of the conversation, after the requests that are already queued.
+     */
+    void close(){
+        sessionExecutor.execute(gameSession::park);
+    }
+
+    /**
+     *  Handles a request, or answers it from the last response if it has been handled already.
+     *  A QUIT removes the game, the response to it is empty so the client knows it has arrived.
+     * @param address The address the datagram came from.
+     * @param sequence The sequence number of the request.
+     * @param frames The frames of the request.
+     * @param receivedAt System.nanoTime() when the datagram was received.
+     */
+    private void handleRequest(SocketAddress address, int sequence, ByteBuffer frames, long receivedAt){
+        int requestSize = MessageCodec.DATAGRAM_HEADER_SIZE + frames.remaining();
+        if (lastResponse != null && sequence == lastSequence){
+            datagramTransport.duplicateReceived();
+            if (!address.equals(confirmedAddress)){
+                try {
+                    confirmAddress(address, MessageCodec.decodeFrames(frames));
+                } catch (ProtocolException exception) {
+                    LOG.debug("Dropping datagram from {}: {}", address, exception.getMessage());
+                    return;
+                }
+            }
+            respond(address, requestSize);
+            return;
+        }
+        if (lastResponse != null && sequence - lastSequence < 0) return;
+        List<Message> requests;
+        try {
+            requests = MessageCodec.decodeFrames(frames);
+        } catch (ProtocolException exception) {
+            LOG.debug("Dropping datagram from {}: {}", address, exception.getMessage());
+            return;
+        }
+        confirmAddress(address, requests);
+        List<Message> responses = new ArrayList<>();
+        List<MessageType> answeredTypes = new ArrayList<>(requests.size());
+        for (Message request : requests) {
+            MESSAGE_LOG.debug("Received {}", request);
+            serverMetrics.messageReceived(request.getMessageType());
+            if (request.getMessageType() == MessageType.QUIT){
+                gameSession.quit();
+            } else {
+                List<Message> requestResponses = gameSession.handle(request);
+                if (!requestResponses.isEmpty()) answeredTypes.add(request.getMessageType());
+                responses.addAll(requestResponses);
+            }
+        }
+        for (Message response : responses) {
+            MESSAGE_LOG.debug("Sending {}", response);
+            serverMetrics.messageSent(response.getMessageType());
+        }
+        lastSequence = sequence;
+        try {
+            lastResponse = MessageCodec.encodeDatagram(conversationId, sequence, responses, gameSession.isBinaryEncoding());
+        } catch (ProtocolException exception) {
+            LOG.warn("Dropping the responses to {}: {}", address, exception.getMessage());
+            lastResponse = ByteBuffer.allocate(MessageCodec.DATAGRAM_HEADER_SIZE)
+                    .putLong(conversationId).putInt(sequence).flip();
+        }
+        respond(address, requestSize);
+        long latency = System.nanoTime() - receivedAt;
+        for (MessageType answeredType : answeredTypes) {
+            serverMetrics.responseWritten(answeredType, latency);
+        }
+    }
+
+    /**
+     *  Confirms the address if the request has a PONG with the cookie that was sent to it.
+     * @param address The address the datagram came from.
+     * @param requests The messages of the request.
+     */
+    private void confirmAddress(SocketAddress address, List<Message> requests){
+        if (cookie == null || !address.equals(challengedAddress)) return;
+        for (Message request : requests) {
+            if (request.getMessageType() == MessageType.PONG && cookie.equals(request.getBody())){
+                confirmedAddress = address;
+                challengedAddress = null;
+                cookie = null;
+                return;
+            }
+        }
+    }
+
+    /**
+     *  Sends the last response, or a PING with a cookie if the response is larger than its request
+     *  and the address hasn't been confirmed. The cookie stays the same until another address is
+     *  challenged, so a request repeated before the PING arrived doesn't make the cookie the client has stale.
+     *  Nothing is sent if the PING is more than three times the size of the request.
+     * @param address The address the datagram came from.
+     * @param requestSize The size of the datagram of the request.
+     */
+    private void respond(SocketAddress address, int requestSize){
+        if (address.equals(confirmedAddress) || lastResponse.remaining() <= requestSize){
+            datagramTransport.send(lastResponse.duplicate(), address);
+            return;
+        }
+        if (cookie == null || !address.equals(challengedAddress)){
+            challengedAddress = address;
+            cookie = Long.toHexString(RANDOM.nextLong() & COOKIE_MASK);
+        }
+        ByteBuffer challenge;
+        try {
+            challenge = MessageCodec.encodeDatagram(conversationId, lastSequence,
+                    List.of(new Message(MessageType.PING, cookie)), false);
+        } catch (ProtocolException exception) {
+            return;
+        }
+        if (challenge.remaining() > MAX_CHALLENGE_AMPLIFICATION * requestSize){
+            LOG.debug("Dropping datagram from {}, it is too small to be answered before its address is confirmed.", address);
+            return;
+        }
+        datagramTransport.challengeSent();
+        datagramTransport.send(challenge, address);
+    }
+}
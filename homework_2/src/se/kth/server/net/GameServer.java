@@ -0,0 +1,52 @@
+package se.kth.server.net;
+
+/**
+ *  A server engine that accepts hangman clients.
+ *  parsePort(String)   -   Sets the port if it is valid.
+ *  setReusePort(bool)  -   Lets several processes listen on the same port.
+ *  setSessionTtl(ms)   -   Sets how long the game of a closed connection can be resumed.
+ *  setMaxParkedSessions(n) -   Caps the games kept for closed connections.
+ *  setClusterSecret(s) -   Lets a cluster router that knows the secret choose session tokens.
+ *  serve()             -   Starts the server, does not return while it is running.
+ */
+public interface GameServer {
+
+    /**
+     * Parses a given port. If not valid the default port will be used.
+     * @param port The port to be used for the server.
+     */
+    void parsePort(String port);
+
+    /**
+     *  Binds the listening socket with SO_REUSEPORT, so several server processes on the same host can
+     *  listen on the same port and the kernel spreads the incoming connections between them.
+     * @param reusePort True to bind with SO_REUSEPORT
+     */
+    void setReusePort(boolean reusePort);
+
+    /**
+     *  Sets how long the game of a connection that closed without quitting is kept, so the client
+     *  can reconnect and resume it with its session token.
+     * @param sessionTtlMillis Milliseconds the game is kept, 0 doesn't keep it
+     */
+    void setSessionTtl(long sessionTtlMillis);
+
+    /**
+     *  Caps the number of games kept for connections that closed without quitting.
+     *  The games are kept off the heap in a few dozen bytes each.
+     * @param maxParkedSessions The most games that are kept
+     */
+    void setMaxParkedSessions(int maxParkedSessions);
+
+    /**
+     *  Sets the secret a cluster router presents in its HELLO to choose the tokens of new sessions.
+     *  Without it no connection can choose a token.
+     * @param clusterSecret The secret shared with the routers
+     */
+    void setClusterSecret(String clusterSecret);
+
+    /**
+     *  Starts the server.
+     */
+    void serve();
+}
@@ -0,0 +1,270 @@
+package se.kth.server.net;
+
+import se.kth.server.controller.Controller;
+import se.kth.server.metrics.ServerMetrics;
+import se.kth.server.session.SessionTable;
+import se.kth.server.session.Session;
+import se.kth.common.MessageCodec;
+import se.kth.common.GameStateDelta;
+import se.kth.common.MessageType;
+import se.kth.common.GameState;
+import se.kth.common.Message;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ *  The game of one client, shared by the server engines.
+ *  It is not thread safe, every engine makes sure only one thread handles a session at a time.
+ *  The game itself is kept in a session of the session table, the first START creates it and hands
+ *  the client its token. A client that reconnects presents the token with RESUME and continues the game.
+ *  Another connection may take the session over, so the game is only touched while holding its monitor.
+ */
+class GameSession {
+    private final Controller controller;
+    private final ServerMetrics serverMetrics;
+    private final SessionTable sessionTable;
+    private Session session;
+    private String requestedToken;
+    private boolean binaryEncoding;
+    private volatile boolean deltaResponses;
+
+    /**
+     *  Creates a session without a started game.
+     * @param controller The controller for the game operations.
+     * @param serverMetrics The metrics of the server, reported on STATS.
+     * @param sessionTable The sessions of the server, where the game is kept.
+     */
+    GameSession(Controller controller, ServerMetrics serverMetrics, SessionTable sessionTable){
+        this.controller = controller;
+        this.serverMetrics = serverMetrics;
+        this.sessionTable = sessionTable;
+    }
+
+    /**
+     * @return True if the client asked for game states in binary form.
+     */
+    boolean isBinaryEncoding(){
+        return binaryEncoding;
+    }
+
+    /**
+     * @return True if the client gets deltas instead of full game states after guesses.
+     */
+    boolean isDeltaResponses(){
+        return deltaResponses;
+    }
+
+    /**
+     *  Will do the game operation the message asks for.
+     *  The response carries a copy of the game state, the game state may change before it is written.
+     * @param receivedMessage The message from the client.
+     * @return The responses to the client in the order they are sent, empty if the message has no response.
+     */
+    List<Message> handle(Message receivedMessage) {
+        return handle(receivedMessage.getMessageType(), String.valueOf(receivedMessage.getBody()),
+                receivedMessage.getCorrelationId());
+    }
+
+    /**
+     *  Will do the game operation a message decoded in place asks for.
+     *  The body is only read during the call, a guess is read straight from it without making a string.
+     *  Every response carries the correlation id of the message, so the client can match them up.
+     * @param messageType The type of the message from the client.
+     * @param body The body of the message from the client.
+     * @param correlationId The correlation id of the message, 0 if it has none.
+     * @return The responses to the client in the order they are sent, empty if the message has no response.
+     */
+    List<Message> handle(MessageType messageType, CharSequence body, int correlationId) {
+        List<Message> responses = respond(messageType, body);
+        if (correlationId == 0) return responses;
+        List<Message> correlatedResponses = new ArrayList<>(responses.size());
+        for (Message response : responses) {
+            correlatedResponses.add(response.withCorrelationId(correlationId));
+        }
+        return correlatedResponses;
+    }
+
+    /**
+     * @param messageType The type of the message from the client.
+     * @param body The body of the message from the client.
+     * @return The responses to the message, without correlation id.
+     */
+    private List<Message> respond(MessageType messageType, CharSequence body) {
+        switch (messageType){
+            case HELLO:
+                return List.of(negotiateFeatures(body.toString()));
+            case PING:
+                return List.of(new Message(MessageType.PONG, body.toString()));
+            case STATS:
+                return List.of(new Message(MessageType.RESPONSE_STATS, serverMetrics.getReport()));
+            case GUESS:
+                return List.of(guess(body));
+            case GUESS_BATCH:
+                return List.of(guessBatch(body));
+            case START:
+                return start(body.toString());
+            case RESUME:
+                return resume(body.toString());
+            default:
+                return List.of();
+        }
+    }
+
+    /**
+     *  Keeps the game in the session table for the client to resume, called when the connection closes.
+     */
+    void park(){
+        if (session != null){
+            sessionTable.park(session, this);
+            session = null;
+        }
+    }
+
+    /**
+     *  Removes the game from the session table, called when the client quits.
+     */
+    void quit(){
+        if (session != null){
+            sessionTable.remove(session, this);
+            session = null;
+        }
+    }
+
+    /**
+     *  Starts a new game, the score is kept if a game has been started before.
+     *  The first game creates the session and its token is sent before the game.
+     * @param wordRequest The difficulty or the length of the word the client asks for, empty for any word.
+     * @return The responses to the client.
+     */
+    private List<Message> start(String wordRequest){
+        if (session != null){
+            synchronized (session){
+                if (session.isOwnedBy(this)){
+                    session.setGameState(controller.newGame(session.getGameState(), wordRequest));
+                    return List.of(new Message(MessageType.RESPONSE_START, session.getGameState().copy()));
+                }
+            }
+        }
+        session = sessionTable.create(this, controller.startGame(wordRequest), requestedToken);
+        requestedToken = null;
+        GameState gameState;
+        synchronized (session){
+            gameState = session.getGameState().copy();
+        }
+        return List.of(new Message(MessageType.RESPONSE_SESSION, session.getToken()),
+                new Message(MessageType.RESPONSE_START, gameState));
+    }
+
+    /**
+     *  Takes over the session of the token, the client gets its token back and the current game.
+     *  A session the connection had before is parked.
+     * @param token The token of the session.
+     * @return The responses to the client, an empty token if the session couldn't be resumed.
+     */
+    private List<Message> resume(String token){
+        Session resumed = sessionTable.resume(token, this);
+        if (resumed == null){
+            return List.of(new Message(MessageType.RESPONSE_SESSION, ""));
+        }
+        if (session != null && session != resumed){
+            sessionTable.park(session, this);
+        }
+        session = resumed;
+        GameState gameState;
+        synchronized (session){
+            if (!session.isOwnedBy(this)){
+                session = null;
+                return List.of(new Message(MessageType.RESPONSE_SESSION, ""));
+            }
+            gameState = session.getGameState().copy();
+        }
+        return List.of(new Message(MessageType.RESPONSE_SESSION, token),
+                new Message(MessageType.RESPONSE_START, gameState));
+    }
+
+    /**
+     *  Makes a guess in the current game.
+     *  If the client asked for deltas and the guess didn't end the word, only the changes are sent.
+     * @param guess The guessed character or word.
+     * @return The response to the client.
+     */
+    private Message guess(CharSequence guess){
+        if (session == null){
+            return new Message(MessageType.RESPONSE_GUESS, "No game started");
+        }
+        synchronized (session){
+            if (!session.isOwnedBy(this)){
+                return new Message(MessageType.RESPONSE_GUESS, "The game has been resumed on another connection");
+            }
+            GameState previousGameState = session.getGameState();
+            if (!deltaResponses){
+                session.setGameState(controller.guess(guess, previousGameState));
+                return new Message(MessageType.RESPONSE_GUESS, session.getGameState().copy());
+            }
+            int previousScore = previousGameState.getScore();
+            int previousRemainingAttempts = previousGameState.getRemainingAttempts();
+            char[] previousSecretWordState = previousGameState.getSecretWordState().clone();
+            GameState currentGameState = controller.guess(guess, previousGameState);
+            session.setGameState(currentGameState);
+            if (currentGameState != previousGameState){
+                return new Message(MessageType.RESPONSE_GUESS, currentGameState.copy());
+            }
+            GameStateDelta delta = GameStateDelta.between(previousScore, previousRemainingAttempts,
+                    previousSecretWordState, currentGameState);
+            return new Message(MessageType.RESPONSE_GUESS_DELTA, delta);
+        }
+    }
+
+    /**
+     *  Makes several guesses in the current game, in one go.
+     *  A delta only reveals one character, so the game state after the guesses is always sent in full.
+     * @param guesses The guessed characters and words, separated by commas.
+     * @return The response to the client.
+     */
+    private Message guessBatch(CharSequence guesses){
+        if (session == null){
+            return new Message(MessageType.RESPONSE_GUESS, "No game started");
+        }
+        synchronized (session){
+            if (!session.isOwnedBy(this)){
+                return new Message(MessageType.RESPONSE_GUESS, "The game has been resumed on another connection");
+            }
+            session.setGameState(controller.guessBatch(guesses, session.getGameState()));
+            return new Message(MessageType.RESPONSE_GUESS, session.getGameState().copy());
+        }
+    }
+
+    /**
+     *  Turns on the features the client asks for that the server supports.
+     *  Deltas are only sent in binary form, so they are turned on together with the binary feature.
+     *  A session id asked for is used as the token of the next new session, it isn't listed in the response.
+     *  It is only taken from a cluster router, which presents the secret of the cluster in the same HELLO.
+     * @param requestedFeatures Comma separated list of features.
+     * @return The response listing the features that are used from now on.
+     */
+    private Message negotiateFeatures(String requestedFeatures){
+        boolean deltaRequested = false;
+        String sessionId = null;
+        String secret = null;
+        for (String feature : requestedFeatures.split(",")) {
+            if (feature.trim().equals(MessageCodec.BINARY_FEATURE)){
+                binaryEncoding = true;
+            } else if (feature.trim().equals(MessageCodec.DELTA_FEATURE)){
+                deltaRequested = true;
+            } else if (feature.trim().startsWith(MessageCodec.SESSION_FEATURE)){
+                sessionId = feature.trim().substring(MessageCodec.SESSION_FEATURE.length());
+            } else if (feature.trim().startsWith(MessageCodec.SECRET_FEATURE)){
+                secret = feature.trim().substring(MessageCodec.SECRET_FEATURE.length());
+            }
+        }
+        if (sessionId != null && sessionTable.isClusterSecret(secret)){
+            requestedToken = sessionId;
+        }
+        deltaResponses = binaryEncoding && deltaRequested;
+        String acceptedFeatures = binaryEncoding ? MessageCodec.BINARY_FEATURE : "";
+        if (deltaResponses){
+            acceptedFeatures += "," + MessageCodec.DELTA_FEATURE;
+        }
+        return new Message(MessageType.RESPONSE_HELLO, acceptedFeatures);
+    }
+}
@@ -0,0 +1,180 @@
+package se.kth.server.net;
+
+import java.nio.channels.GatheringByteChannel;
+import se.kth.server.metrics.ServerMetrics;
+import se.kth.common.BufferPool;
+import se.kth.common.MessageType;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ *  The bytes waiting to be written to one connection.
+ *  Frames are packed into pooled buffers and all of them are flushed with a single gathering write.
+ *  Bytes the channel did not accept stay in the buffer until a later flush.
+ *  The end of every response frame is remembered with the type and the time of the message it answers,
+ *  so the latency of the response is recorded once its last byte has been written.
+ *  It is only used by the event loop that owns the connection.
+ */
+class OutboundBuffer {
+    private final ArrayDeque<ByteBuffer> chunks = new ArrayDeque<>();
+    private final byte[] lengthField = new byte[Integer.BYTES];
+    private final BufferPool bufferPool;
+    private final ServerMetrics serverMetrics;
+    private ByteBuffer[] writeBuffers = new ByteBuffer[4];
+    private long[] frameEnds = new long[8];
+    private long[] frameReceivedAt = new long[8];
+    private MessageType[] frameRequestTypes = new MessageType[8];
+    private int firstFrame;
+    private int frameCount;
+    private long appendedBytes;
+    private long writtenBytes;
+    private long pendingBytes;
+
+    /**
+     *  Creates an empty outbound buffer.
+     * @param bufferPool (BufferPool) The pool the buffers are taken from
+     * @param serverMetrics (ServerMetrics) The metrics the written bytes and latencies are recorded in
+     */
+    OutboundBuffer(BufferPool bufferPool, ServerMetrics serverMetrics) {
+        this.bufferPool = bufferPool;
+        this.serverMetrics = serverMetrics;
+    }
+
+    /**
+     * @return (long) Number of bytes waiting to be written.
+     */
+    long getPendingBytes() {
+        return pendingBytes;
+    }
+
+    /**
+     * @return (boolean) True if nothing is waiting to be written.
+     */
+    boolean isEmpty() {
+        return pendingBytes == 0;
+    }
+
+    /**
+     *  Appends a frame, a length prefix followed by the body.
+     * @param body (byte[]) The body of the frame
+     * @param requestType (MessageType) The type of the message it responds to, null if none
+     * @param receivedAt (long) System.nanoTime() when the message it responds to was decoded, 0 if none
+     */
+    void appendFrame(byte[] body, MessageType requestType, long receivedAt) {
+        for (int i = 0; i < Integer.BYTES; i++) {
+            lengthField[i] = (byte) (body.length >>> (Byte.SIZE * (Integer.BYTES - 1 - i)));
+        }
+        append(lengthField, Integer.BYTES);
+        append(body, body.length);
+        if (receivedAt != 0) rememberFrame(appendedBytes, requestType, receivedAt);
+    }
+
+    /**
+     *  Writes as much as the channel accepts with one gathering write.
+     *  Buffers that have been written completely go back to the pool.
+     * @param channel (GatheringByteChannel) The channel to write to
+     * @return (boolean) True if everything was written
+     * @throws IOException When something is wrong on the channel while writing
+     */
+    boolean flushTo(GatheringByteChannel channel) throws IOException {
+        if (pendingBytes == 0) return true;
+        int count = chunks.size();
+        if (writeBuffers.length < count) writeBuffers = new ByteBuffer[Math.max(count, writeBuffers.length * 2)];
+        int i = 0;
+        for (ByteBuffer chunk : chunks) {
+            writeBuffers[i++] = chunk;
+        }
+        long written = channel.write(writeBuffers, 0, count);
+        pendingBytes -= written;
+        writtenBytes += written;
+        serverMetrics.bytesWritten(written);
+        for (int j = 0; j < count; j++) {
+            writeBuffers[j] = null;
+        }
+        while (!chunks.isEmpty() && !chunks.peekFirst().hasRemaining()) {
+            bufferPool.release(chunks.pollFirst());
+        }
+        recordWrittenFrames();
+        return pendingBytes == 0;
+    }
+
+    /**
+     *  Remembers where a response frame ends, the ends are kept in a ring that grows when it is full.
+     * @param frameEnd (long) Number of bytes appended up to the end of the frame
+     * @param requestType (MessageType) The type of the message it responds to
+     * @param receivedAt (long) System.nanoTime() when the message it responds to was decoded
+     */
+    private void rememberFrame(long frameEnd, MessageType requestType, long receivedAt) {
+        if (frameCount == frameEnds.length) {
+            long[] ends = new long[frameEnds.length * 2];
+            long[] receivedTimes = new long[frameEnds.length * 2];
+            MessageType[] requestTypes = new MessageType[frameEnds.length * 2];
+            for (int i = 0; i < frameCount; i++) {
+                ends[i] = frameEnds[(firstFrame + i) % frameEnds.length];
+                receivedTimes[i] = frameReceivedAt[(firstFrame + i) % frameEnds.length];
+                requestTypes[i] = frameRequestTypes[(firstFrame + i) % frameEnds.length];
+            }
+            frameEnds = ends;
+            frameReceivedAt = receivedTimes;
+            frameRequestTypes = requestTypes;
+            firstFrame = 0;
+        }
+        int last = (firstFrame + frameCount) % frameEnds.length;
+        frameEnds[last] = frameEnd;
+        frameReceivedAt[last] = receivedAt;
+        frameRequestTypes[last] = requestType;
+        frameCount++;
+    }
+
+    /**
+     *  Records the latency of every response frame that has been written completely.
+     */
+    private void recordWrittenFrames() {
+        if (frameCount == 0 || frameEnds[firstFrame] > writtenBytes) return;
+        long now = System.nanoTime();
+        while (frameCount > 0 && frameEnds[firstFrame] <= writtenBytes) {
+            serverMetrics.responseWritten(frameRequestTypes[firstFrame], now - frameReceivedAt[firstFrame]);
+            firstFrame = (firstFrame + 1) % frameEnds.length;
+            frameCount--;
+        }
+    }
+
+    /**
+     *  Gives all buffers back to the pool and drops the bytes that were not written.
+     */
+    void release() {
+        while (!chunks.isEmpty()) {
+            bufferPool.release(chunks.pollFirst());
+        }
+        pendingBytes = 0;
+        frameCount = 0;
+    }
+
+    /**
+     *  Copies bytes to the end of the last buffer, taking new buffers from the pool when it is full.
+     *  Every buffer is kept ready for reading, its limit marks where the next bytes are copied.
+     * @param bytes (byte[]) The bytes to copy
+     * @param length (int) Number of bytes to copy
+     */
+    private void append(byte[] bytes, int length) {
+        int offset = 0;
+        while (offset < length) {
+            ByteBuffer tail = chunks.peekLast();
+            if (tail == null || tail.limit() == tail.capacity()) {
+                tail = bufferPool.acquire();
+                tail.limit(0);
+                chunks.addLast(tail);
+            }
+            int writeIndex = tail.limit();
+            int bytesToCopy = Math.min(length - offset, tail.capacity() - writeIndex);
+            ByteBuffer writer = tail.duplicate();
+            writer.limit(writeIndex + bytesToCopy).position(writeIndex);
+            writer.put(bytes, offset, bytesToCopy);
+            tail.limit(writeIndex + bytesToCopy);
+            offset += bytesToCopy;
+        }
+        pendingBytes += length;
+        appendedBytes += length;
+    }
+}
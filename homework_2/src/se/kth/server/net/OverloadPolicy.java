@@ -0,0 +1,19 @@
+package se.kth.server.net;
+
+/**
+ *  What the server does with a client whose unwritten responses stay above the high watermark for too long.
+ */
+public enum OverloadPolicy {
+
+    /**
+     *  Closes the connection to the client.
+     */
+    DISCONNECT,
+
+    /**
+     *  Drops the responses that haven't started to be written and keeps the connection, if that brings the
+     *  client down to its low watermark. Otherwise, or if the client gets deltas, the connection is closed.
+     */
+    SHED
+
+}
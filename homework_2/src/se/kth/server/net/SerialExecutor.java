@@ -0,0 +1,59 @@
+package se.kth.server.net;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import se.kth.server.log.Logger;
+import se.kth.server.log.Log;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.Executor;
+
+/**
+ *  Runs the tasks of one session one at a time and in the order they were submitted.
+ *  The session is scheduled on the underlying executor at most once, no matter how many
+ *  tasks are submitted while it is queued or running, so the tasks never need locks.
+ *  After a batch of tasks the session gives its worker back to let other sessions run.
+ */
+class SerialExecutor implements Executor {
+    private static final Logger LOG = Log.getLogger("net");
+    private static final int BATCH_SIZE = 64;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingTasks = new AtomicInteger();
+    private final Runnable runTasks = this::runTasks;
+    private final Executor executor;
+
+    /**
+     *  Creates a serial executor on top of a worker pool.
+     * @param executor (Executor) The pool that runs the tasks
+     */
+    SerialExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     *  Queues a task, the session is scheduled if it isn't already.
+     * @param task (Runnable) The task to run
+     */
+    @Override
+    public void execute(Runnable task) {
+        tasks.add(task);
+        if (pendingTasks.getAndIncrement() == 0) {
+            executor.execute(runTasks);
+        }
+    }
+
+    /**
+     *  Runs queued tasks until the queue is empty or a batch has been run.
+     *  If tasks remain the session is scheduled again.
+     */
+    private void runTasks() {
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            Runnable task = tasks.poll();
+            try {
+                task.run();
+            } catch (Throwable err) {
+                LOG.error("Something went wrong: {}", err);
+            }
+            if (pendingTasks.decrementAndGet() == 0) return;
+        }
+        executor.execute(runTasks);
+    }
+}
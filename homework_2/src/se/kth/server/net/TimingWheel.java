@@ -0,0 +1,148 @@
+package se.kth.server.net;
+
+import java.util.ArrayList;
+
+/**
+ *  A hashed timing wheel for timeouts that are scheduled, cancelled and expired in constant time.
+ *  Time is cut into ticks and every tick hashes to one slot of the wheel. A timeout further away
+ *  than one turn of the wheel waits the extra turns in its slot.
+ *  It is not thread safe, it is only used by the event loop that owns it.
+ *  schedule(Timeout, long)     -   Schedules or reschedules a timeout.
+ *  cancel(Timeout)             -   Removes a timeout from the wheel.
+ *  advance(long)               -   Runs the timeouts of every tick that has passed.
+ */
+class TimingWheel {
+    private final ArrayList<Timeout> expired = new ArrayList<>();
+    private final Timeout[] slots;
+    private final long tickNanos;
+    private final int mask;
+    private long currentTick;
+    private long nextTickTime;
+    private int scheduledCount;
+
+    /**
+     *  A timeout in the wheel, it can be scheduled again after it has expired or been cancelled.
+     */
+    static class Timeout {
+        private final Runnable task;
+        private Timeout previous;
+        private Timeout next;
+        private long remainingRounds;
+        private int slot = -1;
+
+        /**
+         *  Creates a timeout that isn't scheduled.
+         * @param task (Runnable) What to run when the timeout expires
+         */
+        Timeout(Runnable task) {
+            this.task = task;
+        }
+
+        /**
+         * @return (boolean) True while the timeout is in the wheel.
+         */
+        boolean isScheduled() {
+            return slot >= 0;
+        }
+    }
+
+    /**
+     *  Creates a wheel that starts ticking now.
+     * @param tickNanos (long) Length of a tick, timeouts expire at most one tick late
+     * @param slotCount (int) Number of slots, rounded up to a power of two
+     */
+    TimingWheel(long tickNanos, int slotCount) {
+        this.tickNanos = tickNanos;
+        int size = Integer.highestOneBit(Math.max(1, slotCount - 1)) << 1;
+        slots = new Timeout[size];
+        mask = size - 1;
+        nextTickTime = System.nanoTime() + tickNanos;
+    }
+
+    /**
+     * @return (boolean) True if no timeout is scheduled.
+     */
+    boolean isEmpty() {
+        return scheduledCount == 0;
+    }
+
+    /**
+     * @param now (long) The current time from System.nanoTime()
+     * @return (long) Nanoseconds until the next tick.
+     */
+    long nanosUntilNextTick(long now) {
+        return Math.max(0, nextTickTime - now);
+    }
+
+    /**
+     *  Schedules a timeout, moving it if it was already scheduled.
+     * @param timeout (Timeout) The timeout
+     * @param delayNanos (long) Time until it expires
+     */
+    void schedule(Timeout timeout, long delayNanos) {
+        cancel(timeout);
+        long ticks = Math.max(1, (delayNanos + tickNanos - 1) / tickNanos);
+        long deadlineTick = currentTick + ticks;
+        timeout.remainingRounds = (ticks - 1) / slots.length;
+        timeout.slot = (int) (deadlineTick & mask);
+        timeout.previous = null;
+        timeout.next = slots[timeout.slot];
+        if (timeout.next != null) timeout.next.previous = timeout;
+        slots[timeout.slot] = timeout;
+        scheduledCount++;
+    }
+
+    /**
+     *  Removes a timeout from the wheel, nothing happens if it isn't scheduled.
+     * @param timeout (Timeout) The timeout
+     */
+    void cancel(Timeout timeout) {
+        if (!timeout.isScheduled()) return;
+        if (timeout.previous != null) {
+            timeout.previous.next = timeout.next;
+        } else {
+            slots[timeout.slot] = timeout.next;
+        }
+        if (timeout.next != null) timeout.next.previous = timeout.previous;
+        timeout.previous = null;
+        timeout.next = null;
+        timeout.slot = -1;
+        scheduledCount--;
+    }
+
+    /**
+     *  Runs the timeouts of every tick that has passed. A timeout may schedule itself again from its task.
+     * @param now (long) The current time from System.nanoTime()
+     */
+    void advance(long now) {
+        while (now - nextTickTime >= 0) {
+            currentTick++;
+            nextTickTime += tickNanos;
+            expireSlot((int) (currentTick & mask));
+        }
+    }
+
+    /**
+     *  Runs the timeouts in a slot that are in their last round, the others wait one more round.
+     *  The expired timeouts are taken out of the wheel before any task runs,
+     *  so the tasks are free to schedule and cancel timeouts.
+     * @param slot (int) The slot of the current tick
+     */
+    private void expireSlot(int slot) {
+        Timeout timeout = slots[slot];
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            if (timeout.remainingRounds == 0) {
+                cancel(timeout);
+                expired.add(timeout);
+            } else {
+                timeout.remainingRounds--;
+            }
+            timeout = next;
+        }
+        for (int i = 0; i < expired.size(); i++) {
+            expired.get(i).task.run();
+        }
+        expired.clear();
+    }
+}
@@ -0,0 +1,79 @@
+package se.kth.server.session;
+
+import se.kth.common.GameState;
+
+/**
+ *  The game of one player that is owned by a connection, kept in the session table under a token
+ *  so it outlives the connection. When the connection closes the game is parked off the heap,
+ *  a session object only exists again when a connection resumes it.
+ *  A connection that resumes the session while another still owns it takes it over,
+ *  the old connection then no longer owns it.
+ *  The game state and the owner are only read and changed while holding the monitor of the session.
+ *  getToken()          -   The token the player presents to resume the session.
+ *  getGameState()      -   The game of the session.
+ *  isOwnedBy(owner)    -   Checks if the connection still owns the session.
+ */
+public class Session {
+    private final String token;
+    private final long tokenHigh;
+    private final long tokenLow;
+    private GameState gameState;
+    private Object owner;
+
+    /**
+     *  Creates a session owned by a connection.
+     * @param token (String) The token of the session
+     * @param tokenHigh (long) High half of the token
+     * @param tokenLow (long) Low half of the token
+     * @param owner (Object) The game session of the connection
+     * @param gameState (GameState) The game
+     */
+    Session(String token, long tokenHigh, long tokenLow, Object owner, GameState gameState) {
+        this.token = token;
+        this.tokenHigh = tokenHigh;
+        this.tokenLow = tokenLow;
+        this.owner = owner;
+        this.gameState = gameState;
+    }
+
+    /**
+     * @return (String) The token the player presents to resume the session.
+     */
+    public String getToken() {
+        return token;
+    }
+
+    /**
+     * @return (GameState) The game of the session.
+     */
+    public GameState getGameState() {
+        return gameState;
+    }
+
+    /**
+     * @param gameState (GameState) The new game of the session
+     */
+    public void setGameState(GameState gameState) {
+        this.gameState = gameState;
+    }
+
+    /**
+     * @param owner (Object) The game session of a connection
+     * @return (boolean) True if the connection owns the session.
+     */
+    public boolean isOwnedBy(Object owner) {
+        return this.owner == owner;
+    }
+
+    void setOwner(Object owner) {
+        this.owner = owner;
+    }
+
+    long getTokenHigh() {
+        return tokenHigh;
+    }
+
+    long getTokenLow() {
+        return tokenLow;
+    }
+}
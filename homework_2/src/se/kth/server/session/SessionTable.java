@@ -0,0 +1,268 @@
+package se.kth.server.session;
+
+import se.kth.common.GameState;
+import se.kth.server.controller.Controller;
+import se.kth.server.log.Logger;
+import se.kth.server.log.Log;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *  The sessions of a server by their token, so a player who loses the connection can resume the game
+ *  on a new connection. Sessions owned by a connection are kept as objects. When the connection closes
+ *  the game is parked in an off-heap store, with the word as an index into the words, and it is turned
+ *  back into a session when a connection resumes it. A parked game is evicted when it has been parked
+ *  for longer than the time to live, or dropped right away when the store is full.
+ *  A sweeper thread evicts the expired games, a game that expired since the last sweep
+ *  can't be resumed either.
+ *  create(owner, state, token) -   Adds a session with the token asked for or a new one.
+ *  resume(token, owner)        -   Hands a session over to a new connection.
+ *  park(session, owner)        -   Keeps the game for the time to live after its connection closed.
+ *  remove(session, owner)      -   Removes a session the player has quit.
+ */
+public class SessionTable {
+    private static final Logger LOG = Log.getLogger("sessions");
+    private static final int TOKEN_BYTES = 16;
+    private static final int LOCK_BITS = 6;
+    private static final int MAX_WORD_LENGTH = Long.SIZE;
+    private final ConcurrentHashMap<String, Session> sessions = new ConcurrentHashMap<>();
+    private final Object[] locks = new Object[1 << LOCK_BITS];
+    private final SecureRandom random = new SecureRandom();
+    private final OffHeapSessionStore parkedGames;
+    private final Controller controller;
+    private final long ttlNanos;
+    private final byte[] clusterSecret;
+    private ScheduledExecutorService sweeper;
+
+    /**
+     *  Creates an empty session table.
+     * @param controller (Controller) Turns the words of the games into indexes and back
+     * @param ttlMillis (long) Milliseconds a game is kept after its connection closed, 0 doesn't keep them
+     * @param maxParkedSessions (int) The most games that are kept after their connections closed
+     * @param clusterSecret (String) The secret a cluster router presents to choose tokens, null if there is no router
+     */
+    public SessionTable(Controller controller, long ttlMillis, int maxParkedSessions, String clusterSecret) {
+        this.controller = controller;
+        this.clusterSecret = clusterSecret == null ? null : clusterSecret.getBytes(StandardCharsets.UTF_8);
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, ttlMillis));
+        parkedGames = new OffHeapSessionStore(ttlNanos, Math.max(0, maxParkedSessions));
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    /**
+     *  Starts the sweeper that evicts the expired games, four times per time to live.
+     */
+    public synchronized void start() {
+        if (sweeper != null || ttlNanos == 0) return;
+        sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "session-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(TimeUnit.SECONDS.toNanos(1), ttlNanos / 4);
+        sweeper.scheduleAtFixedRate(this::evictExpired, period, period, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @param secret (String) The secret presented by a connection, may be null
+     * @return (boolean) True if it is the secret of the cluster, so the connection may choose the token of its session
+     */
+    public boolean isClusterSecret(String secret) {
+        return clusterSecret != null && secret != null
+                && MessageDigest.isEqual(clusterSecret, secret.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     *  Adds a session with the token asked for, or a new random token if the token asked for is not
+     *  a valid token or is already used by a session, live or parked.
+     * @param owner (Object) The game session of the connection that starts it
+     * @param gameState (GameState) The started game
+     * @param requestedToken (String) The token asked for, may be null
+     * @return (Session) The new session
+     */
+    public Session create(Object owner, GameState gameState, String requestedToken) {
+        if (requestedToken != null) {
+            byte[] bytes = decodeToken(requestedToken);
+            if (bytes != null) {
+                ByteBuffer token = ByteBuffer.wrap(bytes);
+                Session session = new Session(requestedToken, token.getLong(), token.getLong(), owner, gameState);
+                synchronized (lockOf(session.getTokenHigh())) {
+                    if (!parkedGames.contains(session.getTokenHigh(), session.getTokenLow())
+                            && sessions.putIfAbsent(requestedToken, session) == null) {
+                        return session;
+                    }
+                }
+                LOG.warn("The session id asked for is already used, making a new one.");
+            }
+        }
+        Session session;
+        do {
+            byte[] bytes = new byte[TOKEN_BYTES];
+            random.nextBytes(bytes);
+            ByteBuffer token = ByteBuffer.wrap(bytes);
+            session = new Session(Base64.getUrlEncoder().withoutPadding().encodeToString(bytes),
+                    token.getLong(), token.getLong(), owner, gameState);
+        } while (sessions.putIfAbsent(session.getToken(), session) != null);
+        return session;
+    }
+
+    /**
+     *  Hands a session over to a new connection. If another connection still owns it, that connection
+     *  loses it, it is most likely a connection the client has given up on.
+     *  A parked game is taken out of the store and becomes a session again.
+     * @param token (String) The token the player presented
+     * @param owner (Object) The game session of the new connection
+     * @return (Session) The session, or null if the token is unknown or the game has expired
+     */
+    public Session resume(String token, Object owner) {
+        byte[] bytes = decodeToken(token);
+        if (bytes == null) return null;
+        ByteBuffer tokenBuffer = ByteBuffer.wrap(bytes);
+        long tokenHigh = tokenBuffer.getLong();
+        long tokenLow = tokenBuffer.getLong();
+        synchronized (lockOf(tokenHigh)) {
+            Session session = sessions.get(token);
+            if (session != null) {
+                synchronized (session) {
+                    session.setOwner(owner);
+                }
+                return session;
+            }
+            OffHeapSessionStore.ParkedGame parkedGame = parkedGames.take(tokenHigh, tokenLow);
+            if (parkedGame == null) return null;
+            session = new Session(token, tokenHigh, tokenLow, owner, restore(parkedGame));
+            sessions.put(token, session);
+            return session;
+        }
+    }
+
+    /**
+     *  Parks the game of the session for the time to live after its connection closed,
+     *  unless another connection has taken it over.
+     * @param session (Session) The session of the connection
+     * @param owner (Object) The game session of the connection
+     */
+    public void park(Session session, Object owner) {
+        synchronized (lockOf(session.getTokenHigh())) {
+            GameState gameState;
+            synchronized (session) {
+                if (!session.isOwnedBy(owner)) return;
+                session.setOwner(null);
+                sessions.remove(session.getToken(), session);
+                gameState = session.getGameState();
+            }
+            if (ttlNanos == 0) return;
+            int wordIndex = gameState.getWord().isEmpty() ? -1 : controller.wordIndexOf(gameState.getWord());
+            if ((wordIndex == -1 && !gameState.getWord().isEmpty()) || gameState.getWord().length() > MAX_WORD_LENGTH) {
+                LOG.warn("Unable to park a game with the word {}, it is dropped.", gameState.getWord());
+                return;
+            }
+            if (!parkedGames.put(session.getTokenHigh(), session.getTokenLow(), wordIndex,
+                    revealedMaskOf(gameState.getSecretWordState()), gameState.getScore(),
+                    gameState.getRemainingAttempts())) {
+                LOG.warn("The store of parked games is full, a game is dropped.");
+            }
+        }
+    }
+
+    /**
+     *  Removes a session the player has quit, unless another connection has taken it over.
+     * @param session (Session) The session of the connection
+     * @param owner (Object) The game session of the connection
+     */
+    public void remove(Session session, Object owner) {
+        synchronized (lockOf(session.getTokenHigh())) {
+            synchronized (session) {
+                if (!session.isOwnedBy(owner)) return;
+                session.setOwner(null);
+                sessions.remove(session.getToken(), session);
+            }
+        }
+    }
+
+    /**
+     * @return (int) Number of sessions, parked or owned by a connection.
+     */
+    public int getSessionCount() {
+        return sessions.size() + parkedGames.size();
+    }
+
+    /**
+     * @return (int) Number of games waiting to be resumed.
+     */
+    public int getParkedCount() {
+        return parkedGames.size();
+    }
+
+    /**
+     * @return (long) Direct memory in bytes held by the parked games.
+     */
+    public long getParkedBytes() {
+        return parkedGames.getAllocatedBytes();
+    }
+
+    /**
+     *  Removes the games that have been parked for longer than the time to live.
+     */
+    private void evictExpired() {
+        int evicted = parkedGames.evictExpired();
+        if (evicted > 0) {
+            LOG.debug("Evicted {} expired sessions.", evicted);
+        }
+    }
+
+    /**
+     *  Turns a parked game back into a game state.
+     * @param parkedGame (ParkedGame) The game from the store
+     * @return (GameState) The game state
+     */
+    private GameState restore(OffHeapSessionStore.ParkedGame parkedGame) {
+        if (parkedGame.wordIndex == -1) {
+            return new GameState(parkedGame.score, parkedGame.remainingAttempts, new char[0], "");
+        }
+        String word = controller.wordAt(parkedGame.wordIndex);
+        char[] secretWordState = new char[word.length()];
+        for (int i = 0; i < secretWordState.length; i++) {
+            secretWordState[i] = (parkedGame.revealedMask & (1L << i)) != 0 ? word.charAt(i) : '_';
+        }
+        return new GameState(parkedGame.score, parkedGame.remainingAttempts, secretWordState, word);
+    }
+
+    /**
+     * @param secretWordState (char[]) The secret version of a word
+     * @return (long) The mask with a bit set for every revealed letter.
+     */
+    private static long revealedMaskOf(char[] secretWordState) {
+        long revealedMask = 0;
+        for (int i = 0; i < secretWordState.length; i++) {
+            if (secretWordState[i] != '_') revealedMask |= 1L << i;
+        }
+        return revealedMask;
+    }
+
+    /**
+     * @param token (String) A token in URL safe base 64
+     * @return (byte[]) The bytes of the token, or null if it isn't a valid token.
+     */
+    private static byte[] decodeToken(String token) {
+        try {
+            byte[] bytes = Base64.getUrlDecoder().decode(token);
+            return bytes.length == TOKEN_BYTES ? bytes : null;
+        } catch (IllegalArgumentException exception) {
+            return null;
+        }
+    }
+
+    private Object lockOf(long tokenHigh) {
+        return locks[(int) (tokenHigh >>> (Long.SIZE - LOCK_BITS))];
+    }
+}
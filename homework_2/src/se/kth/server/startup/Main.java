@@ -1,24 +1,220 @@
 package se.kth.server.startup;
 
+import se.kth.server.cluster.ClusterRouter;
 import se.kth.server.controller.Controller;
+import se.kth.server.log.Log;
+import se.kth.server.net.BlockingHangmanServer;
+import se.kth.server.net.GameServer;
 import se.kth.server.net.HangmanServer;
+import se.kth.server.net.OverloadPolicy;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  *  Main class for starting the HangmanServer program.
  */
 class Main {
+    private static final String ENGINE_OPTION = "--engine=";
+    private static final String EVENT_LOOPS_OPTION = "--event-loops=";
+    private static final String WORKERS_OPTION = "--workers=";
+    private static final String BUFFER_POOL_OPTION = "--buffer-pool-mb=";
+    private static final String WATERMARKS_OPTION = "--write-watermarks=";
+    private static final String OVERLOAD_OPTION = "--overload=";
+    private static final String KEEPALIVE_OPTION = "--keepalive=";
+    private static final String SESSION_TTL_OPTION = "--session-ttl=";
+    private static final String MAX_PARKED_SESSIONS_OPTION = "--max-parked-sessions=";
+    private static final String LOG_OPTION = "--log=";
+    private static final String PROCESSES_OPTION = "--processes=";
+    private static final String REUSE_PORT_OPTION = "--reuse-port";
+    private static final String UDP_OPTION = "--udp";
+    private static final String MAX_CONVERSATIONS_OPTION = "--max-conversations=";
+    private static final String ROUTE_OPTION = "--route=";
+    private static final String NODE_FILE_OPTION = "--node-file=";
+    private static final String CLUSTER_SECRET_OPTION = "--cluster-secret=";
+    private static final String BLOCKING_ENGINE = "blocking";
+    private static final List<String> NIO_OPTIONS = List.of(UDP_OPTION, MAX_CONVERSATIONS_OPTION, EVENT_LOOPS_OPTION,
+            WORKERS_OPTION, BUFFER_POOL_OPTION, WATERMARKS_OPTION, OVERLOAD_OPTION, KEEPALIVE_OPTION);
 
     /**
      * Will start a server at a given port,
      * if no port is given it will start on 4444.
-     * @param args The first argument should be a port number between 1-65535
+     * Options:
+     *  --engine=nio|blocking   -   The selector based server (default) or one blocking thread per connection.
+     *                              The blocking engine only takes --session-ttl, --max-parked-sessions, --log
+     *                              and --reuse-port, it warns about the other options and ignores them.
+     *  --event-loops=N         -   Number of event loops handling connections, 0 (default) handles them on the acceptor.
+     *  --workers=N             -   Number of workers running the game operations, defaults to the number of cores.
+     *  --buffer-pool-mb=N      -   Cap on direct memory for read and write buffers, defaults to 64 MB.
+     *  --write-watermarks=L,H  -   Unwritten response bytes per client where reading resumes and pauses,
+     *                              defaults to 16384,65536.
+     *  --overload=POLICY,MS    -   disconnect (default) or shed clients that stay paused for MS milliseconds,
+     *                              defaults to disconnect,10000.
+     *  --keepalive=MS,IDLE_MS  -   PING clients silent for MS milliseconds and close them after IDLE_MS, which
+     *                              must be longer, defaults to 30000,120000, 0 turns it off.
+     *  --session-ttl=MS        -   Keep the game of a client that lost its connection for MS milliseconds, so it
+     *                              can reconnect and resume it, defaults to 300000, 0 doesn't keep it.
+     *  --max-parked-sessions=N -   The most games kept for clients that lost their connection, 40 bytes of direct
+     *                              memory each, defaults to 1000000.
+     *  --log=SPEC              -   Log levels and sampling, e.g. info,net.messages=debug/100 writes one of every
+     *                              hundred messages. Levels are trace, debug, info (default), warn, error and off.
+     *  --reuse-port            -   Bind with SO_REUSEPORT, so other server processes can listen on the same port.
+     *  --udp                   -   Serve clients over UDP as well, on the same port number, needs the nio engine.
+     *  --max-conversations=N   -   The most clients served over UDP at once, defaults to 10000.
+     *  --processes=N           -   Run N server processes with the other options and SO_REUSEPORT, the kernel
+     *                              spreads the connections between them.
+     *  --route=HOST:PORT,...   -   Run a cluster router in front of the given servers instead of a server. Sessions
+     *                              are spread over the servers by consistent hashing of the session id.
+     *  --node-file=PATH        -   More servers for the router, one HOST:PORT per line, read again when it changes.
+     *  --cluster-secret=S      -   Secret shared by a router and its servers, without commas. The servers only let
+     *                              a router that presents it choose session ids, a router needs it.
+     * @param args A port number between 1-65535 and options
      */
     public static void main(String[] args) {
+        int processCount = 1;
+        List<String> serverArgs = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.startsWith(PROCESSES_OPTION)){
+                processCount = parseCount(arg.substring(PROCESSES_OPTION.length()));
+            } else {
+                serverArgs.add(arg);
+            }
+        }
+        if (processCount > 1){
+            new ProcessLauncher(processCount, serverArgs).run();
+            return;
+        }
+        for (String arg : serverArgs) {
+            if (arg.startsWith(ROUTE_OPTION)){
+                route(arg.substring(ROUTE_OPTION.length()), serverArgs);
+                return;
+            }
+        }
         Controller controller = new Controller();
         HangmanServer hangmanServer = new HangmanServer(controller);
-        if (args.length >= 1){
-            hangmanServer.parsePort(args[0]);
+        GameServer gameServer = hangmanServer;
+        for (String arg : serverArgs) {
+            if (arg.startsWith(ENGINE_OPTION)){
+                if (arg.substring(ENGINE_OPTION.length()).equals(BLOCKING_ENGINE)){
+                    gameServer = new BlockingHangmanServer(controller);
+                }
+            } else if (arg.startsWith(LOG_OPTION)){
+                try {
+                    Log.configure(arg.substring(LOG_OPTION.length()));
+                } catch (IllegalArgumentException exception) {
+                    System.err.println("Not a valid log option: " + arg);
+                }
+            }
+        }
+        for (String arg : serverArgs) {
+            if (arg.startsWith(ENGINE_OPTION) || arg.startsWith(LOG_OPTION)){
+                continue;
+            } else if (gameServer != hangmanServer && isNioOption(arg)){
+                System.err.println("Only used by the nio engine, ignoring: " + arg);
+            } else if (arg.equals(REUSE_PORT_OPTION)){
+                gameServer.setReusePort(true);
+            } else if (arg.equals(UDP_OPTION)){
+                hangmanServer.setDatagramEnabled(true);
+            } else if (arg.startsWith(CLUSTER_SECRET_OPTION)){
+                gameServer.setClusterSecret(arg.substring(CLUSTER_SECRET_OPTION.length()));
+            } else if (arg.startsWith(MAX_CONVERSATIONS_OPTION)){
+                hangmanServer.setMaxConversations(parseCount(arg.substring(MAX_CONVERSATIONS_OPTION.length())));
+            } else if (arg.startsWith(SESSION_TTL_OPTION)){
+                gameServer.setSessionTtl(parseCount(arg.substring(SESSION_TTL_OPTION.length())));
+            } else if (arg.startsWith(MAX_PARKED_SESSIONS_OPTION)){
+                gameServer.setMaxParkedSessions(parseCount(arg.substring(MAX_PARKED_SESSIONS_OPTION.length())));
+            } else if (arg.startsWith(EVENT_LOOPS_OPTION)){
+                hangmanServer.setEventLoopCount(parseCount(arg.substring(EVENT_LOOPS_OPTION.length())));
+            } else if (arg.startsWith(WORKERS_OPTION)){
+                hangmanServer.setWorkerCount(parseCount(arg.substring(WORKERS_OPTION.length())));
+            } else if (arg.startsWith(BUFFER_POOL_OPTION)){
+                hangmanServer.setMaxPooledBytes(parseCount(arg.substring(BUFFER_POOL_OPTION.length())) * 1024L * 1024L);
+            } else if (arg.startsWith(WATERMARKS_OPTION)){
+                String[] watermarks = arg.substring(WATERMARKS_OPTION.length()).split(",");
+                if (watermarks.length == 2){
+                    hangmanServer.setWriteWatermarks(parseCount(watermarks[0]), parseCount(watermarks[1]));
+                }
+            } else if (arg.startsWith(KEEPALIVE_OPTION)){
+                String[] keepalive = arg.substring(KEEPALIVE_OPTION.length()).split(",");
+                int keepaliveInterval = parseCount(keepalive[0]);
+                if (keepalive.length == 1){
+                    hangmanServer.setKeepalive(keepaliveInterval);
+                } else if (keepaliveInterval == 0 || parseCount(keepalive[1]) > keepaliveInterval){
+                    hangmanServer.setKeepalive(keepaliveInterval, parseCount(keepalive[1]));
+                } else {
+                    System.err.println("The idle timeout must be longer than the keepalive interval: " + arg);
+                }
+            } else if (arg.startsWith(OVERLOAD_OPTION)){
+                String[] overload = arg.substring(OVERLOAD_OPTION.length()).split(",");
+                if (overload.length == 2){
+                    try {
+                        OverloadPolicy overloadPolicy = OverloadPolicy.valueOf(overload[0].toUpperCase());
+                        hangmanServer.setOverloadPolicy(parseCount(overload[1]), overloadPolicy);
+                    } catch (IllegalArgumentException exception) {
+                        System.err.println("Not a valid overload policy: " + overload[0]);
+                    }
+                }
+            } else {
+                gameServer.parsePort(arg);
+            }
+        }
+        gameServer.serve();
+    }
+
+    /**
+     * Runs a cluster router in front of the given servers.
+     * @param nodes The servers as a comma separated list of host:port
+     * @param routerArgs The port and the options of the router
+     */
+    private static void route(String nodes, List<String> routerArgs) {
+        ClusterRouter clusterRouter = new ClusterRouter(nodes);
+        boolean clusterSecretGiven = false;
+        for (String arg : routerArgs) {
+            if (arg.startsWith(LOG_OPTION)){
+                try {
+                    Log.configure(arg.substring(LOG_OPTION.length()));
+                } catch (IllegalArgumentException exception) {
+                    System.err.println("Not a valid log option: " + arg);
+                }
+            } else if (arg.startsWith(NODE_FILE_OPTION)){
+                clusterRouter.setNodeFile(arg.substring(NODE_FILE_OPTION.length()));
+            } else if (arg.equals(REUSE_PORT_OPTION)){
+                clusterRouter.setReusePort(true);
+            } else if (arg.startsWith(CLUSTER_SECRET_OPTION)){
+                clusterRouter.setClusterSecret(arg.substring(CLUSTER_SECRET_OPTION.length()));
+                clusterSecretGiven = true;
+            } else if (!arg.startsWith("--")){
+                clusterRouter.parsePort(arg);
+            }
+        }
+        if (!clusterSecretGiven){
+            System.err.println("The router needs the secret of its servers, give it with " + CLUSTER_SECRET_OPTION);
+            System.exit(1);
+        }
+        clusterRouter.serve();
+    }
+
+    /**
+     * @param arg An option
+     * @return True if the option only applies to the nio engine
+     */
+    private static boolean isNioOption(String arg) {
+        for (String option : NIO_OPTIONS) {
+            if (arg.startsWith(option)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Parses a count given as an option.
+     * @param count The count as a string
+     * @return The count, or 0 if it isn't a number
+     */
+    private static int parseCount(String count) {
+        try {
+            return Integer.parseInt(count);
+        } catch (NumberFormatException exception) {
+            System.err.println("Not a valid count: " + count);
+            return 0;
         }
-        hangmanServer.serve();
     }
 }